@@ -0,0 +1,32 @@
+package no.jetpie.ml.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line and
+ * always adds the GC profiler, so every result comes with its
+ * allocation rate per operation (gc.alloc.rate.norm).
+ *
+ * <pre>
+ *   mvn -P jmh package
+ *   java -jar target/benchmarks.jar                      # everything
+ *   java -jar target/benchmarks.jar PredictBenchmark -p numCats=1000
+ * </pre>
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,71 @@
+package no.jetpie.ml.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.io.Files;
+
+import no.jetpie.ml.model.nb.MultinomialNB;
+
+/**
+ * A synthetic model loaded once per trial and the documents to score,
+ * shared by the benchmarks. Sizes are JMH parameters, override them
+ * with e.g. -p numVocab=200000 -p numCats=1000.
+ */
+@State(Scope.Benchmark)
+public class ModelState {
+
+	/** documents per batch, benchmarks report time per document */
+	public static final int BATCH = 256;
+
+	@Param({ "50000" })
+	public int numVocab;
+
+	@Param({ "100" })
+	public int numCats;
+
+	@Param({ "30" })
+	public int docLength;
+
+	/** loaded model */
+	public MultinomialNB model;
+	/** BATCH documents of docLength words */
+	public List<String> documents;
+	/** state 0 for every document */
+	public int[] states;
+
+	private File dir;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SyntheticModel synthetic = new SyntheticModel(this.numVocab, this.numCats, 0);
+		this.dir = Files.createTempDir();
+		synthetic.write(this.dir);
+		this.model = new MultinomialNB(
+				new File(this.dir, SyntheticModel.VOCABULARY).getPath(),
+				new File(this.dir, SyntheticModel.LOG_PROBA).getPath(),
+				new File(this.dir, SyntheticModel.BOUNDARY).getPath());
+		this.model.init();
+		this.documents = synthetic.documents(BATCH, this.docLength, 1);
+		this.states = new int[BATCH];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File[] files = new File(this.dir, SyntheticModel.LOG_PROBA).listFiles();
+		for (File f : files)
+			f.delete();
+		new File(this.dir, SyntheticModel.LOG_PROBA).delete();
+		new File(this.dir, SyntheticModel.VOCABULARY).delete();
+		new File(this.dir, SyntheticModel.BOUNDARY).delete();
+		this.dir.delete();
+	}
+}
@@ -0,0 +1,189 @@
+package no.jetpie.ml.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+/**
+ * Generator of random text models and documents, so benchmarks run
+ * anywhere and at any size.
+ *
+ * The vocabulary is half unigrams and half bigrams of those unigrams,
+ * like a model trained with N_GRAM {1, 2}. Documents draw their terms
+ * with a skew towards the first unigrams, as real text does, and one
+ * term in ten is unknown to the vocabulary.
+ *
+ * <pre>
+ *   java no.jetpie.ml.bench.SyntheticModel outDir numVocab numCats
+ * </pre>
+ */
+public class SyntheticModel {
+
+	/** vocabulary file name */
+	public static final String VOCABULARY = "vocabulary.model";
+	/** conditional probability directory name */
+	public static final String LOG_PROBA = "log_proba";
+	/** threshold file name */
+	public static final String BOUNDARY = "boundary.json";
+
+	private final int numVocab;
+	private final int numCats;
+	private final long seed;
+	/** single words of the vocabulary */
+	private final String[] unigrams;
+	/** every term of the vocabulary by column */
+	private final String[] terms;
+
+	/**
+	 * @param numVocab
+	 * 		size of the vocabulary
+	 * @param numCats
+	 * 		number of categories
+	 * @param seed
+	 * 		random seed, the same seed gives the same model
+	 */
+	public SyntheticModel(int numVocab, int numCats, long seed) {
+		Preconditions.checkArgument(numVocab >= 2, "vocabulary is too small", numVocab);
+		Preconditions.checkArgument(numCats >= 1, "no category", numCats);
+		this.numVocab = numVocab;
+		this.numCats = numCats;
+		this.seed = seed;
+
+		this.unigrams = new String[(numVocab + 1) / 2];
+		for (int i = 0; i < this.unigrams.length; i++)
+			this.unigrams[i] = word(i);
+		this.terms = new String[numVocab];
+		System.arraycopy(this.unigrams, 0, this.terms, 0, this.unigrams.length);
+		// bigrams of consecutive unigrams, all distinct
+		int n = this.unigrams.length;
+		for (int i = n; i < numVocab; i++)
+			this.terms[i] = this.unigrams[i - n] + " " + this.unigrams[(i - n + 1) % n];
+	}
+
+	/**
+	 * write vocabulary.model, log_proba/ and boundary.json
+	 *
+	 * @param dir
+	 * 		directory to write into, created if missing
+	 * @throws IOException
+	 */
+	public void write(File dir) throws IOException {
+		Random r = new Random(this.seed);
+		File logProba = new File(dir, LOG_PROBA);
+		Preconditions.checkState(logProba.isDirectory() || logProba.mkdirs(),
+				"cannot create the model directory!", logProba);
+
+		Writer out = writer(new File(dir, VOCABULARY));
+		try {
+			for (int k = 0; k < this.numVocab; k++)
+				out.write(this.terms[k] + "," + k + "," + (1 + r.nextDouble() * 5) + "\n");
+		} finally {
+			out.close();
+		}
+
+		StringBuilder json = new StringBuilder("{");
+		for (int j = 0; j < this.numCats; j++) {
+			String name = category(j);
+			out = writer(new File(logProba, name + ".txt"));
+			try {
+				for (int k = 0; k < this.numVocab; k++)
+					out.write(this.terms[k] + ":" + (-1 - r.nextDouble() * 12) + "\n");
+			} finally {
+				out.close();
+			}
+			if (j > 0)
+				json.append(", ");
+			json.append('"').append(name).append("\": {\"threshold\": ")
+				.append(-r.nextDouble() * 3).append(", \"used\": ")
+				.append(r.nextDouble() < 0.9 ? 1 : 0).append('}');
+		}
+		json.append('}');
+		Files.write(json, new File(dir, BOUNDARY), Charsets.UTF_8);
+	}
+
+	/**
+	 *
+	 * @param numDocs
+	 * 		number of documents
+	 * @param docLength
+	 * 		number of whitespace separated words per document
+	 * @param seed
+	 * 		random seed
+	 * @return documents of terms separated by whitespace
+	 */
+	public List<String> documents(int numDocs, int docLength, long seed) {
+		Random r = new Random(seed);
+		List<String> documents = new ArrayList<String>(numDocs);
+		StringBuilder doc = new StringBuilder();
+		for (int i = 0; i < numDocs; i++) {
+			doc.setLength(0);
+			for (int w = 0; w < docLength; w++) {
+				if (w > 0)
+					doc.append(' ');
+				if (r.nextInt(10) == 0) {
+					// unknown to the vocabulary
+					doc.append("oov").append(r.nextInt(1000));
+				} else {
+					double u = r.nextDouble();
+					doc.append(this.unigrams[(int) (u * u * this.unigrams.length)]);
+				}
+			}
+			documents.add(doc.toString());
+		}
+		return documents;
+	}
+
+	/**
+	 *
+	 * @param j
+	 * 		category position
+	 * @return category name, sorted as the position
+	 */
+	public static String category(int j) {
+		return String.format("cat%05d", j);
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 		unigram index
+	 * @return a unique lower case word of at least two letters
+	 */
+	private static String word(int i) {
+		StringBuilder s = new StringBuilder("w");
+		do {
+			s.append((char) ('a' + i % 26));
+			i /= 26;
+		} while (i > 0);
+		return s.toString();
+	}
+
+	private static Writer writer(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), Charsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * @param args
+	 * 		output directory, vocabulary size, number of categories
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("usage: SyntheticModel <output dir> <numVocab> <numCats>");
+			System.exit(1);
+		}
+		new SyntheticModel(Integer.parseInt(args[1]), Integer.parseInt(args[2]), 0)
+				.write(new File(args[0]));
+	}
+}
@@ -0,0 +1,90 @@
+package no.jetpie.ml.feature;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import no.jetpie.ml.bench.ModelState;
+
+/**
+ * Tokenization, counting and tf-idf transformation. Every benchmark
+ * processes the ModelState.BATCH documents and reports the time per
+ * document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VectorizerBenchmark {
+
+	private Vectorizer vectorizer;
+	private List<String> documents;
+	private FeatureVector x;
+
+	@Setup(Level.Trial)
+	public void setUp(ModelState state) {
+		this.vectorizer = state.model.getSnapshot().getVectorizer();
+		this.documents = state.documents;
+		this.x = new FeatureVector();
+	}
+
+	/** streaming n-gram tokenizer, no String per term */
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public void tokenize(final Blackhole bh) {
+		TokenSink sink = new TokenSink() {
+			public void accept(char[] buffer, int offset, int length) {
+				bh.consume(length);
+			}
+		};
+		for (String document : this.documents)
+			this.vectorizer.tokenize(document, sink);
+	}
+
+	/** list of n-gram Strings */
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public void tokenizeList(Blackhole bh) {
+		for (String document : this.documents)
+			bh.consume(this.vectorizer.tokenize(document));
+	}
+
+	/** term counts of a batch into a sparse matrix */
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public Object countVocab() {
+		return this.vectorizer.countVocab(this.documents);
+	}
+
+	/** tf-idf rows of a batch */
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public Object transformBatch() {
+		return this.vectorizer.transform(this.documents);
+	}
+
+	/** tf-idf row of each document into a reused feature vector */
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public void transformSingle(Blackhole bh) {
+		for (String document : this.documents) {
+			this.vectorizer.transform(document, this.x);
+			bh.consume(this.x.size());
+		}
+	}
+}
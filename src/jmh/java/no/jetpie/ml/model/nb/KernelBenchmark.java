@@ -0,0 +1,118 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scalar against vector ScoringKernel by number of categories, per
+ * document: the accumulation of its feature rows, the log exp sum
+ * with the argmax, and the argmax of a state allowing half or one in
+ * a hundred of the categories. The vector kernel needs the simd profile and
+ *
+ * <pre>
+ *   java -jar target/benchmarks.jar KernelBenchmark \
+ *       -jvmArgsAppend --add-modules=jdk.incubator.vector
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KernelBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int numCats;
+
+	@Param({ "scalar", "vector" })
+	public String kernel;
+
+	/** feature rows of a document */
+	@Param({ "30" })
+	public int docLength;
+
+	private ScoringKernel k;
+	/** docLength feature rows, feature-major */
+	private double[] rows;
+	/** tf-idf weight of each row */
+	private double[] weights;
+	/** joint log likelihood row */
+	private double[] jil;
+	private double logsumexp;
+	/** mask allowing every other category */
+	private ScoringKernel.Mask halfMask;
+	/** mask allowing one category in a hundred */
+	private ScoringKernel.Mask sparseMask;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		this.k = "vector".equals(this.kernel) ? ScoringKernel.vector() : ScoringKernel.scalar();
+		if (this.k == null)
+			throw new IllegalStateException("vector kernel unavailable, build on JDK 16+ "
+					+ "and add -jvmArgsAppend --add-modules=jdk.incubator.vector");
+		Random random = new Random(0);
+		this.rows = new double[this.docLength * this.numCats];
+		for (int i = 0; i < this.rows.length; i++)
+			this.rows[i] = Math.log(random.nextDouble() * 1e-3);
+		this.weights = new double[this.docLength];
+		for (int i = 0; i < this.docLength; i++)
+			this.weights[i] = random.nextDouble();
+		this.jil = new double[this.numCats];
+		this.accumulate();
+		this.logsumexp = this.k.logSumExp(this.jil, 0, this.numCats);
+		BitSet allowed = new BitSet(this.numCats);
+		for (int j = 0; j < this.numCats; j += 2)
+			allowed.set(j);
+		this.halfMask = new ScoringKernel.Mask(allowed, this.numCats);
+		allowed.clear();
+		for (int j = 0; j < this.numCats; j += 100)
+			allowed.set(j);
+		this.sparseMask = new ScoringKernel.Mask(allowed, this.numCats);
+	}
+
+	/** feature rows and prior into the score row */
+	@Benchmark
+	public double[] accumulate() {
+		Arrays.fill(this.jil, 0);
+		for (int i = 0; i < this.docLength; i++)
+			this.k.axpy(this.weights[i], this.rows, i * this.numCats, this.jil, 0,
+					this.numCats);
+		this.k.add(this.jil, this.numCats, -Math.log(this.numCats));
+		return this.jil;
+	}
+
+	/** log exp sum and argmax of the row, as predict does */
+	@Benchmark
+	public int logSumExpArgmax() {
+		double lse = this.k.logSumExp(this.jil, 0, this.numCats);
+		return this.k.argmax(this.jil, 0, this.numCats, lse, null);
+	}
+
+	/** argmax restricted by the mask of a state */
+	@Benchmark
+	public int maskedArgmax() {
+		return this.k.argmax(this.jil, 0, this.numCats, this.logsumexp, this.halfMask);
+	}
+
+	/** argmax restricted by the mask of a narrow state */
+	@Benchmark
+	public int sparseMaskedArgmax() {
+		return this.k.argmax(this.jil, 0, this.numCats, this.logsumexp, this.sparseMask);
+	}
+}
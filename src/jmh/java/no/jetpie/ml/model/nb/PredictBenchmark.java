@@ -0,0 +1,85 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import no.jetpie.ml.bench.ModelState;
+
+/**
+ * End-to-end prediction from raw documents, one document at a time
+ * against the whole batch at once. Every benchmark processes the
+ * ModelState.BATCH documents and reports the time per document, the
+ * parallel one a batch of PARALLEL_BATCHES copies of them on the
+ * common pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PredictBenchmark {
+
+	/** copies of the batch scored by the parallel benchmark */
+	private static final int PARALLEL_BATCHES = 64;
+
+	private MultinomialNB model;
+	private List<String> documents;
+	private int[] states;
+	private List<String> parallelDocuments;
+	private int[] parallelStates;
+
+	@Setup(Level.Trial)
+	public void setUp(ModelState state) {
+		this.model = state.model;
+		this.documents = state.documents;
+		this.states = state.states;
+		this.parallelDocuments = new ArrayList<String>();
+		for (int i = 0; i < PARALLEL_BATCHES; i++)
+			this.parallelDocuments.addAll(this.documents);
+		this.parallelStates = new int[this.parallelDocuments.size()];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public void predictSingle(Blackhole bh) {
+		for (String document : this.documents)
+			bh.consume(this.model.predict(document, 0));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public Object predictBatch() {
+		return this.model.predict(this.documents, this.states);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public void predictTopKSingle(Blackhole bh) {
+		for (String document : this.documents)
+			bh.consume(this.model.predictTopK(document, 0, 5));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH * PARALLEL_BATCHES)
+	public Object predictParallel() {
+		return this.model.predict(this.parallelDocuments, this.parallelStates,
+				ForkJoinPool.commonPool());
+	}
+}
@@ -0,0 +1,103 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import no.uib.cipr.matrix.Matrix;
+import no.jetpie.ml.bench.ModelState;
+import no.jetpie.ml.feature.FeatureVector;
+
+/**
+ * Scoring of already vectorized documents: the joint log likelihood
+ * and the normalization and argmax of its rows, in both math modes.
+ * Every benchmark processes the ModelState.BATCH documents and reports
+ * the time per document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScoringBenchmark {
+
+	@Param({ "EXACT", "FAST" })
+	public MathMode mathMode;
+
+	private ModelSnapshot snapshot;
+	/** tf-idf matrix of the batch */
+	private Matrix X;
+	/** tf-idf row of each document */
+	private FeatureVector[] rows;
+	/** joint log likelihood of each document */
+	private double[][] scores;
+	private double[] jil;
+
+	@Setup(Level.Trial)
+	public void setUp(ModelState state) {
+		this.snapshot = state.model.getSnapshot().withMathMode(this.mathMode);
+		this.X = this.snapshot.getVectorizer().transform(state.documents);
+		int n = state.documents.size();
+		this.rows = new FeatureVector[n];
+		this.scores = new double[n][];
+		for (int i = 0; i < n; i++) {
+			this.rows[i] = new FeatureVector();
+			this.snapshot.getVectorizer().transform(state.documents.get(i), this.rows[i]);
+			this.scores[i] = new double[state.numCats];
+			this.snapshot.jointLogLikelihood(this.rows[i], this.scores[i]);
+		}
+		this.jil = new double[state.numCats];
+	}
+
+	/** blocked X * table of the batch */
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public Object jointLogLikelihoodBatch() {
+		return this.snapshot.jointLogLikelihood(this.X);
+	}
+
+	/** row gather of each document */
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public void jointLogLikelihoodSingle(Blackhole bh) {
+		for (FeatureVector x : this.rows) {
+			this.snapshot.jointLogLikelihood(x, this.jil);
+			bh.consume(this.jil);
+		}
+	}
+
+	/** rowLogNormalize then argmax, the row is copied first */
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public void rowLogNormalizeArgmax(Blackhole bh) {
+		for (double[] row : this.scores) {
+			System.arraycopy(row, 0, this.jil, 0, row.length);
+			this.snapshot.rowLogNormalize(this.jil);
+			bh.consume(this.snapshot.argmax(this.jil, 0));
+		}
+	}
+
+	/** log exp sum and label without normalizing the row, as predict does */
+	@Benchmark
+	@OperationsPerInvocation(ModelState.BATCH)
+	public void logSumExpLabel(Blackhole bh) {
+		for (double[] row : this.scores) {
+			double logsumexp = this.snapshot.logSumExp(row, 0, 1);
+			bh.consume(this.snapshot.label(row, 0, 1, logsumexp, 0));
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package no.jetpie.ml.feature;
+
+import java.util.Arrays;
+
+/**
+ * A reusable batch of pre-vectorized documents in compressed sparse row
+ * layout: the (id, count) pairs of all documents one after the other
+ * and the offset of each document.
+ *
+ * Ids are column positions of the model as given to
+ * Vectorizer.transform(int[], float[], int, int, FeatureVector). The
+ * buffers only grow, so a batch kept by the caller and cleared between
+ * calls stops allocating after the largest batch has been seen.
+ *
+ * <pre>
+ *   batch.clear();
+ *   for each document:
+ *       for each term: batch.add(id, count);
+ *       batch.endDocument();
+ *   labels = model.predict(batch, states);
+ * </pre>
+ */
+public class FeatureBatch {
+
+	/** initial capacity of the buffers */
+	private static final int INIT_CAPACITY = 64;
+
+	/** ids of all documents */
+	private int[] ids;
+	/** counts respected to the ids */
+	private float[] counts;
+	/** number of ids */
+	private int numIds;
+	/** first id of each document, then the end of the last one */
+	private int[] rowPtr;
+	/** number of ended documents */
+	private int numDocs;
+
+	public FeatureBatch() {
+		this.ids = new int[INIT_CAPACITY];
+		this.counts = new float[INIT_CAPACITY];
+		this.rowPtr = new int[INIT_CAPACITY + 1];
+	}
+
+	/**
+	 * remove all documents but keep the buffers
+	 */
+	public void clear() {
+		this.numIds = 0;
+		this.numDocs = 0;
+	}
+
+	/**
+	 * append a term to the current document
+	 *
+	 * @param id
+	 * 		column position of the term
+	 * @param count
+	 * 		count of the term
+	 */
+	public void add(int id, float count) {
+		if (this.numIds == this.ids.length) {
+			this.ids = Arrays.copyOf(this.ids, this.ids.length << 1);
+			this.counts = Arrays.copyOf(this.counts, this.counts.length << 1);
+		}
+		this.ids[this.numIds] = id;
+		this.counts[this.numIds++] = count;
+	}
+
+	/**
+	 * end the current document, which may be empty
+	 */
+	public void endDocument() {
+		if (this.numDocs + 1 == this.rowPtr.length)
+			this.rowPtr = Arrays.copyOf(this.rowPtr, this.rowPtr.length << 1);
+		this.rowPtr[++this.numDocs] = this.numIds;
+	}
+
+	/**
+	 *
+	 * @return number of ended documents
+	 */
+	public int size() {
+		return this.numDocs;
+	}
+
+	/**
+	 *
+	 * @param doc
+	 * 		document pointer
+	 * @return position of the first id of the document
+	 */
+	public int getOffset(int doc) {
+		return this.rowPtr[doc];
+	}
+
+	/**
+	 *
+	 * @param doc
+	 * 		document pointer
+	 * @return number of ids of the document
+	 */
+	public int getLength(int doc) {
+		return this.rowPtr[doc + 1] - this.rowPtr[doc];
+	}
+
+	/**
+	 *
+	 * @return ids of all documents, shared and valid until the next add
+	 */
+	public int[] getIds() {
+		return this.ids;
+	}
+
+	/**
+	 *
+	 * @return counts of all documents, shared and valid until the next
+	 * 		add
+	 */
+	public float[] getCounts() {
+		return this.counts;
+	}
+}
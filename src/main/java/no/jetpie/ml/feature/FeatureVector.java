@@ -0,0 +1,237 @@
+package no.jetpie.ml.feature;
+
+import java.util.Arrays;
+
+/**
+ * A reusable sparse feature row for a single document.
+ *
+ * Column indices are appended once per term occurrence and then
+ * compacted into ascending (column, count) pairs, the same layout
+ * a row of an MTJ CompRowMatrix has after countVocab. The buffers
+ * only grow, so a vector kept per thread stops allocating after
+ * the longest document has been seen.
+ */
+public class FeatureVector {
+
+	/** initial capacity of the buffers */
+	private static final int INIT_CAPACITY = 64;
+
+	/** column indices, ascending after compact() */
+	private int[] index;
+	/** values respected to the column indices */
+	private double[] data;
+	/** number of used entries */
+	private int size;
+	/** number of n-grams of the document */
+	private int tokens;
+	/** number of n-grams left out, e.g. out of the vocabulary */
+	private int unknown;
+	/** (column, entry) sort keys of compactWeighted() */
+	private long[] keys = new long[0];
+	/** values in append order during compactWeighted() */
+	private double[] values = new double[0];
+
+	public FeatureVector() {
+		this.index = new int[INIT_CAPACITY];
+		this.data = new double[INIT_CAPACITY];
+	}
+
+	/**
+	 * remove all entries but keep the buffers
+	 */
+	public void clear() {
+		this.size = 0;
+		this.tokens = 0;
+		this.unknown = 0;
+	}
+
+	/**
+	 * append one occurrence of a column
+	 *
+	 * @param col
+	 * 		column position of the term
+	 */
+	public void add(int col) {
+		if (this.size == this.index.length)
+			this.grow();
+		this.index[this.size] = col;
+		this.data[this.size++] = 1;
+		this.tokens++;
+	}
+
+	/**
+	 * append a column with its count, e.g. of a pre-vectorized
+	 * document; compact with compactWeighted()
+	 *
+	 * @param col
+	 * 		column position of the term
+	 * @param count
+	 * 		count of the term
+	 */
+	public void add(int col, double count) {
+		if (this.size == this.index.length)
+			this.grow();
+		this.index[this.size] = col;
+		this.data[this.size++] = count;
+		this.tokens++;
+	}
+
+	/**
+	 * count an occurrence left out of the vector
+	 */
+	public void skip() {
+		this.tokens++;
+		this.unknown++;
+	}
+
+	/**
+	 * sort the appended columns and sum the duplicates into counts
+	 */
+	public void compact() {
+		if (this.size == 0)
+			return;
+		Arrays.sort(this.index, 0, this.size);
+		int nz = 0;
+		for (int i = 1; i < this.size; i++) {
+			if (this.index[i] == this.index[nz]) {
+				this.data[nz]++;
+			} else {
+				this.index[++nz] = this.index[i];
+				this.data[nz] = 1;
+			}
+		}
+		this.size = nz + 1;
+	}
+
+	/**
+	 * compact() for columns appended as (col << 1 | sign), sign 1
+	 * standing for a negative occurrence: the counts of both signs of a
+	 * column are summed into a signed count and the columns cancelling
+	 * out are dropped
+	 */
+	void compactSigned() {
+		this.compact();
+		int nz = 0;
+		for (int i = 0; i < this.size; i++) {
+			int col = this.index[i] >>> 1;
+			double value = (this.index[i] & 1) == 0 ? this.data[i] : -this.data[i];
+			if (nz > 0 && this.index[nz - 1] == col) {
+				this.data[nz - 1] += value;
+				if (this.data[nz - 1] == 0)
+					nz--;
+			} else {
+				this.index[nz] = col;
+				this.data[nz++] = value;
+			}
+		}
+		this.size = nz;
+	}
+
+	/**
+	 * compact() for columns appended with their counts: the counts of a
+	 * column are summed in append order and the zero sums dropped.
+	 * Columns already ascending and distinct, as in a CSR row, are only
+	 * checked.
+	 */
+	void compactWeighted() {
+		boolean sorted = true;
+		for (int i = 1; i < this.size && sorted; i++)
+			sorted = this.index[i - 1] < this.index[i];
+		if (!sorted) {
+			if (this.keys.length < this.size) {
+				this.keys = new long[this.index.length];
+				this.values = new double[this.index.length];
+			}
+			// columns are not negative, the entry breaks the ties
+			for (int i = 0; i < this.size; i++) {
+				this.keys[i] = (long) this.index[i] << 32 | i;
+				this.values[i] = this.data[i];
+			}
+			Arrays.sort(this.keys, 0, this.size);
+			int nz = -1;
+			for (int i = 0; i < this.size; i++) {
+				int col = (int) (this.keys[i] >>> 32);
+				double value = this.values[(int) this.keys[i]];
+				if (nz >= 0 && this.index[nz] == col) {
+					this.data[nz] += value;
+				} else {
+					this.index[++nz] = col;
+					this.data[nz] = value;
+				}
+			}
+			this.size = nz + 1;
+		}
+		int nz = 0;
+		for (int i = 0; i < this.size; i++) {
+			if (this.data[i] == 0)
+				continue;
+			this.index[nz] = this.index[i];
+			this.data[nz++] = this.data[i];
+		}
+		this.size = nz;
+	}
+
+	/**
+	 *
+	 * @return number of non-zero entries
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 *
+	 * @return number of occurrences added or skipped since clear()
+	 */
+	public int getNumTokens() {
+		return this.tokens;
+	}
+
+	/**
+	 *
+	 * @return number of occurrences skipped since clear()
+	 */
+	public int getNumUnknown() {
+		return this.unknown;
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 		entry pointer
+	 * @return column of the i-th entry
+	 */
+	public int index(int i) {
+		return this.index[i];
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 		entry pointer
+	 * @return value of the i-th entry
+	 */
+	public double get(int i) {
+		return this.data[i];
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 		entry pointer
+	 * @param value
+	 * 		new value of the i-th entry
+	 */
+	public void set(int i, double value) {
+		this.data[i] = value;
+	}
+
+	/**
+	 * double the capacity of the buffers
+	 */
+	private void grow() {
+		int capacity = this.index.length << 1;
+		this.index = Arrays.copyOf(this.index, capacity);
+		this.data = Arrays.copyOf(this.data, capacity);
+	}
+}
@@ -0,0 +1,391 @@
+package no.jetpie.ml.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+import no.uib.cipr.matrix.Matrix;
+import no.uib.cipr.matrix.MatrixEntry;
+
+/**
+ * Vectorizer without vocabulary: every n-gram is hashed into one of
+ * 2^bits columns, so nothing is loaded and the size of the model only
+ * depends on bits and the number of categories. Terms colliding in a
+ * bucket share its column.
+ *
+ * The hash is the 32 bits MurmurHash3 of the chars of the n-gram
+ * (equal to the guava murmur3_32 of the String), the low bits give the
+ * bucket and with the alternate sign the top bit gives the sign of
+ * the occurrence, so collisions tend to cancel out instead of adding
+ * up. A signed feature is no count anymore, keep the alternate sign
+ * off for a MultinomialNB trained by MultinomialNBTrainer.
+ *
+ * The optional idf is indexed by bucket. Read from the vocabulary
+ * model a hashing MultinomialNBTrainer writes, a bucket no training
+ * document hit has no idf and its terms are left out, as terms out of
+ * the vocabulary are by the TfidfVectorizer. The conditional
+ * probability files of such a model are keyed by bucket.
+ */
+public class HashingVectorizer extends Vectorizer {
+
+	/** maximum bits, a signed bucket has to fit in a column index */
+	public static final int MAX_BITS = 30;
+
+	/** number of bits of a bucket */
+	private final int bits;
+	/** numVocab - 1 */
+	private final int mask;
+	/** idf value for each bucket, null if idf prior is not applied */
+	private double[] idfDiag;
+	/** set true if the top bit of the hash gives the sign */
+	private boolean alternateSign;
+	/** path to the idf file, null if none */
+	private final String idfPath;
+
+	/**
+	 * without idf, ready to use
+	 *
+	 * @param bits
+	 * 		number of columns is 2^bits
+	 */
+	public HashingVectorizer(int bits) {
+		this(bits, null);
+	}
+
+	/**
+	 * ready to use
+	 *
+	 * @param bits
+	 * 		number of columns is 2^bits
+	 * @param idfDiag
+	 * 		idf value for each bucket, 0 to leave the bucket out; null if
+	 * 		idf prior is not applied
+	 */
+	public HashingVectorizer(int bits, double[] idfDiag) {
+		super(1 << checkBits(bits));
+		Preconditions.checkArgument(idfDiag == null || idfDiag.length == this.numVocab,
+				"idf must have one value per bucket", idfDiag);
+		this.bits = bits;
+		this.mask = this.numVocab - 1;
+		this.idfDiag = idfDiag;
+		this.idfPath = null;
+	}
+
+	/**
+	 * with the idf of a vocabulary model written by a hashing
+	 * MultinomialNBTrainer, read by init()
+	 *
+	 * @param idfPath
+	 * 		path to the vocabulary model
+	 * @param bits
+	 * 		number of columns is 2^bits, as in training
+	 */
+	public HashingVectorizer(String idfPath, int bits) {
+		super(idfPath);
+		this.numVocab = 1 << checkBits(bits);
+		this.bits = bits;
+		this.mask = this.numVocab - 1;
+		this.idfPath = idfPath;
+	}
+
+	private static int checkBits(int bits) {
+		Preconditions.checkArgument(bits > 0 && bits <= MAX_BITS,
+				"bits must be in [1, " + MAX_BITS + "]", bits);
+		return bits;
+	}
+
+	/**
+	 * read the idf file if any, there is no vocabulary to check
+	 */
+	@Override
+	public void init() {
+		if (this.idfPath != null)
+			this.readVocab(this.idfPath);
+	}
+
+	/**
+	 * import the idf by bucket from a vocabulary model of
+	 * "bucket,column,idf" lines
+	 *
+	 * @param filePath
+	 * 		path to model file
+	 */
+	protected void readVocab(String filePath) {
+		double[] idf = new double[this.numVocab];
+		try {
+			List<String> lines = Files.readLines(new File(filePath), Charsets.UTF_8);
+			for (String line : lines) {
+				String[] parts = line.split(",");
+				int pos = this.getPosInModel(parts[0]);
+				Preconditions.checkState(pos != VocabularyIndex.NOT_FOUND,
+						"bucket out of the hashing space!", line);
+				idf[pos] = Double.parseDouble(parts[2]);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot read the idf file " + filePath, e);
+		}
+		this.idfDiag = idf;
+	}
+
+	/**
+	 *
+	 * @param alternateSign
+	 * 		set true to sign each occurrence by the top bit of its hash,
+	 * 		before the vectorizer is used
+	 */
+	public void setAlternateSign(boolean alternateSign) {
+		this.alternateSign = alternateSign;
+	}
+
+	/**
+	 *
+	 * @return true if occurrences are signed by their hash
+	 */
+	public boolean isAlternateSign() {
+		return this.alternateSign;
+	}
+
+	/**
+	 *
+	 * @return number of bits of a bucket
+	 */
+	public int getBits() {
+		return this.bits;
+	}
+
+	/**
+	 *
+	 * @return idf value for each bucket, shared and not to be modified;
+	 * 		null if idf prior is not applied
+	 */
+	public double[] getIdf() {
+		return this.idfDiag;
+	}
+
+	/**
+	 *
+	 * @param term
+	 * 		one of keywords
+	 * @return bucket of the term
+	 */
+	@Override
+	public int getPosInCol(String term) {
+		return hash(term) & this.mask;
+	}
+
+	/**
+	 *
+	 * @param buffer
+	 * 		chars holding the term
+	 * @param offset
+	 * 		start of the term
+	 * @param length
+	 * 		number of chars of the term
+	 * @return bucket of the term
+	 */
+	public int getPosInCol(char[] buffer, int offset, int length) {
+		return hash(buffer, offset, length) & this.mask;
+	}
+
+	/**
+	 * the files of a hashed model are keyed by bucket
+	 *
+	 * @param key
+	 * 		bucket number
+	 * @return the bucket, VocabularyIndex.NOT_FOUND if the key is no
+	 * 		bucket of the hashing space
+	 */
+	@Override
+	public int getPosInModel(String key) {
+		int pos;
+		try {
+			pos = Integer.parseInt(key);
+		} catch (NumberFormatException e) {
+			return VocabularyIndex.NOT_FOUND;
+		}
+		return pos >= 0 && pos < this.numVocab ? pos : VocabularyIndex.NOT_FOUND;
+	}
+
+	@Override
+	public int getPosInModel(char[] buffer, int offset, int length) {
+		// plain decimal buckets without a String, anything else as before
+		if (length == 0 || length > 10)
+			return this.getPosInModel(new String(buffer, offset, length));
+		long pos = 0;
+		for (int i = offset; i < offset + length; i++) {
+			char c = buffer[i];
+			if (c < '0' || c > '9')
+				return this.getPosInModel(new String(buffer, offset, length));
+			pos = pos * 10 + (c - '0');
+		}
+		return pos < this.numVocab ? (int) pos : VocabularyIndex.NOT_FOUND;
+	}
+
+	/**
+	 * count the bucket of an n-gram, as (bucket << 1 | sign) with the
+	 * alternate sign
+	 *
+	 * @param buffer
+	 * 		characters of the n-gram
+	 * @param offset
+	 * 		first character of the n-gram
+	 * @param length
+	 * 		number of characters of the n-gram
+	 * @param x
+	 * 		feature vector of the document
+	 */
+	@Override
+	protected void count(char[] buffer, int offset, int length, FeatureVector x) {
+		int h = hash(buffer, offset, length);
+		int pos = h & this.mask;
+		// left out like a term out of the vocabulary
+		if (this.idfDiag != null && this.idfDiag[pos] == 0) {
+			x.skip();
+			return;
+		}
+		x.add(this.alternateSign ? pos << 1 | h >>> 31 : pos);
+	}
+
+	/**
+	 * signed counts with the alternate sign
+	 *
+	 * @param x
+	 * 		feature vector of the document
+	 */
+	@Override
+	protected void compact(FeatureVector x) {
+		if (this.alternateSign)
+			x.compactSigned();
+		else
+			x.compact();
+	}
+
+	/**
+	 *
+	 * @param documents
+	 * 		A List of documents
+	 * @return sparse input matrix
+	 */
+	public Matrix transform(List<String> documents) {
+		Matrix X = this.countVocab(documents);
+
+		if (this.idfDiag != null) {
+			for (MatrixEntry e : X) {
+				e.set(e.get() * this.idfDiag[e.column()]);
+			}
+		}
+		// normalization
+		this.rowNormalize(X);
+		return X;
+	}
+
+	/**
+	 * Single document transform into a reusable feature vector
+	 *
+	 * @param document
+	 * 		a document of terms separated by whitespace
+	 * @param x
+	 * 		feature vector to fill
+	 */
+	public void transform(String document, FeatureVector x) {
+		this.countVocab(document, x);
+		this.weight(x);
+	}
+
+	/**
+	 * ids are buckets; with the alternate sign the counts are expected
+	 * signed by the caller. Buckets of zero idf are left out like the
+	 * hashed terms.
+	 *
+	 * @param id
+	 * 		bucket given by the caller
+	 * @return true if the bucket is used by the model
+	 */
+	@Override
+	protected boolean hasColumn(int id) {
+		return super.hasColumn(id) && (this.idfDiag == null || this.idfDiag[id] != 0);
+	}
+
+	/**
+	 * idf weighting if an idf is set, then L2 normalization
+	 *
+	 * @param x
+	 * 		feature vector of counts
+	 */
+	@Override
+	protected void weight(FeatureVector x) {
+		if (this.idfDiag != null) {
+			for (int i = 0; i < x.size(); i++) {
+				x.set(i, x.get(i) * this.idfDiag[x.index(i)]);
+			}
+		}
+		// normalization
+		this.rowNormalize(x);
+	}
+
+	/**
+	 * 32 bits MurmurHash3 of the chars of a term, two chars a block
+	 *
+	 * @param term
+	 * 		a term
+	 * @return hash of the term
+	 */
+	public static int hash(CharSequence term) {
+		int len = term.length();
+		int h = 0;
+		int i = 0;
+		for (; i + 1 < len; i += 2)
+			h = mixH(h, mixK(term.charAt(i) | (term.charAt(i + 1) << 16)));
+		if (i < len)
+			h ^= mixK(term.charAt(i));
+		return fmix(h, len << 1);
+	}
+
+	/**
+	 * 32 bits MurmurHash3 of the chars of a term, two chars a block
+	 *
+	 * @param buffer
+	 * 		chars holding the term
+	 * @param offset
+	 * 		start of the term
+	 * @param length
+	 * 		number of chars of the term
+	 * @return hash of the term
+	 */
+	public static int hash(char[] buffer, int offset, int length) {
+		int end = offset + length;
+		int h = 0;
+		int i = offset;
+		for (; i + 1 < end; i += 2)
+			h = mixH(h, mixK(buffer[i] | (buffer[i + 1] << 16)));
+		if (i < end)
+			h ^= mixK(buffer[i]);
+		return fmix(h, length << 1);
+	}
+
+	private static int mixK(int k) {
+		k *= 0xcc9e2d51;
+		k = Integer.rotateLeft(k, 15);
+		return k * 0x1b873593;
+	}
+
+	private static int mixH(int h, int k) {
+		h ^= k;
+		h = Integer.rotateLeft(h, 13);
+		return h * 5 + 0xe6546b64;
+	}
+
+	private static int fmix(int h, int byteLength) {
+		h ^= byteLength;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,122 @@
+package no.jetpie.ml.feature;
+
+import java.util.Arrays;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
+
+/**
+ * Streaming n-gram tokenizer.
+ * 
+ * Follows the rules of Vectorizer.tokenize: the document is split
+ * on " ", each piece is trimmed and lowercased, single letter terms
+ * are dropped and n-grams are emitted from the smallest n to the
+ * largest, each in document order. Instead of building Strings,
+ * the kept terms are copied into one reusable buffer separated by a
+ * single space, so every n-gram is a contiguous span of that buffer
+ * and is handed to a TokenSink as (offset, length).
+ * 
+ * Lowercasing is done per char with Character.toLowerCase, which
+ * matches String.toLowerCase apart from its locale and context
+ * dependent special cases (e.g. capital dotted I, final sigma).
+ * 
+ * An instance keeps its buffers between calls and is not thread
+ * safe.
+ */
+public class NGramTokenizer {
+
+	/** initial capacity of the buffers */
+	private static final int INIT_CAPACITY = 64;
+	/** same trimming as the guava splitter trimResults() */
+	private static final CharMatcher WHITESPACE = CharMatcher.WHITESPACE;
+
+	/** minimum n of n-gram */
+	private final int minN;
+	/** maximum n of n-gram */
+	private final int maxN;
+	/** lowercased terms separated by a single space */
+	private char[] buffer = new char[INIT_CAPACITY];
+	/** start of each term in buffer */
+	private int[] starts = new int[INIT_CAPACITY];
+	/** end (exclusive) of each term in buffer */
+	private int[] ends = new int[INIT_CAPACITY];
+
+	/**
+	 * 
+	 * @param minN
+	 * 		minimum n of n-gram
+	 * @param maxN
+	 * 		maximum n of n-gram
+	 */
+	public NGramTokenizer(int minN, int maxN) {
+		Preconditions.checkArgument(minN > 0 && minN <= maxN,
+				"n-gram settings wrong! 0 < min <= max");
+		this.minN = minN;
+		this.maxN = maxN;
+	}
+
+	/**
+	 * tokenize the document and emit every n-gram to the sink
+	 * 
+	 * @param document
+	 * 		a document of terms separated by whitespace
+	 * @param sink
+	 * 		receiver of the n-grams
+	 * @return number of terms kept in the document
+	 */
+	public int tokenize(CharSequence document, TokenSink sink) {
+		int numTerms = this.split(document);
+		for (int n = this.minN; n <= this.maxN; n++) {
+			for (int i = 0; i < numTerms - n + 1; i++) {
+				int start = this.starts[i];
+				sink.accept(this.buffer, start, this.ends[i + n - 1] - start);
+			}
+		}
+		return numTerms;
+	}
+
+	/**
+	 * copy the kept terms of the document into the buffer
+	 * 
+	 * @param document
+	 * 		a document of terms separated by whitespace
+	 * @return number of terms kept
+	 */
+	private int split(CharSequence document) {
+		int len = document.length();
+		// terms plus single separators never exceed the document
+		if (this.buffer.length < len)
+			this.buffer = new char[Math.max(len, this.buffer.length << 1)];
+
+		int numTerms = 0;
+		int pos = 0;
+		int i = 0;
+		while (i < len) {
+			int j = i;
+			while (j < len && document.charAt(j) != ' ')
+				j++;
+			// trim the piece [i, j)
+			int s = i;
+			int e = j;
+			while (s < e && WHITESPACE.matches(document.charAt(s)))
+				s++;
+			while (e > s && WHITESPACE.matches(document.charAt(e - 1)))
+				e--;
+			// add a single letter stop condition currently
+			if (e - s > 1) {
+				if (numTerms == this.starts.length) {
+					this.starts = Arrays.copyOf(this.starts, numTerms << 1);
+					this.ends = Arrays.copyOf(this.ends, numTerms << 1);
+				}
+				if (numTerms > 0)
+					this.buffer[pos++] = ' ';
+				this.starts[numTerms] = pos;
+				for (int k = s; k < e; k++)
+					this.buffer[pos++] = Character.toLowerCase(document.charAt(k));
+				this.ends[numTerms++] = pos;
+			}
+			i = j + 1;
+		}
+		return numTerms;
+	}
+}
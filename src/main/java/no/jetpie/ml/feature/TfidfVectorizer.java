@@ -2,7 +2,6 @@ package no.jetpie.ml.feature;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.List;
 
 import com.google.common.base.Charsets;
@@ -37,6 +36,40 @@ public class TfidfVectorizer extends Vectorizer{
 		// import vocabulary
 		this.useIdf = useIdf;
 	}
+
+	/**
+	 * construct from an already built vocabulary, e.g. read from a
+	 * binary model file. init() must not be called afterwards.
+	 * 
+	 * @param vocabulary
+	 * 		term to column position index
+	 * @param idfDiag
+	 * 		idf value for each column
+	 * @param useIdf
+	 * 		set true if idf prior will be applied
+	 */
+	public TfidfVectorizer(VocabularyIndex vocabulary, double[] idfDiag,
+			boolean useIdf) {
+		super(vocabulary, idfDiag.length);
+		this.idfDiag = idfDiag;
+		this.useIdf = useIdf;
+	}
+
+	/**
+	 * 
+	 * @return idf value for each column, shared and not to be modified
+	 */
+	public double[] getIdf() {
+		return this.idfDiag;
+	}
+
+	/**
+	 * 
+	 * @return true if idf prior is applied
+	 */
+	public boolean useIdf() {
+		return this.useIdf;
+	}
 	
 	/**
 	 * import vocabulary model from file
@@ -45,10 +78,6 @@ public class TfidfVectorizer extends Vectorizer{
 	 * 		path to model file
 	 */
 	public void readVocab(String filePath) {
-		long startTime = System.currentTimeMillis();
-		
-		// initialization
-		this.vocabulary = new HashMap<String, Integer>();
 		try {
 			File vocabModel = new File(filePath);
 			// guava read lines
@@ -56,6 +85,8 @@ public class TfidfVectorizer extends Vectorizer{
 
 			// set number of vocabulary and idf values
 			this.numVocab = lines.size();
+			// initialization
+			this.vocabulary = new VocabularyIndex(this.numVocab);
 			// init the diagonal value array for sparse diagonal matrix
 			this.idfDiag = new double[this.numVocab];
 			// iterate lines
@@ -65,13 +96,10 @@ public class TfidfVectorizer extends Vectorizer{
 				this.vocabulary.put(parts[0], ptr);
 				this.idfDiag[ptr] = Double.parseDouble(parts[2]);
 			}
+			this.vocabulary.trim();
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new IllegalStateException("cannot read the vocabulary model " + filePath, e);
 		}
-
-		System.out.print("vocabulary model imported..");
-		long endTime = System.currentTimeMillis();
-		System.out.println("(Elasped time: " + (endTime-startTime) + " ms)");
 	}
 	
 	/**
@@ -96,4 +124,34 @@ public class TfidfVectorizer extends Vectorizer{
 		this.rowNormalize(X);
 		return X;
 	}
+
+	/**
+	 * Single document transform into a reusable feature vector
+	 * 
+	 * @param document
+	 * 		a document of terms separated by whitespace
+	 * @param x
+	 * 		feature vector to fill
+	 */
+	public void transform(String document, FeatureVector x) {
+		this.countVocab(document, x);
+		this.weight(x);
+	}
+
+	/**
+	 * idf weighting if enabled, then L2 normalization
+	 * 
+	 * @param x
+	 * 		feature vector of counts
+	 */
+	@Override
+	protected void weight(FeatureVector x) {
+		if (this.useIdf) {
+			for (int i = 0; i < x.size(); i++) {
+				x.set(i, x.get(i) * this.idfDiag[x.index(i)]);
+			}
+		}
+		// normalization
+		this.rowNormalize(x);
+	}
 }
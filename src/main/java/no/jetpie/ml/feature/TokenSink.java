@@ -0,0 +1,21 @@
+package no.jetpie.ml.feature;
+
+/**
+ * Receiver of the n-grams produced by NGramTokenizer.
+ * 
+ * The buffer is owned by the tokenizer and only valid during the
+ * call, so an implementation has to copy what it wants to keep.
+ */
+public interface TokenSink {
+
+	/**
+	 * 
+	 * @param buffer
+	 * 		lowercased terms of the document separated by a single space
+	 * @param offset
+	 * 		start of the n-gram in buffer
+	 * @param length
+	 * 		number of chars of the n-gram
+	 */
+	void accept(char[] buffer, int offset, int length);
+}
@@ -10,7 +10,6 @@ import no.uib.cipr.matrix.sparse.*;
 // Guava import
 import com.google.common.base.*;
 import com.google.common.io.Files;
-import com.google.common.collect.*;
 
 /**
  * Implementation with respect to python scikit-learn 
@@ -27,12 +26,17 @@ public abstract class Vectorizer {
 	protected int numVocab;
 
 	/** set n-gram wording strategy */
-	private final int[] N_GRAM = { 1, 2 };
+	private static final int[] N_GRAM = { 1, 2 };
 	/** keywords and its index in row */
-	protected HashMap<String, Integer> vocabulary;
+	protected VocabularyIndex vocabulary;
 
-	/** guava splitter */
-	private Splitter g_splitter = Splitter.on(" ");
+	/** per-thread streaming tokenizer counting into a feature vector */
+	private final ThreadLocal<Counter> counter = new ThreadLocal<Counter>() {
+		@Override
+		protected Counter initialValue() {
+			return new Counter();
+		}
+	};
 
 	/** model path */
 	private String filePath;
@@ -48,6 +52,34 @@ public abstract class Vectorizer {
 
 		this.filePath = filePath;
 	}
+
+	/**
+	 * construct from an already built vocabulary, init() must not be
+	 * called afterwards
+	 * 
+	 * @param vocabulary
+	 * 		term to column position index
+	 * @param numVocab
+	 * 		number of columns
+	 */
+	protected Vectorizer(VocabularyIndex vocabulary, int numVocab) {
+		Preconditions.checkArgument(!vocabulary.isEmpty(),
+				"vocabulary is empty!", vocabulary);
+		this.vocabulary = vocabulary;
+		this.numVocab = numVocab;
+	}
+	
+	/**
+	 * construct without vocabulary, e.g. for terms hashed into a fixed
+	 * number of columns
+	 * 
+	 * @param numVocab
+	 * 		number of columns
+	 */
+	protected Vectorizer(int numVocab) {
+		Preconditions.checkArgument(numVocab > 0, "no column!", numVocab);
+		this.numVocab = numVocab;
+	}
 	
 	/**
 	 * initialize the parameters
@@ -55,7 +87,7 @@ public abstract class Vectorizer {
 	public void init(){
 		this.readVocab(filePath);
 		// check if vocabulary is valid (guava)
-		Preconditions.checkState(!this.vocabulary.isEmpty(),
+		Preconditions.checkState(this.vocabulary != null && !this.vocabulary.isEmpty(),
 				"TfidfVectorizer.vocabulary is empty!", this.vocabulary);
 	}
 
@@ -85,22 +117,18 @@ public abstract class Vectorizer {
 		// start to construct the sparse matrix information
 		// row pointer
 		int row = 0;
+		FeatureVector x = new FeatureVector();
 		for (String document : documents) {
 
-			// tokenize the document
-			LinkedList<String> terms = this.tokenize(document);
-			Multiset<String> countTerms = HashMultiset.create(terms);
-			// Retains only the elements in this collection that are 
-			// contained in the vocabulary keyset
-			countTerms.retainAll((Collection<String>) this.vocabulary.keySet());
+			// count the vocabulary terms of the document
+			this.countVocab(document, x);
 			// initialize the current row index and respected value
-			int[] curRow = new int[countTerms.elementSet().size()];
-			int[] rowVal = new int[countTerms.elementSet().size()];
-			int i = 0;
-			for (String term : countTerms.elementSet()) {
+			int[] curRow = new int[x.size()];
+			int[] rowVal = new int[x.size()];
+			for (int i = 0; i < x.size(); i++) {
 
-				curRow[i] = this.vocabulary.get(term);
-				rowVal[i++] = countTerms.count(term);
+				curRow[i] = x.index(i);
+				rowVal[i] = (int) x.get(i);
 			}
 			nz[row] = curRow;
 			values[row++] = rowVal;
@@ -115,6 +143,64 @@ public abstract class Vectorizer {
 		return X;
 	}
 	
+	/**
+	 * count a single document into a reusable feature vector
+	 * 
+	 * @param document
+	 * 		a document of terms separated by whitespace
+	 * @param x
+	 * 		feature vector to fill with (column, count) pairs
+	 */
+	protected void countVocab(String document, FeatureVector x) {
+		Counter c = this.counter.get();
+		x.clear();
+		c.x = x;
+		c.tokenizer.tokenize(document, c);
+		c.x = null;
+		this.compact(x);
+	}
+	
+	/**
+	 * count one n-gram of a document, by default its vocabulary column
+	 * or an unknown term
+	 * 
+	 * @param buffer
+	 * 		characters of the n-gram
+	 * @param offset
+	 * 		first character of the n-gram
+	 * @param length
+	 * 		number of characters of the n-gram
+	 * @param x
+	 * 		feature vector of the document
+	 */
+	protected void count(char[] buffer, int offset, int length, FeatureVector x) {
+		int pos = this.vocabulary.get(buffer, offset, length);
+		if (pos != VocabularyIndex.NOT_FOUND)
+			x.add(pos);
+		else
+			x.skip();
+	}
+	
+	/**
+	 * merge the counted columns of a document into (column, count)
+	 * pairs, by default FeatureVector.compact()
+	 * 
+	 * @param x
+	 * 		feature vector of the document
+	 */
+	protected void compact(FeatureVector x) {
+		x.compact();
+	}
+	
+	/**
+	 * 
+	 * @return a new tokenizer following N_GRAM, for code counting
+	 * 		documents the way the vectorizers do
+	 */
+	public static NGramTokenizer newTokenizer() {
+		return new NGramTokenizer(N_GRAM[0], N_GRAM[1]);
+	}
+	
 	/**
 	 * 
 	 * @return size of vocabulary
@@ -123,6 +209,14 @@ public abstract class Vectorizer {
 		return this.numVocab;
 	}
 
+	/**
+	 * 
+	 * @return the vocabulary index, shared and not to be modified
+	 */
+	public VocabularyIndex getVocabulary() {
+		return this.vocabulary;
+	}
+
 	/**
 	 * 
 	 * @param term
@@ -132,11 +226,39 @@ public abstract class Vectorizer {
 	 */
 	public int getPosInCol(String term) {
 		int pos = this.vocabulary.get(term);
-		Preconditions.checkNotNull(pos,
+		Preconditions.checkArgument(pos != VocabularyIndex.NOT_FOUND,
 				"vocabulary and likelihood model matching problem!", term);
 		return pos;
 	}
 
+	/**
+	 * 
+	 * @param key
+	 * 		key of a line of the conditional probability files
+	 * @return column position of the key, by default the key is a
+	 * 		term of the vocabulary; VocabularyIndex.NOT_FOUND if the key
+	 * 		has no column
+	 */
+	public int getPosInModel(String key) {
+		return this.vocabulary.get(key);
+	}
+
+	/**
+	 * getPosInModel on a span of a buffer, without creating the key
+	 * 
+	 * @param buffer
+	 * 		characters of the key
+	 * @param offset
+	 * 		first character of the key
+	 * @param length
+	 * 		number of characters of the key
+	 * @return column position of the key, VocabularyIndex.NOT_FOUND if
+	 * 		the key has no column
+	 */
+	public int getPosInModel(char[] buffer, int offset, int length) {
+		return this.vocabulary.get(buffer, offset, length);
+	}
+
 	/**
 	 * tokenize the input stream N_GRAM
 	 * 
@@ -145,44 +267,42 @@ public abstract class Vectorizer {
 	 * @return a List of String satisfied n-gram
 	 */
 	protected LinkedList<String> tokenize(String document) {
-
-		// length limitations by n-gram
-		int MIN_N = this.N_GRAM[0];
-		int MAX_N = this.N_GRAM[1];
-		Preconditions.checkState(MIN_N <= MAX_N,
-				"n-gram settings wrong! min < max");
-		// add a single letter stop condition currently
-		Predicate<String> noSingleLetter = new Predicate<String>(){
-			public boolean apply(String input) {
-				return input.length()>1;
+		final LinkedList<String> tokens = new LinkedList<String>();
+		this.tokenize(document, new TokenSink() {
+			public void accept(char[] buffer, int offset, int length) {
+				tokens.add(new String(buffer, offset, length));
 			}
-			
-		};
-		// split using guava
-		// convert UpperCase to LowerCase if any
-		String[] terms = Iterables.toArray(
-				Iterables.filter(g_splitter.trimResults().omitEmptyStrings()
-						.split(document.toLowerCase()), noSingleLetter), String.class);
-		// terminate if 1-gram is needed
-		if (MAX_N == 1)
-			return new LinkedList<String>(Arrays.asList(terms));
-		Preconditions.checkState(MIN_N < MAX_N,
-				"n-gram settings wrong! min = max != 1");
-		if (MAX_N > 1 && terms.length > 0) {
-			LinkedList<String> tokens = new LinkedList<String>();
-			for (int n = MIN_N; n <= MAX_N; n++) {
-				for (int i = 0; i < terms.length - n + 1; i++) {
-					StringBuilder sb = new StringBuilder();
-					for (int j = i; j < i + n; j++)
-						sb.append((j > i ? " " : "") + terms[j]);
-					tokens.add(sb.toString());
-				}
-			}
-			return tokens;
-		}
-		return null;
+		});
+		return tokens;
+	}
+
+	/**
+	 * streaming version of tokenize, n-grams are handed to the sink as
+	 * spans of a reusable buffer and no String is created
+	 * 
+	 * @param document
+	 * 		a document of terms separeted by whitespace
+	 * @param sink
+	 * 		receiver of the n-grams
+	 */
+	public void tokenize(String document, TokenSink sink) {
+		this.counter.get().tokenizer.tokenize(document, sink);
 	}
 
+	/**
+	 * Counts the n-grams of a document into a feature vector, handing
+	 * the buffer spans to count() directly
+	 */
+	private final class Counter implements TokenSink {
+		/** tokenizer following N_GRAM */
+		final NGramTokenizer tokenizer = newTokenizer();
+		/** feature vector of the current document */
+		FeatureVector x;
+
+		public void accept(char[] buffer, int offset, int length) {
+			count(buffer, offset, length, this.x);
+		}
+	}
 
 	@Deprecated
 	protected void fit() {
@@ -198,6 +318,98 @@ public abstract class Vectorizer {
 	 */
 	public abstract Matrix transform(List<String> documents);
 
+	/**
+	 * Single document version of transform which fills a reusable
+	 * feature vector instead of building a matrix
+	 * 
+	 * @param document
+	 * 		a document of terms separated by whitespace
+	 * @param x
+	 * 		feature vector to fill
+	 */
+	public abstract void transform(String document, FeatureVector x);
+
+	/**
+	 * transform of a pre-vectorized document, e.g. from a segmentation
+	 * producing the column positions itself: the same feature vector as
+	 * transform(String, FeatureVector) without tokenizing nor looking
+	 * terms up. Ids without column are left out and counted as unknown;
+	 * the token counters of x count ids, not occurrences.
+	 * 
+	 * @param ids
+	 * 		column positions of the terms, in any order and repeated or
+	 * 		not
+	 * @param counts
+	 * 		count of each id, null for one occurrence per id
+	 * @param offset
+	 * 		first id of the document
+	 * @param length
+	 * 		number of ids of the document
+	 * @param x
+	 * 		feature vector to fill
+	 */
+	public void transform(int[] ids, int[] counts, int offset, int length,
+			FeatureVector x) {
+		x.clear();
+		for (int i = offset; i < offset + length; i++) {
+			if (this.hasColumn(ids[i]))
+				x.add(ids[i], counts == null ? 1 : counts[i]);
+			else
+				x.skip();
+		}
+		x.compactWeighted();
+		this.weight(x);
+	}
+
+	/**
+	 * transform(int[], int[], int, int, FeatureVector) with real
+	 * valued counts
+	 * 
+	 * @param ids
+	 * 		column positions of the terms
+	 * @param counts
+	 * 		count of each id, null for one occurrence per id
+	 * @param offset
+	 * 		first id of the document
+	 * @param length
+	 * 		number of ids of the document
+	 * @param x
+	 * 		feature vector to fill
+	 */
+	public void transform(int[] ids, float[] counts, int offset, int length,
+			FeatureVector x) {
+		x.clear();
+		for (int i = offset; i < offset + length; i++) {
+			if (this.hasColumn(ids[i]))
+				x.add(ids[i], counts == null ? 1 : counts[i]);
+			else
+				x.skip();
+		}
+		x.compactWeighted();
+		this.weight(x);
+	}
+
+	/**
+	 * 
+	 * @param id
+	 * 		column position given by the caller
+	 * @return true if the id is a column of the model
+	 */
+	protected boolean hasColumn(int id) {
+		return id >= 0 && id < this.numVocab;
+	}
+
+	/**
+	 * weight the counts of a compacted feature vector, by default only
+	 * L2 normalized
+	 * 
+	 * @param x
+	 * 		feature vector of counts
+	 */
+	protected void weight(FeatureVector x) {
+		this.rowNormalize(x);
+	}
+
 	/**
 	 * Currently not implemented for online
 	 * 
@@ -231,4 +443,21 @@ public abstract class Vectorizer {
 		}
 	}
 
+	/**
+	 * normalize a single feature vector using L2-norm
+	 * 
+	 * @param x
+	 * 		the normalized feature vector
+	 */
+	protected void rowNormalize(FeatureVector x) {
+		double rootSum = 0;
+		for (int i = 0; i < x.size(); i++) {
+			rootSum += Math.pow(x.get(i), 2);
+		}
+		rootSum = Math.sqrt(rootSum);
+		for (int i = 0; i < x.size(); i++) {
+			x.set(i, x.get(i) / rootSum);
+		}
+	}
+
 }
@@ -0,0 +1,262 @@
+package no.jetpie.ml.feature;
+
+import java.util.Arrays;
+
+/**
+ * Compact vocabulary: term to column position.
+ *
+ * All terms are stored back to back in one char arena and addressed
+ * by an offset array. Lookup goes through an open addressing table
+ * of term ordinals (linear probing, load factor at most 0.5) and the
+ * precomputed hash of each term is compared before its chars. A term
+ * costs its chars plus about 20 bytes, instead of a HashMap entry, a
+ * boxed Integer and a String.
+ *
+ * Terms can be looked up from a CharSequence or from a slice of a
+ * char buffer, so the tokenizer never needs to build a String.
+ * Building is not thread safe, lookups on a built index are.
+ */
+public class VocabularyIndex {
+
+	/** returned by get() for terms not in the vocabulary */
+	public static final int NOT_FOUND = -1;
+
+	/** chars of all terms */
+	private char[] arena;
+	/** number of used chars in arena */
+	private int arenaSize;
+	/** start of each term in arena, size + 1 entries are used */
+	private int[] offsets;
+	/** hash of each term */
+	private int[] hashes;
+	/** column position of each term */
+	private int[] values;
+	/** number of terms */
+	private int size;
+	/** open addressing table of term ordinal + 1, 0 is empty */
+	private int[] table;
+	/** table.length - 1 */
+	private int mask;
+
+	public VocabularyIndex() {
+		this(16);
+	}
+
+	/**
+	 *
+	 * @param expectedSize
+	 * 		expected number of terms
+	 */
+	public VocabularyIndex(int expectedSize) {
+		int capacity = Math.max(expectedSize, 4);
+		this.arena = new char[capacity * 8];
+		this.offsets = new int[capacity + 1];
+		this.hashes = new int[capacity];
+		this.values = new int[capacity];
+		this.table = new int[tableSize(capacity)];
+		this.mask = this.table.length - 1;
+	}
+
+	/**
+	 * add a term, the position of an existing term is replaced
+	 *
+	 * @param term
+	 * 		vocabulary term
+	 * @param value
+	 * 		column position of the term
+	 */
+	public void put(CharSequence term, int value) {
+		int len = term.length();
+		int h = hash(term);
+		int slot = this.find(term, h);
+		if (this.table[slot] != 0) {
+			this.values[this.table[slot] - 1] = value;
+			return;
+		}
+		if (this.size == this.hashes.length)
+			this.growTerms();
+		if (this.arenaSize + len > this.arena.length)
+			this.arena = Arrays.copyOf(this.arena,
+					Math.max(this.arena.length << 1, this.arenaSize + len));
+		for (int i = 0; i < len; i++)
+			this.arena[this.arenaSize++] = term.charAt(i);
+		this.offsets[this.size + 1] = this.arenaSize;
+		this.hashes[this.size] = h;
+		this.values[this.size] = value;
+		this.table[slot] = ++this.size;
+		if (this.size << 1 > this.table.length)
+			this.rehash(this.table.length << 1);
+	}
+
+	/**
+	 *
+	 * @param term
+	 * 		vocabulary term
+	 * @return column position of the term or NOT_FOUND
+	 */
+	public int get(CharSequence term) {
+		int ordinal = this.table[this.find(term, hash(term))];
+		return ordinal == 0 ? NOT_FOUND : this.values[ordinal - 1];
+	}
+
+	/**
+	 *
+	 * @param buffer
+	 * 		char buffer
+	 * @param offset
+	 * 		start of the term in buffer
+	 * @param length
+	 * 		number of chars of the term
+	 * @return column position of the term or NOT_FOUND
+	 */
+	public int get(char[] buffer, int offset, int length) {
+		int h = hash(buffer, offset, length);
+		int slot = h & this.mask;
+		int ordinal;
+		while ((ordinal = this.table[slot]) != 0) {
+			int t = ordinal - 1;
+			if (this.hashes[t] == h && this.matches(t, buffer, offset, length))
+				return this.values[t];
+			slot = (slot + 1) & this.mask;
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 *
+	 * @return number of terms
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 *
+	 * @return true if there is no term
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 *
+	 * @param ordinal
+	 * 		insertion order of the term, 0 <= ordinal < size()
+	 * @return the term
+	 */
+	public String term(int ordinal) {
+		int start = this.offsets[ordinal];
+		return new String(this.arena, start, this.offsets[ordinal + 1] - start);
+	}
+
+	/**
+	 *
+	 * @param ordinal
+	 * 		insertion order of the term, 0 <= ordinal < size()
+	 * @return column position of the term
+	 */
+	public int value(int ordinal) {
+		return this.values[ordinal];
+	}
+
+	/**
+	 * release the unused capacity after building
+	 */
+	public void trim() {
+		this.arena = Arrays.copyOf(this.arena, this.arenaSize);
+		this.offsets = Arrays.copyOf(this.offsets, this.size + 1);
+		this.hashes = Arrays.copyOf(this.hashes, this.size);
+		this.values = Arrays.copyOf(this.values, this.size);
+	}
+
+	/**
+	 * find the slot holding the term, or the empty slot ending its probe
+	 */
+	private int find(CharSequence term, int h) {
+		int slot = h & this.mask;
+		int ordinal;
+		while ((ordinal = this.table[slot]) != 0) {
+			int t = ordinal - 1;
+			if (this.hashes[t] == h && this.matches(t, term))
+				return slot;
+			slot = (slot + 1) & this.mask;
+		}
+		return slot;
+	}
+
+	private boolean matches(int t, char[] buffer, int offset, int length) {
+		int start = this.offsets[t];
+		if (this.offsets[t + 1] - start != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (this.arena[start + i] != buffer[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	private boolean matches(int t, CharSequence term) {
+		int start = this.offsets[t];
+		if (this.offsets[t + 1] - start != term.length())
+			return false;
+		for (int i = 0; i < term.length(); i++) {
+			if (this.arena[start + i] != term.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private void growTerms() {
+		int capacity = Math.max(this.hashes.length << 1, 4);
+		this.offsets = Arrays.copyOf(this.offsets, capacity + 1);
+		this.hashes = Arrays.copyOf(this.hashes, capacity);
+		this.values = Arrays.copyOf(this.values, capacity);
+	}
+
+	private void rehash(int tableSize) {
+		this.table = new int[tableSize];
+		this.mask = tableSize - 1;
+		for (int t = 0; t < this.size; t++) {
+			int slot = this.hashes[t] & this.mask;
+			while (this.table[slot] != 0)
+				slot = (slot + 1) & this.mask;
+			this.table[slot] = t + 1;
+		}
+	}
+
+	/**
+	 *
+	 * @return power of two table size keeping the load at most 0.5
+	 */
+	private static int tableSize(int expectedSize) {
+		int n = Integer.highestOneBit(Math.max(expectedSize, 2) - 1) << 2;
+		return Math.max(n, 8);
+	}
+
+	/**
+	 * String hash of the chars spread by the murmur3 finalizer, so the
+	 * low bits used for the slot depend on every char
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	static int hash(char[] buffer, int offset, int length) {
+		int h = 0;
+		for (int i = offset; i < offset + length; i++)
+			h = 31 * h + buffer[i];
+		return mix(h);
+	}
+
+	static int hash(CharSequence term) {
+		int h = 0;
+		for (int i = 0; i < term.length(); i++)
+			h = 31 * h + term.charAt(i);
+		return mix(h);
+	}
+}
@@ -0,0 +1,106 @@
+package no.jetpie.ml.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory MetricsRegistry: a LatencyHistogram per stage, an adder
+ * per counter and an adder per predicted category. Recording never
+ * locks; cheap enough to stay on in production.
+ *
+ * <pre>
+ *   InferenceMetrics metrics = new InferenceMetrics();
+ *   model.setMetrics(metrics);
+ *   ...
+ *   System.out.println(metrics);
+ * </pre>
+ */
+public class InferenceMetrics implements MetricsRegistry {
+
+	/** latency histograms by stage ordinal */
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Stage.values().length];
+	/** counters by counter ordinal */
+	private final LongAdder[] counters = new LongAdder[Counter.values().length];
+	/** number of predictions by category */
+	private final ConcurrentHashMap<String, LongAdder> categories =
+			new ConcurrentHashMap<String, LongAdder>();
+
+	public InferenceMetrics() {
+		for (int i = 0; i < this.latencies.length; i++)
+			this.latencies[i] = new LatencyHistogram();
+		for (int i = 0; i < this.counters.length; i++)
+			this.counters[i] = new LongAdder();
+	}
+
+	public void recordLatency(Stage stage, long nanos) {
+		this.latencies[stage.ordinal()].record(nanos);
+	}
+
+	public void increment(Counter counter, long n) {
+		this.counters[counter.ordinal()].add(n);
+	}
+
+	public void recordCategory(String category) {
+		LongAdder n = this.categories.get(category);
+		if (n == null) {
+			LongAdder created = new LongAdder();
+			n = this.categories.putIfAbsent(category, created);
+			if (n == null)
+				n = created;
+		}
+		n.increment();
+	}
+
+	/**
+	 *
+	 * @param stage
+	 * 		timed stage
+	 * @return latency histogram of the stage
+	 */
+	public LatencyHistogram getLatency(Stage stage) {
+		return this.latencies[stage.ordinal()];
+	}
+
+	/**
+	 *
+	 * @param counter
+	 * 		counted event
+	 * @return number of events
+	 */
+	public long getCount(Counter counter) {
+		return this.counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 *
+	 * @return number of predictions by category, sorted by name
+	 */
+	public Map<String, Long> getCategoryCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : this.categories.entrySet())
+			counts.put(e.getKey(), e.getValue().sum());
+		return counts;
+	}
+
+	/**
+	 *
+	 * @return fraction of the n-grams out of the vocabulary
+	 */
+	public double getUnknownRate() {
+		long tokens = this.getCount(Counter.TOKENS);
+		return tokens == 0 ? 0 : (double) this.getCount(Counter.UNKNOWN_TOKENS) / tokens;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Stage stage : Stage.values())
+			sb.append(stage).append(": ").append(this.getLatency(stage)).append('\n');
+		for (Counter counter : Counter.values())
+			sb.append(counter).append(": ").append(this.getCount(counter)).append('\n');
+		sb.append("CATEGORIES: ").append(this.categories.size());
+		return sb.toString();
+	}
+}
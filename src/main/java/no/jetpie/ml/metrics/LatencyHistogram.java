@@ -0,0 +1,145 @@
+package no.jetpie.ml.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds.
+ *
+ * Buckets are log-linear: each power of two is split into SUB_BUCKETS
+ * buckets, so a reported percentile is at most 1 / SUB_BUCKETS above
+ * the true value, from 1ns up to about 18 minutes. Recording is one
+ * atomic increment of a fixed array plus an adder, without lock or
+ * allocation, so any number of threads can record at the same time;
+ * reads are a consistent enough view for monitoring, not a snapshot.
+ */
+public class LatencyHistogram {
+
+	/** log2 of the number of buckets per power of two */
+	private static final int SUB_BITS = 3;
+	/** number of buckets per power of two */
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** largest power of two recorded, larger values go to the last bucket */
+	private static final int MAX_EXPONENT = 40;
+	/** number of buckets */
+	private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+	/** number of values by bucket */
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	/** sum of the values */
+	private final LongAdder sum = new LongAdder();
+	/** largest value */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 *
+	 * @param nanos
+	 * 		latency to add, negative values count as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		this.counts.incrementAndGet(bucket(nanos));
+		this.sum.add(nanos);
+		long m = this.max.get();
+		while (nanos > m && !this.max.compareAndSet(m, nanos))
+			m = this.max.get();
+	}
+
+	/**
+	 *
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		long n = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			n += this.counts.get(i);
+		return n;
+	}
+
+	/**
+	 *
+	 * @return mean of the recorded values, 0 if none
+	 */
+	public double getMean() {
+		long n = this.getCount();
+		return n == 0 ? 0 : this.sum.sum() / (double) n;
+	}
+
+	/**
+	 *
+	 * @return largest recorded value
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 *
+	 * @param p
+	 * 		percentile in [0, 100]
+	 * @return upper bound of the bucket holding the percentile, 0 if
+	 * 		nothing is recorded
+	 */
+	public long getPercentile(double p) {
+		long[] snapshot = new long[NUM_BUCKETS];
+		long n = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = this.counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), this.max.get());
+		}
+		return this.max.get();
+	}
+
+	/**
+	 *
+	 * @return bucket of a non negative value
+	 */
+	static int bucket(long v) {
+		if (v < SUB_BUCKETS)
+			return (int) v;
+		int e = 63 - Long.numberOfLeadingZeros(v);
+		if (e > MAX_EXPONENT)
+			return NUM_BUCKETS - 1;
+		int sub = (int) (v >>> (e - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (e - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 *
+	 * @return smallest value of a bucket
+	 */
+	static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int e = bucket / SUB_BUCKETS - 1 + SUB_BITS;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (e - SUB_BITS);
+	}
+
+	/**
+	 *
+	 * @return largest value of a bucket
+	 */
+	static long upperBound(int bucket) {
+		return bucket == NUM_BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+				this.getCount(), this.getMean() / 1000, this.getPercentile(50) / 1000.0,
+				this.getPercentile(99) / 1000.0, this.getPercentile(99.9) / 1000.0,
+				this.getMax() / 1000.0);
+	}
+}
@@ -0,0 +1,65 @@
+package no.jetpie.ml.metrics;
+
+/**
+ * Receiver of the inference metrics of a model.
+ *
+ * The methods are called on the prediction threads for every scored
+ * document, so an implementation must be thread-safe and cheap: no
+ * lock, no allocation. InferenceMetrics keeps them in memory; another
+ * implementation can forward them to a monitoring system.
+ */
+public interface MetricsRegistry {
+
+	/** timed stages of a prediction */
+	enum Stage {
+		/** tokenize, vocabulary lookup, idf and l2 normalization */
+		VECTORIZE,
+		/** log prior + sparse feature rows of the table */
+		JOINT_LOG_LIKELIHOOD,
+		/** log exp sum of the row */
+		NORMALIZE,
+		/** argmax with rule, threshold and stop list checks */
+		ARGMAX,
+		/** the whole prediction */
+		PREDICT
+	}
+
+	/** counted events */
+	enum Counter {
+		/** scored documents */
+		DOCUMENTS,
+		/** n-grams of the documents */
+		TOKENS,
+		/** n-grams out of the vocabulary */
+		UNKNOWN_TOKENS,
+		/** predictions without label */
+		NULL_PREDICTIONS,
+		/** best categories failing their threshold or stop flag */
+		THRESHOLD_REJECTIONS
+	}
+
+	/**
+	 *
+	 * @param stage
+	 * 		timed stage
+	 * @param nanos
+	 * 		time of the stage for one document
+	 */
+	void recordLatency(Stage stage, long nanos);
+
+	/**
+	 *
+	 * @param counter
+	 * 		counted event
+	 * @param n
+	 * 		number of events
+	 */
+	void increment(Counter counter, long n);
+
+	/**
+	 *
+	 * @param category
+	 * 		predicted category, not null
+	 */
+	void recordCategory(String category);
+}
@@ -0,0 +1,333 @@
+package no.jetpie.ml.model.nb;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Coalesces single document predictions of many threads into batches
+ * taken by a few worker threads, one CompletableFuture per document.
+ * A worker vectorizes its batch into the batch rows of its scoring
+ * buffers and scores them with one call of the blocked kernel of the
+ * table, which reads a feature row shared by several documents once;
+ * a batch of one document takes the single document path. With a
+ * cache or metrics on the model the documents are scored one by one
+ * through them.
+ *
+ * Worker threads take the queued documents: a batch is whatever came
+ * while the previous batch was scored, up to maxBatchSize. A worker
+ * only waits for more documents, at most maxWaitMicros after the
+ * oldest one arrived, when the smoothed time between arrivals says the
+ * next document is due within that wait. So under low load every
+ * document is scored at once, alone, and under high load batches grow
+ * by themselves up to maxBatchSize.
+ *
+ * <pre>
+ *   BatchingDispatcher dispatcher = new BatchingDispatcher(model);
+ *   dispatcher.start();
+ *   CompletableFuture&lt;String&gt; label = dispatcher.submit(document, 0);
+ *   ...
+ *   dispatcher.close();
+ * </pre>
+ *
+ * The labels are the ones of NaiveBayes.predict(String, int).
+ */
+public class BatchingDispatcher implements Closeable {
+
+	/** weight of the last time between arrivals in the smoothed one */
+	private static final double ARRIVAL_WEIGHT = 0.125;
+	/** marks the end of the queue for a worker */
+	private static final Request STOP = new Request(null, 0);
+
+	/** model to predict with */
+	private final NaiveBayes model;
+	/** number of worker threads */
+	private int threads = Runtime.getRuntime().availableProcessors();
+	/** maximum number of documents of a batch */
+	private int maxBatchSize = 64;
+	/** longest wait for more documents after the oldest one arrived */
+	private long maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(200);
+	/** maximum number of queued documents */
+	private int queueCapacity = 10000;
+
+	private BlockingQueue<Request> queue;
+	private Thread[] workers;
+	private volatile boolean running;
+
+	/** arrival time of the last document */
+	private final AtomicLong lastArrival = new AtomicLong();
+	/** smoothed time between arrivals in nanoseconds */
+	private volatile double interArrivalNanos = Double.MAX_VALUE;
+	/** scored batches */
+	private final LongAdder batches = new LongAdder();
+	/** scored documents */
+	private final LongAdder documents = new LongAdder();
+
+	/**
+	 * @param model
+	 * 		initialized model
+	 */
+	public BatchingDispatcher(NaiveBayes model) {
+		this.model = Preconditions.checkNotNull(model);
+	}
+
+	public void setThreads(int threads) {
+		Preconditions.checkArgument(threads > 0, "threads must be positive", threads);
+		this.threads = threads;
+	}
+
+	/**
+	 * @param maxBatchSize
+	 * 		maximum number of documents scored together
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		Preconditions.checkArgument(maxBatchSize > 0, "batch size must be positive",
+				maxBatchSize);
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @param maxWaitMicros
+	 * 		longest delay added to a document to fill its batch, 0 to
+	 * 		never wait
+	 */
+	public void setMaxWaitMicros(long maxWaitMicros) {
+		Preconditions.checkArgument(maxWaitMicros >= 0, "wait must not be negative",
+				maxWaitMicros);
+		this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+	}
+
+	/**
+	 * @param queueCapacity
+	 * 		maximum number of queued documents, a document beyond is
+	 * 		rejected
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		Preconditions.checkArgument(queueCapacity > 0, "queue capacity must be positive",
+				queueCapacity);
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * start the worker threads
+	 */
+	public synchronized void start() {
+		Preconditions.checkState(!this.running, "dispatcher is already started!");
+		this.queue = new LinkedBlockingQueue<Request>(this.queueCapacity);
+		this.workers = new Thread[this.threads];
+		this.running = true;
+		for (int i = 0; i < this.workers.length; i++) {
+			this.workers[i] = new Thread(new Runnable() {
+				public void run() {
+					BatchingDispatcher.this.work();
+				}
+			}, "nb-dispatcher-" + i);
+			this.workers[i].setDaemon(true);
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * stop taking documents, score the queued ones and wait for the
+	 * workers
+	 */
+	public void close() {
+		synchronized (this) {
+			if (!this.running)
+				return;
+			this.running = false;
+		}
+		try {
+			// behind the queued documents, one per worker
+			for (int i = 0; i < this.workers.length; i++)
+				this.queue.put(STOP);
+			for (Thread worker : this.workers)
+				worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// submitted while closing, behind the STOPs
+		Request r;
+		while ((r = this.queue.poll()) != null) {
+			if (r != STOP)
+				r.future.completeExceptionally(
+						new RejectedExecutionException("dispatcher is closed"));
+		}
+	}
+
+	/**
+	 *
+	 * @param document
+	 * 		Single document of tokens separated by whitespace
+	 * @param state
+	 * 		state of the document
+	 * @return predicted category, null if none, once its batch is
+	 * 		scored; failed with RejectedExecutionException if the
+	 * 		dispatcher is closed or its queue is full
+	 */
+	public CompletableFuture<String> submit(String document, int state) {
+		Preconditions.checkNotNull(document);
+		Request request = new Request(document, state);
+		if (!this.running) {
+			request.future.completeExceptionally(
+					new RejectedExecutionException("dispatcher is not running"));
+			return request.future;
+		}
+		long previous = this.lastArrival.getAndSet(request.arrival);
+		if (previous != 0) {
+			// racy update, an estimate is enough
+			double smoothed = this.interArrivalNanos;
+			long gap = Math.max(0, request.arrival - previous);
+			this.interArrivalNanos = smoothed == Double.MAX_VALUE ? gap
+					: smoothed + ARRIVAL_WEIGHT * (gap - smoothed);
+		}
+		if (!this.queue.offer(request)) {
+			request.future.completeExceptionally(
+					new RejectedExecutionException("dispatcher queue is full"));
+		} else if (!this.running && this.queue.remove(request)) {
+			// closed since the check, after the queue was drained
+			request.future.completeExceptionally(
+					new RejectedExecutionException("dispatcher is closed"));
+		}
+		return request.future;
+	}
+
+	/**
+	 *
+	 * @return number of scored batches
+	 */
+	public long getBatches() {
+		return this.batches.sum();
+	}
+
+	/**
+	 *
+	 * @return number of scored documents
+	 */
+	public long getDocuments() {
+		return this.documents.sum();
+	}
+
+	/**
+	 *
+	 * @return mean number of documents per batch
+	 */
+	public double getMeanBatchSize() {
+		long n = this.getBatches();
+		return n == 0 ? 0 : (double) this.getDocuments() / n;
+	}
+
+	/**
+	 * take batches until a STOP
+	 */
+	private void work() {
+		List<Request> batch = new ArrayList<Request>(this.maxBatchSize);
+		while (true) {
+			Request first;
+			try {
+				first = this.queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (first == STOP)
+				break;
+			batch.add(first);
+			boolean stop = this.fill(batch, first.arrival);
+			this.score(batch);
+			batch.clear();
+			if (stop)
+				break;
+		}
+	}
+
+	/**
+	 * add the queued documents to the batch, waiting for more while the
+	 * next one is due before the deadline of the oldest
+	 *
+	 * @return true if a STOP was taken
+	 */
+	private boolean fill(List<Request> batch, long oldestArrival) {
+		long deadline = oldestArrival + this.maxWaitNanos;
+		while (batch.size() < this.maxBatchSize) {
+			Request next = this.queue.poll();
+			if (next == null) {
+				long remaining = deadline - System.nanoTime();
+				// the next document would come too late, score now
+				if (remaining <= 0 || this.interArrivalNanos > remaining)
+					break;
+				try {
+					next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (next == null)
+					break;
+			}
+			if (next == STOP)
+				return true;
+			batch.add(next);
+		}
+		return false;
+	}
+
+	/**
+	 * score a batch and complete its futures; if the batch fails its
+	 * documents are scored one by one, so a failing document fails only
+	 * its own future
+	 */
+	private void score(List<Request> batch) {
+		this.batches.increment();
+		this.documents.add(batch.size());
+		if (batch.size() > 1) {
+			List<String> docs = new ArrayList<String>(batch.size());
+			int[] states = new int[batch.size()];
+			for (int i = 0; i < batch.size(); i++) {
+				docs.add(batch.get(i).document);
+				states[i] = batch.get(i).state;
+			}
+			List<String> labels = null;
+			try {
+				labels = this.model.predictBatch(docs, states);
+			} catch (RuntimeException e) {
+				// scored one by one below, to fail only the bad document
+			}
+			if (labels != null) {
+				for (int i = 0; i < batch.size(); i++)
+					batch.get(i).future.complete(labels.get(i));
+				return;
+			}
+		}
+		for (Request r : batch) {
+			try {
+				r.future.complete(this.model.predict(r.document, r.state));
+			} catch (RuntimeException e) {
+				r.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * a queued document
+	 */
+	private static final class Request {
+		final String document;
+		final int state;
+		final long arrival = System.nanoTime();
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+
+		Request(String document, int state) {
+			this.document = document;
+			this.state = state;
+		}
+	}
+}
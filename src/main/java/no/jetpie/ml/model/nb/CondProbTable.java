@@ -0,0 +1,243 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.Arrays;
+
+import no.uib.cipr.matrix.AbstractMatrix;
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.sparse.CompRowMatrix;
+import no.jetpie.ml.feature.FeatureVector;
+
+/**
+ * Read-only numFeatures * numCats table of log conditional
+ * probabilities in feature-major layout: the numCats values of a
+ * feature are contiguous with stride numCats, so scoring a document
+ * is a gather-and-accumulate over the rows of its non-zero features
+ * only, instead of a generic sparse * dense product.
+ *
+ * Subclasses provide the storage and the row kernel, addRow().
+ * Compact storages may accumulate in their own scale and map the
+ * sums back to log probabilities once per document in finishRow().
+ */
+public abstract class CondProbTable extends AbstractMatrix {
+
+	/** bytes of the score block of the batch kernel, sized for L2 */
+	static final int BLOCK_BYTES = 1 << 18;
+
+	/**
+	 *
+	 * @param numFeatures
+	 * 		number of features
+	 * @param numCats
+	 * 		number of categories
+	 */
+	protected CondProbTable(int numFeatures, int numCats) {
+		super(numFeatures, numCats);
+	}
+
+	/**
+	 * acc[offset + j] += value * table[feature][j] for every category j
+	 *
+	 * @param feature
+	 * 		feature row
+	 * @param value
+	 * 		weight of the feature
+	 * @param acc
+	 * 		accumulator
+	 * @param offset
+	 * 		position of category 0 in acc
+	 */
+	protected abstract void addRow(int feature, double value, double[] acc, int offset);
+
+	/**
+	 * turn the sums of addRow into log likelihoods, called once per
+	 * document after all its features are added
+	 *
+	 * @param acc
+	 * 		accumulator
+	 * @param offset
+	 * 		position of category 0 in acc
+	 * @param valueSum
+	 * 		sum of the feature weights of the document
+	 */
+	protected void finishRow(double[] acc, int offset, double valueSum) {
+	}
+
+	/**
+	 *
+	 * @return storage precision of the values
+	 */
+	public abstract Precision getPrecision();
+
+	/**
+	 *
+	 * @return bytes used by the values
+	 */
+	public long sizeInBytes() {
+		return (long) this.numRows * this.numColumns * this.getPrecision().bytes();
+	}
+
+	/**
+	 * copy a table into a new heap table of the given precision
+	 *
+	 * @param table
+	 * 		source table
+	 * @param precision
+	 * 		precision of the copy
+	 * @return the copy
+	 */
+	public static CondProbTable copyOf(CondProbTable table, Precision precision) {
+		switch (precision) {
+		case FLOAT:
+			return new FloatCondProbTable(table);
+		case INT16:
+			return new Int16CondProbTable(table);
+		case INT8:
+			return new Int8CondProbTable(table);
+		default:
+			return new DoubleCondProbTable(table);
+		}
+	}
+
+	@Override
+	public void set(int feature, int cat, double value) {
+		throw new UnsupportedOperationException("CondProbTable is read-only");
+	}
+
+	/**
+	 * add value * row(feature) to every category of jil for each
+	 * entry of the document, in ascending column order
+	 *
+	 * @param x
+	 * 		feature vector of the document
+	 * @param jil
+	 * 		size = nCats row to accumulate into
+	 */
+	public void accumulate(FeatureVector x, double[] jil) {
+		double valueSum = 0;
+		for (int i = 0; i < x.size(); i++) {
+			this.addRow(x.index(i), x.get(i), jil, 0);
+			valueSum += x.get(i);
+		}
+		this.finishRow(jil, 0, valueSum);
+	}
+
+	/**
+	 * jil += X * table for a batch of documents.
+	 *
+	 * Rows are scored in blocks whose scores fit in cache. Inside a
+	 * block the entries are visited by feature, so a feature row
+	 * shared by several documents is read once while it is hot. Each
+	 * document still sums its features in ascending column order, the
+	 * order X.mult uses, so the results are the same.
+	 *
+	 * @param X
+	 * 		nDocs * nFeatures document-feature matrix
+	 * @param jil
+	 * 		nDocs * nCats matrix to accumulate into
+	 */
+	public void accumulate(CompRowMatrix X, DenseMatrix jil) {
+		int[] rowPtr = X.getRowPointers();
+		int[] columns = X.getColumnIndices();
+		double[] values = X.getData();
+		double[] out = jil.getData();
+		int numRows = X.numRows();
+		int numCats = this.numColumns;
+
+		int blockRows = Math.max(1, BLOCK_BYTES / (numCats * 8));
+		double[] block = new double[Math.min(blockRows, numRows) * numCats];
+		long[] order = new long[0];
+		int[] entryRow = new int[0];
+		for (int r0 = 0; r0 < numRows; r0 += blockRows) {
+			int r1 = Math.min(r0 + blockRows, numRows);
+			int n = rowPtr[r1] - rowPtr[r0];
+			if (order.length < n) {
+				order = new long[n];
+				entryRow = new int[n];
+			}
+			Arrays.fill(block, 0, (r1 - r0) * numCats, 0);
+			this.accumulateBlock(rowPtr, columns, values, r0, r1, block, 0, order, entryRow);
+
+			// scatter the block into the column major result
+			for (int j = 0; j < numCats; j++) {
+				int col = j * numRows;
+				for (int r = r0; r < r1; r++)
+					out[col + r] += block[(r - r0) * numCats + j];
+			}
+		}
+	}
+
+	/**
+	 * accumulate(CompRowMatrix, DenseMatrix) on the arrays of a CSR
+	 * batch, into a row major result: row r of the documents is
+	 * jil[r * numCats] to jil[r * numCats + numCats - 1]
+	 *
+	 * @param rowPtr
+	 * 		first entry of each row, then the end of the last one
+	 * @param columns
+	 * 		feature of each entry, ascending in a row
+	 * @param values
+	 * 		weight of each entry
+	 * @param numRows
+	 * 		number of documents
+	 * @param jil
+	 * 		numRows * nCats row major scores to accumulate into
+	 */
+	public void accumulate(int[] rowPtr, int[] columns, double[] values, int numRows,
+			double[] jil) {
+		int numCats = this.numColumns;
+		int blockRows = Math.max(1, BLOCK_BYTES / (numCats * 8));
+		long[] order = new long[0];
+		int[] entryRow = new int[0];
+		for (int r0 = 0; r0 < numRows; r0 += blockRows) {
+			int r1 = Math.min(r0 + blockRows, numRows);
+			int n = rowPtr[r1] - rowPtr[r0];
+			if (order.length < n) {
+				order = new long[n];
+				entryRow = new int[n];
+			}
+			this.accumulateBlock(rowPtr, columns, values, r0, r1, jil, r0 * numCats,
+					order, entryRow);
+		}
+	}
+
+	/**
+	 * add the rows r0 to r1 of a CSR batch into acc, row r at
+	 * offset + (r - r0) * numCats, visiting the entries by feature
+	 *
+	 * @param order
+	 * 		scratch of at least the number of entries of the rows
+	 * @param entryRow
+	 * 		scratch of at least the number of entries of the rows
+	 */
+	private void accumulateBlock(int[] rowPtr, int[] columns, double[] values, int r0, int r1,
+			double[] acc, int offset, long[] order, int[] entryRow) {
+		int numCats = this.numColumns;
+		int from = rowPtr[r0];
+		int n = rowPtr[r1] - from;
+		if (r1 - r0 == 1) {
+			for (int e = from; e < from + n; e++)
+				this.addRow(columns[e], values[e], acc, offset);
+		} else {
+			for (int r = r0; r < r1; r++) {
+				for (int e = rowPtr[r]; e < rowPtr[r + 1]; e++)
+					entryRow[e - from] = r - r0;
+			}
+			// sort by (feature, entry), entries of a row keep their order
+			for (int e = 0; e < n; e++)
+				order[e] = ((long) columns[from + e] << 32) | e;
+			Arrays.sort(order, 0, n);
+			for (int i = 0; i < n; i++) {
+				int e = (int) order[i];
+				this.addRow((int) (order[i] >>> 32), values[from + e],
+						acc, offset + entryRow[e] * numCats);
+			}
+		}
+
+		for (int r = r0; r < r1; r++) {
+			double valueSum = 0;
+			for (int e = rowPtr[r]; e < rowPtr[r + 1]; e++)
+				valueSum += values[e];
+			this.finishRow(acc, offset + (r - r0) * numCats, valueSum);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package no.jetpie.ml.model.nb;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * CondProbTable stored in one contiguous heap array,
+ * data[feature * numCats + category].
+ */
+public class DoubleCondProbTable extends CondProbTable {
+
+	/** loop of the row accumulation */
+	private static final ScoringKernel KERNEL = ScoringKernel.get();
+
+	/** feature-major values */
+	private final double[] data;
+
+	/**
+	 *
+	 * @param data
+	 * 		feature-major values, data[feature * numCats + category]
+	 * @param numFeatures
+	 * 		number of features
+	 * @param numCats
+	 * 		number of categories
+	 */
+	public DoubleCondProbTable(double[] data, int numFeatures, int numCats) {
+		super(numFeatures, numCats);
+		Preconditions.checkArgument(data.length == (long) numFeatures * numCats,
+				"table size does not match numFeatures * numCats", data.length);
+		this.data = data;
+	}
+
+	/**
+	 *
+	 * @param table
+	 * 		table to copy
+	 */
+	public DoubleCondProbTable(CondProbTable table) {
+		super(table.numRows(), table.numColumns());
+		long size = (long) this.numRows * this.numColumns;
+		Preconditions.checkArgument(size <= Integer.MAX_VALUE,
+				"table is too large for double precision", size);
+		this.data = new double[(int) size];
+		for (int k = 0; k < this.numRows; k++) {
+			for (int j = 0; j < this.numColumns; j++)
+				this.data[k * this.numColumns + j] = table.get(k, j);
+		}
+	}
+
+	@Override
+	public double get(int feature, int cat) {
+		return this.data[feature * this.numColumns + cat];
+	}
+
+	@Override
+	public Precision getPrecision() {
+		return Precision.DOUBLE;
+	}
+
+	@Override
+	protected void addRow(int feature, double value, double[] acc, int offset) {
+		KERNEL.axpy(value, this.data, feature * this.numColumns, acc, offset, this.numColumns);
+	}
+}
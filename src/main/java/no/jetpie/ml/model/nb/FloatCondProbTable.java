@@ -0,0 +1,48 @@
+package no.jetpie.ml.model.nb;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * CondProbTable stored as 32 bit floats in one contiguous heap array,
+ * data[feature * numCats + category]. Scores are still accumulated in
+ * double.
+ */
+public class FloatCondProbTable extends CondProbTable {
+
+	/** feature-major values */
+	private final float[] data;
+
+	/**
+	 *
+	 * @param table
+	 * 		table to copy
+	 */
+	public FloatCondProbTable(CondProbTable table) {
+		super(table.numRows(), table.numColumns());
+		long size = (long) this.numRows * this.numColumns;
+		Preconditions.checkArgument(size <= Integer.MAX_VALUE,
+				"table is too large for float precision", size);
+		this.data = new float[(int) size];
+		for (int k = 0; k < this.numRows; k++) {
+			for (int j = 0; j < this.numColumns; j++)
+				this.data[k * this.numColumns + j] = (float) table.get(k, j);
+		}
+	}
+
+	@Override
+	public double get(int feature, int cat) {
+		return this.data[feature * this.numColumns + cat];
+	}
+
+	@Override
+	public Precision getPrecision() {
+		return Precision.FLOAT;
+	}
+
+	@Override
+	protected void addRow(int feature, double value, double[] acc, int offset) {
+		int base = feature * this.numColumns;
+		for (int j = 0; j < this.numColumns; j++)
+			acc[offset + j] += value * this.data[base + j];
+	}
+}
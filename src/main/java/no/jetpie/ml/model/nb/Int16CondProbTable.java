@@ -0,0 +1,52 @@
+package no.jetpie.ml.model.nb;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * CondProbTable quantized to 16 bit integers with a scale per
+ * category, see QuantizedCondProbTable.
+ */
+public class Int16CondProbTable extends QuantizedCondProbTable {
+
+	/** largest absolute level */
+	private static final int MAX_LEVEL = Short.MAX_VALUE;
+
+	/** feature-major levels */
+	private final short[] data;
+
+	/**
+	 *
+	 * @param table
+	 * 		table to quantize
+	 */
+	public Int16CondProbTable(CondProbTable table) {
+		super(table, MAX_LEVEL);
+		long size = (long) this.numRows * this.numColumns;
+		Preconditions.checkArgument(size <= Integer.MAX_VALUE,
+				"table is too large for int16 precision", size);
+		this.data = new short[(int) size];
+		for (int k = 0; k < this.numRows; k++) {
+			for (int j = 0; j < this.numColumns; j++)
+				this.data[k * this.numColumns + j] =
+						(short) this.quantize(table.get(k, j), j, MAX_LEVEL);
+		}
+	}
+
+	@Override
+	public double get(int feature, int cat) {
+		return this.center[cat]
+				+ this.data[feature * this.numColumns + cat] * this.scale[cat];
+	}
+
+	@Override
+	public Precision getPrecision() {
+		return Precision.INT16;
+	}
+
+	@Override
+	protected void addRow(int feature, double value, double[] acc, int offset) {
+		int base = feature * this.numColumns;
+		for (int j = 0; j < this.numColumns; j++)
+			acc[offset + j] += value * this.data[base + j];
+	}
+}
@@ -0,0 +1,29 @@
+package no.jetpie.ml.model.nb;
+
+/**
+ * Progress of a model being loaded, e.g. to drive a progress bar or a
+ * readiness probe.
+ *
+ * Calls come from the loading threads but never at the same time, so
+ * an implementation needs no synchronization; it should return
+ * quickly, loading waits for it.
+ */
+public interface LoadListener {
+
+	/**
+	 *
+	 * @param file
+	 * 		counters of the file just loaded
+	 * @param filesDone
+	 * 		number of files loaded so far
+	 * @param filesTotal
+	 * 		number of files to load, known so far: it grows when the
+	 * 		loading reaches the next part of the model
+	 * @param bytesDone
+	 * 		bytes loaded so far
+	 * @param bytesTotal
+	 * 		bytes to load, known so far
+	 */
+	void fileLoaded(LoadReport.FileStats file, int filesDone, int filesTotal,
+			long bytesDone, long bytesTotal);
+}
@@ -0,0 +1,261 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * What loading a model read and how long it took: every file with its
+ * size, lines, time and unknown terms, the totals and throughput, the
+ * peak heap in use while loading and the size of the table.
+ *
+ * The peak heap is sampled after each file, so it is an estimate of
+ * what loading needs, garbage of other threads included. Unknown
+ * terms are lines of the conditional probability files whose term is
+ * not in the vocabulary; they are skipped.
+ */
+public class LoadReport {
+
+	/** unknown terms kept as examples */
+	static final int MAX_UNKNOWN_SAMPLES = 10;
+
+	/**
+	 * counters of one file
+	 */
+	public static final class FileStats {
+		private final String path;
+		private final long bytes;
+		private final long lines;
+		private final long nanos;
+		private final long unknownTerms;
+
+		FileStats(String path, long bytes, long lines, long nanos, long unknownTerms) {
+			this.path = path;
+			this.bytes = bytes;
+			this.lines = lines;
+			this.nanos = nanos;
+			this.unknownTerms = unknownTerms;
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+
+		public long getBytes() {
+			return this.bytes;
+		}
+
+		public long getLines() {
+			return this.lines;
+		}
+
+		/**
+		 *
+		 * @return time reading and parsing the file
+		 */
+		public long getNanos() {
+			return this.nanos;
+		}
+
+		public long getUnknownTerms() {
+			return this.unknownTerms;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d bytes, %d lines, %.1fms", this.path, this.bytes,
+					this.lines, this.nanos / 1e6);
+		}
+	}
+
+	/** loaded files, in the order they finished */
+	private final List<FileStats> files = new ArrayList<FileStats>();
+	/** first unknown terms met */
+	private final List<String> unknownSamples = new ArrayList<String>();
+	/** number of threads parsing the category files */
+	private final int threads;
+	/** receiver of the progress, null if none */
+	private final LoadListener listener;
+	/** number of files expected so far */
+	private int filesTotal;
+	/** bytes expected so far */
+	private long bytesTotal;
+	/** bytes of the loaded files */
+	private long bytesDone;
+	/** heap in use when loading started */
+	private final long startHeap;
+	/** largest heap in use seen while loading */
+	private long peakHeap;
+	/** bytes of the conditional probability table */
+	private long tableBytes;
+	/** wall clock time of the load */
+	private long nanos;
+
+	LoadReport(int threads, LoadListener listener) {
+		this.threads = threads;
+		this.listener = listener;
+		this.startHeap = usedHeap();
+		this.peakHeap = this.startHeap;
+	}
+
+	/**
+	 * announce files about to be loaded, for the progress totals
+	 */
+	synchronized void expect(int files, long bytes) {
+		this.filesTotal += files;
+		this.bytesTotal += bytes;
+	}
+
+	/**
+	 * add a loaded file, sample the heap and report the progress
+	 */
+	synchronized void add(FileStats file) {
+		this.files.add(file);
+		this.bytesDone += file.bytes;
+		this.peakHeap = Math.max(this.peakHeap, usedHeap());
+		if (this.listener != null)
+			this.listener.fileLoaded(file, this.files.size(),
+					Math.max(this.filesTotal, this.files.size()), this.bytesDone,
+					Math.max(this.bytesTotal, this.bytesDone));
+	}
+
+	synchronized void addUnknown(String term) {
+		if (this.unknownSamples.size() < MAX_UNKNOWN_SAMPLES)
+			this.unknownSamples.add(term);
+	}
+
+	synchronized void finish(long nanos, long tableBytes) {
+		this.nanos = nanos;
+		this.tableBytes = tableBytes;
+		this.peakHeap = Math.max(this.peakHeap, usedHeap());
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 *
+	 * @return loaded files, in the order they finished
+	 */
+	public synchronized List<FileStats> getFiles() {
+		return new ArrayList<FileStats>(this.files);
+	}
+
+	/**
+	 *
+	 * @param n
+	 * 		number of files
+	 * @return the n largest files, largest first
+	 */
+	public List<FileStats> getLargestFiles(int n) {
+		List<FileStats> sorted = this.getFiles();
+		Collections.sort(sorted, new Comparator<FileStats>() {
+			public int compare(FileStats a, FileStats b) {
+				return Long.compare(b.bytes, a.bytes);
+			}
+		});
+		return sorted.subList(0, Math.min(n, sorted.size()));
+	}
+
+	public synchronized long getBytes() {
+		long n = 0;
+		for (FileStats f : this.files)
+			n += f.bytes;
+		return n;
+	}
+
+	public synchronized long getLines() {
+		long n = 0;
+		for (FileStats f : this.files)
+			n += f.lines;
+		return n;
+	}
+
+	/**
+	 *
+	 * @return number of skipped lines whose term is not in the
+	 * 		vocabulary
+	 */
+	public synchronized long getUnknownTerms() {
+		long n = 0;
+		for (FileStats f : this.files)
+			n += f.unknownTerms;
+		return n;
+	}
+
+	/**
+	 *
+	 * @return the first unknown terms met, at most MAX_UNKNOWN_SAMPLES
+	 */
+	public synchronized List<String> getUnknownSamples() {
+		return new ArrayList<String>(this.unknownSamples);
+	}
+
+	/**
+	 *
+	 * @return wall clock time of the load
+	 */
+	public synchronized long getNanos() {
+		return this.nanos;
+	}
+
+	/**
+	 *
+	 * @return lines per second of the whole load
+	 */
+	public double getLinesPerSecond() {
+		long nanos = this.getNanos();
+		return nanos == 0 ? 0 : this.getLines() * 1e9 / nanos;
+	}
+
+	/**
+	 *
+	 * @return bytes per second of the whole load
+	 */
+	public double getBytesPerSecond() {
+		long nanos = this.getNanos();
+		return nanos == 0 ? 0 : this.getBytes() * 1e9 / nanos;
+	}
+
+	/**
+	 *
+	 * @return estimate of the heap loading needed on top of what was in
+	 * 		use before
+	 */
+	public synchronized long getPeakMemoryEstimate() {
+		return Math.max(0, this.peakHeap - this.startHeap);
+	}
+
+	/**
+	 *
+	 * @return bytes of the conditional probability table
+	 */
+	public synchronized long getTableBytes() {
+		return this.tableBytes;
+	}
+
+	public int getThreads() {
+		return this.threads;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(String.format(
+				"%d files, %.1fMB, %d lines in %dms (%.0f lines/s, %.1fMB/s, %d threads), "
+				+ "table %.1fMB, peak heap +%.1fMB, %d unknown terms",
+				this.getFiles().size(), this.getBytes() / 1048576.0, this.getLines(),
+				this.getNanos() / 1000000, this.getLinesPerSecond(),
+				this.getBytesPerSecond() / 1048576.0, this.threads,
+				this.getTableBytes() / 1048576.0, this.getPeakMemoryEstimate() / 1048576.0,
+				this.getUnknownTerms()));
+		List<String> samples = this.getUnknownSamples();
+		if (!samples.isEmpty())
+			sb.append(' ').append(samples);
+		for (FileStats f : this.getLargestFiles(3))
+			sb.append("\n  ").append(f);
+		return sb.toString();
+	}
+}
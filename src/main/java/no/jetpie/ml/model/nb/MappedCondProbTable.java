@@ -0,0 +1,66 @@
+package no.jetpie.ml.model.nb;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * CondProbTable backed by DoubleBuffers mapped from a binary model
+ * file. A single mapping is limited to 2GB, so large tables are split
+ * into segments of whole feature rows.
+ */
+public class MappedCondProbTable extends CondProbTable {
+
+	/** maximum number of bytes in one segment */
+	static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+	/** feature rows, rowsPerSegment rows each */
+	private final DoubleBuffer[] segments;
+	/** number of feature rows in a segment */
+	private final int rowsPerSegment;
+
+	/**
+	 *
+	 * @param segments
+	 * 		feature-major segments of rowsPerSegment rows each
+	 * @param rowsPerSegment
+	 * 		number of feature rows in a segment
+	 * @param numFeatures
+	 * 		number of features
+	 * @param numCats
+	 * 		number of categories
+	 */
+	MappedCondProbTable(DoubleBuffer[] segments, int rowsPerSegment,
+			int numFeatures, int numCats) {
+		super(numFeatures, numCats);
+		this.segments = segments;
+		this.rowsPerSegment = rowsPerSegment;
+	}
+
+	/**
+	 *
+	 * @param numCats
+	 * 		number of categories
+	 * @return number of feature rows fitting in one segment
+	 */
+	static int rowsPerSegment(int numCats) {
+		return Math.max(1, MAX_SEGMENT_BYTES / (numCats * 8));
+	}
+
+	@Override
+	public double get(int feature, int cat) {
+		return this.segments[feature / this.rowsPerSegment]
+				.get((feature % this.rowsPerSegment) * this.numColumns + cat);
+	}
+
+	@Override
+	public Precision getPrecision() {
+		return Precision.DOUBLE;
+	}
+
+	@Override
+	protected void addRow(int feature, double value, double[] acc, int offset) {
+		DoubleBuffer segment = this.segments[feature / this.rowsPerSegment];
+		int base = (feature % this.rowsPerSegment) * this.numColumns;
+		for (int j = 0; j < this.numColumns; j++)
+			acc[offset + j] += value * segment.get(base + j);
+	}
+}
@@ -0,0 +1,17 @@
+package no.jetpie.ml.model.nb;
+
+/**
+ * Arithmetic of the probability normalization: the log exp sum of the
+ * rows and the exp of predictProba
+ */
+public enum MathMode {
+	/** Math.exp and Math.log */
+	EXACT,
+	/**
+	 * FastMath.exp and FastMath.log, within FastMath.MAX_EXP_ERROR and
+	 * FastMath.MAX_LOG_ERROR. The row keeps its order, so only rounding
+	 * ties may change the argmax category, and only a probability
+	 * within about 1e-15 of its threshold may be decided the other way
+	 */
+	FAST
+}
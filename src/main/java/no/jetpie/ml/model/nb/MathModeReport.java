@@ -0,0 +1,126 @@
+package no.jetpie.ml.model.nb;
+
+/**
+ * Decisions and errors of a math mode against the exact mode,
+ * measured on a sample of documents
+ */
+public class MathModeReport {
+
+	/** measured math mode */
+	private final MathMode mode;
+	/** number of sample documents */
+	private int numDocs;
+	/** documents with the same argmax category */
+	private int argmaxAgreed;
+	/** documents with the same prediction after threshold checks */
+	private int predictionAgreed;
+	/** largest error of a normalized LOG probability */
+	private double maxLogError;
+	/** largest error of a probability */
+	private double maxProbaError;
+
+	MathModeReport(MathMode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * add one sample document
+	 *
+	 * @param exact
+	 * 		normalized LOG probabilities of the exact mode
+	 * @param approx
+	 * 		normalized LOG probabilities of the measured mode
+	 * @param exactProba
+	 * 		probabilities of the exact mode
+	 * @param approxProba
+	 * 		probabilities of the measured mode
+	 * @param exactArgmax
+	 * 		argmax category of the exact mode
+	 * @param approxArgmax
+	 * 		argmax category of the measured mode
+	 * @param exactLabel
+	 * 		prediction of the exact mode
+	 * @param approxLabel
+	 * 		prediction of the measured mode
+	 */
+	void add(double[] exact, double[] approx, double[] exactProba, double[] approxProba,
+			int exactArgmax, int approxArgmax, String exactLabel, String approxLabel) {
+		this.numDocs++;
+		if (exactArgmax == approxArgmax)
+			this.argmaxAgreed++;
+		if (exactLabel == null ? approxLabel == null : exactLabel.equals(approxLabel))
+			this.predictionAgreed++;
+		for (int j = 0; j < exactProba.length; j++) {
+			this.maxLogError = Math.max(this.maxLogError, Math.abs(exact[j] - approx[j]));
+			this.maxProbaError = Math.max(this.maxProbaError,
+					Math.abs(exactProba[j] - approxProba[j]));
+		}
+	}
+
+	public MathMode getMode() {
+		return this.mode;
+	}
+
+	public int getNumDocs() {
+		return this.numDocs;
+	}
+
+	/**
+	 *
+	 * @return fraction of documents with the same argmax category
+	 */
+	public double getArgmaxAgreement() {
+		return this.numDocs == 0 ? 1 : (double) this.argmaxAgreed / this.numDocs;
+	}
+
+	/**
+	 *
+	 * @return fraction of documents with the same prediction, i.e. the
+	 * 		same threshold decision
+	 */
+	public double getPredictionAgreement() {
+		return this.numDocs == 0 ? 1 : (double) this.predictionAgreed / this.numDocs;
+	}
+
+	/**
+	 *
+	 * @return true if every sample document has the same argmax and
+	 * 		prediction in both modes
+	 */
+	public boolean isAgreed() {
+		return this.argmaxAgreed == this.numDocs && this.predictionAgreed == this.numDocs;
+	}
+
+	/**
+	 *
+	 * @return largest error of a normalized LOG probability
+	 */
+	public double getMaxLogError() {
+		return this.maxLogError;
+	}
+
+	/**
+	 *
+	 * @return largest error of a probability
+	 */
+	public double getMaxProbaError() {
+		return this.maxProbaError;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.mode).append(" math");
+		if (this.numDocs > 0) {
+			sb.append(", ").append(this.numDocs).append(" docs")
+					.append(", argmax agreement ")
+					.append(String.format("%.4f", this.getArgmaxAgreement()))
+					.append(", prediction agreement ")
+					.append(String.format("%.4f", this.getPredictionAgreement()))
+					.append(", max log proba/proba error ")
+					.append(String.format("%.3g/%.3g", this.maxLogError,
+							this.maxProbaError));
+		}
+		return sb.toString();
+	}
+}
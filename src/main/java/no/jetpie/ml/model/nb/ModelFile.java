@@ -0,0 +1,343 @@
+package no.jetpie.ml.model.nb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.google.common.base.Preconditions;
+
+import no.jetpie.ml.feature.TfidfVectorizer;
+import no.jetpie.ml.feature.VocabularyIndex;
+
+/**
+ * Single file binary format of a MultinomialNB model.
+ *
+ * The file is little endian and laid out as
+ * <pre>
+ *   header     magic, version, numFeatures, numCats, numTerms,
+ *              flags, offset of the table (32 bytes)
+ *   vocabulary per term: column, length, UTF-16 chars
+ *   idf        numFeatures doubles
+ *   categories per category: length, UTF-16 chars, threshold, used
+ *   table      numFeatures * numCats doubles, feature-major,
+ *              starting on a page boundary
+ * </pre>
+ * The table is memory mapped read-only instead of being copied into
+ * the heap, so loading costs only the vocabulary and JVMs mapping
+ * the same file share its pages in the page cache.
+ *
+ * The text model (vocabulary.model, log_proba/ and boundary.json)
+ * stays the import format, convert it with
+ * <pre>
+ *   java no.jetpie.ml.model.nb.ModelFile vocabulary.model log_proba/ boundary.json model.nbj
+ * </pre>
+ */
+public class ModelFile {
+
+	/** "NBJM" */
+	static final int MAGIC = 0x4E424A4D;
+	/** format version */
+	static final int VERSION = 1;
+	/** header size in bytes */
+	static final int HEADER_SIZE = 32;
+	/** the table starts on a multiple of it */
+	static final int TABLE_ALIGNMENT = 4096;
+	/** flag bit: idf prior is applied */
+	static final int FLAG_USE_IDF = 1;
+	/** size of the write buffer */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private ModelFile() {
+	}
+
+	/**
+	 * convert a text model into a binary model file
+	 *
+	 * @param vocabPath
+	 * 		path to vocabulary model
+	 * @param dirPath
+	 * 		path to conditional probability directory
+	 * @param thresholdPath
+	 * 		boundary json file
+	 * @param outPath
+	 * 		path to the binary model file to write
+	 * @throws IOException
+	 */
+	public static void convert(String vocabPath, String dirPath,
+			String thresholdPath, String outPath) throws IOException {
+		MultinomialNB model = new MultinomialNB(vocabPath, dirPath, thresholdPath);
+		model.init();
+		write(model, outPath);
+	}
+
+	/**
+	 * write an initialized model into a binary model file. The model is
+	 * written to a temporary file of the same directory, forced to disk
+	 * and renamed over outPath, so a file mapped by a running model,
+	 * even the one being written, is never modified.
+	 *
+	 * @param model
+	 * 		initialized model with a TfidfVectorizer
+	 * @param outPath
+	 * 		path to the binary model file to write
+	 * @throws IOException
+	 */
+	public static void write(MultinomialNB model, String outPath) throws IOException {
+		Preconditions.checkArgument(model.vectorizer instanceof TfidfVectorizer,
+				"only TfidfVectorizer models can be written", model.vectorizer);
+		File target = new File(outPath).getAbsoluteFile();
+		File tmp = File.createTempFile(target.getName() + ".", ".tmp",
+				target.getParentFile());
+		try {
+			writeTo(model, tmp);
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			// left only if the write or the rename failed
+			tmp.delete();
+		}
+	}
+
+	private static void writeTo(MultinomialNB model, File outFile) throws IOException {
+		TfidfVectorizer v = (TfidfVectorizer) model.vectorizer;
+		VocabularyIndex vocabulary = v.getVocabulary();
+		CondProbTable table = model.getCondProb();
+
+		RandomAccessFile file = new RandomAccessFile(outFile, "rw");
+		try {
+			Writer out = new Writer(file.getChannel());
+			// header, the table offset is patched at the end
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(model.numFeatures);
+			out.putInt(model.numCats);
+			out.putInt(vocabulary.size());
+			out.putInt(v.useIdf() ? FLAG_USE_IDF : 0);
+			out.putLong(0);
+			// vocabulary
+			for (int t = 0; t < vocabulary.size(); t++) {
+				out.putInt(vocabulary.value(t));
+				out.putString(vocabulary.term(t));
+			}
+			// idf
+			double[] idf = v.getIdf();
+			for (int k = 0; k < model.numFeatures; k++)
+				out.putDouble(idf[k]);
+			// categories
+			for (int j = 0; j < model.numCats; j++) {
+				String name = model.category.get(j);
+				Double t = model.threshold.get(name);
+				Boolean u = model.used.get(name);
+				out.putString(name);
+				out.putDouble(t == null ? Double.NaN : t);
+				out.put((byte) (u != null && u ? 1 : 0));
+			}
+			// table
+			long tableOffset = align(out.position());
+			out.pad(tableOffset);
+			for (int k = 0; k < model.numFeatures; k++) {
+				for (int j = 0; j < model.numCats; j++)
+					out.putDouble(table.get(k, j));
+			}
+			out.flush();
+
+			ByteBuffer patch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			patch.putLong(tableOffset).flip();
+			file.getChannel().write(patch, 24);
+			file.getChannel().force(true);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * read a binary model file into the model, the table is mapped
+	 *
+	 * @param filePath
+	 * 		path to the binary model file
+	 * @param model
+	 * 		model to fill
+	 * @throws IOException
+	 */
+	static void read(String filePath, MultinomialNB model) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filePath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = map(channel, 0, HEADER_SIZE);
+			Preconditions.checkState(header.getInt() == MAGIC,
+					"not a binary model file!", filePath);
+			int version = header.getInt();
+			Preconditions.checkState(version == VERSION,
+					"unsupported binary model version!", version);
+			int numFeatures = header.getInt();
+			int numCats = header.getInt();
+			int numTerms = header.getInt();
+			int flags = header.getInt();
+			long tableOffset = header.getLong();
+			Preconditions.checkState(tableOffset
+					+ (long) numFeatures * numCats * 8 <= channel.size(),
+					"binary model file is truncated!", filePath);
+
+			ByteBuffer meta = map(channel, HEADER_SIZE, tableOffset - HEADER_SIZE);
+			// vocabulary, read term chars into one reusable buffer
+			VocabularyIndex vocabulary = new VocabularyIndex(numTerms);
+			char[] chars = new char[64];
+			CharBuffer term = CharBuffer.wrap(chars);
+			for (int t = 0; t < numTerms; t++) {
+				int column = meta.getInt();
+				int len = meta.getInt();
+				if (len > chars.length) {
+					chars = new char[len << 1];
+					term = CharBuffer.wrap(chars);
+				}
+				for (int i = 0; i < len; i++)
+					chars[i] = meta.getChar();
+				term.clear();
+				term.limit(len);
+				vocabulary.put(term, column);
+			}
+			vocabulary.trim();
+			// idf
+			double[] idf = new double[numFeatures];
+			meta.asDoubleBuffer().get(idf);
+			meta.position(meta.position() + numFeatures * 8);
+			// categories
+			for (int j = 0; j < numCats; j++) {
+				String name = getString(meta);
+				double t = meta.getDouble();
+				boolean u = meta.get() != 0;
+				model.category.put(j, name);
+				if (!Double.isNaN(t))
+					model.threshold.put(name, t);
+				model.used.put(name, u);
+			}
+			// table, mapped in segments of whole feature rows
+			int rowsPerSegment = MappedCondProbTable.rowsPerSegment(numCats);
+			int numSegments = Math.max(1,
+					(numFeatures + rowsPerSegment - 1) / rowsPerSegment);
+			DoubleBuffer[] segments = new DoubleBuffer[numSegments];
+			for (int s = 0; s < numSegments; s++) {
+				int rows = Math.min(rowsPerSegment, numFeatures - s * rowsPerSegment);
+				long offset = tableOffset + (long) s * rowsPerSegment * numCats * 8;
+				segments[s] = map(channel, offset, (long) rows * numCats * 8)
+						.asDoubleBuffer();
+			}
+
+			model.vectorizer = new TfidfVectorizer(vocabulary, idf,
+					(flags & FLAG_USE_IDF) != 0);
+			model.numFeatures = numFeatures;
+			model.numCats = numCats;
+			model.setCondProb(new MappedCondProbTable(segments, rowsPerSegment,
+					numFeatures, numCats));
+		} finally {
+			// mappings stay valid after the channel is closed
+			file.close();
+		}
+	}
+
+	/**
+	 * convert a text model into a binary model file
+	 *
+	 * @param args
+	 * 		vocabulary model, conditional probability directory,
+	 * 		boundary json file, output file
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4) {
+			System.err.println("usage: ModelFile <vocabulary.model> "
+					+ "<log_proba dir> <boundary.json> <output file>");
+			System.exit(1);
+		}
+		convert(args[0], args[1], args[2], args[3]);
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long offset, long size)
+			throws IOException {
+		MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, offset, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private static String getString(ByteBuffer in) {
+		char[] chars = new char[in.getInt()];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = in.getChar();
+		return new String(chars);
+	}
+
+	private static long align(long position) {
+		return (position + TABLE_ALIGNMENT - 1) / TABLE_ALIGNMENT * TABLE_ALIGNMENT;
+	}
+
+	/**
+	 * little endian buffered writer on a file channel
+	 */
+	private static final class Writer {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		private long written;
+
+		Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		long position() {
+			return this.written + this.buffer.position();
+		}
+
+		void put(byte b) throws IOException {
+			this.ensure(1);
+			this.buffer.put(b);
+		}
+
+		void putInt(int i) throws IOException {
+			this.ensure(4);
+			this.buffer.putInt(i);
+		}
+
+		void putLong(long l) throws IOException {
+			this.ensure(8);
+			this.buffer.putLong(l);
+		}
+
+		void putDouble(double d) throws IOException {
+			this.ensure(8);
+			this.buffer.putDouble(d);
+		}
+
+		void putString(String s) throws IOException {
+			this.putInt(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				this.ensure(2);
+				this.buffer.putChar(s.charAt(i));
+			}
+		}
+
+		void pad(long position) throws IOException {
+			while (this.position() < position)
+				this.put((byte) 0);
+		}
+
+		void flush() throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining())
+				this.written += this.channel.write(this.buffer);
+			this.buffer.clear();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (this.buffer.remaining() < bytes)
+				this.flush();
+		}
+	}
+}
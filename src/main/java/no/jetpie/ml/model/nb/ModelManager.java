@@ -0,0 +1,545 @@
+package no.jetpie.ml.model.nb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Preconditions;
+
+import no.jetpie.ml.feature.FeatureBatch;
+import no.jetpie.ml.metrics.MetricsRegistry;
+import no.jetpie.ml.utils.Rule;
+
+/**
+ * Keeps a MultinomialNB up to date with its files on disk.
+ *
+ * The manager watches the text model (vocabulary file, conditional
+ * probability directory and boundary json) or a binary model file.
+ * When they change and stay quiet for a while, a new model is loaded
+ * on the watcher thread, validated, given the rules of the manager and
+ * swapped in through an atomic reference. Predictions never wait for
+ * a load: a call reads the current model once and finishes on it even
+ * if a newer one is swapped in meanwhile. A model failing to load or
+ * to validate is dropped and the current one stays in use.
+ *
+ * <pre>
+ *   ModelManager manager = new ModelManager(vocabPath, dirPath, thresholdPath);
+ *   manager.start();
+ *   manager.predict(document, 0);
+ * </pre>
+ */
+public class ModelManager implements Closeable {
+
+	/** default time without file events before a reload */
+	public static final long DEFAULT_QUIET_MILLIS = 2000;
+
+	/** path to vocabulary model, null for a binary model */
+	private final String vocabPath;
+	/** path to conditional probability directory */
+	private final String dirPath;
+	/** boundary json file */
+	private final String thresholdPath;
+	/** path to a binary model file, null for a text model */
+	private final String modelPath;
+	/** time without file events before a reload */
+	private final long quietMillis;
+	/** model used by predictions */
+	private final AtomicReference<MultinomialNB> current =
+			new AtomicReference<MultinomialNB>();
+	/** rules applied to every loaded model, in insertion order */
+	private final Map<Integer, Rule> rules = new LinkedHashMap<Integer, Rule>();
+	/** cache given to every loaded model, null if none */
+	private PredictionCache cache;
+	/** metrics receiver given to every loaded model, null if none */
+	private MetricsRegistry metrics;
+	/** exp and log of the normalization of every loaded model */
+	private MathMode mathMode = MathMode.EXACT;
+	/** storage precision of every loaded model, null to keep the loaded one */
+	private volatile Precision precision;
+	/** watched directories and the file names of interest, null for all */
+	private final Map<Path, List<String>> watched = new HashMap<Path, List<String>>();
+	/** number of models swapped in after the first one */
+	private volatile int reloads;
+	/** cause of the last failed reload, null if none */
+	private volatile Exception lastFailure;
+	/** duration of the last successful reload in nanoseconds */
+	private volatile long lastReloadNanos;
+	/** serializes reloads, a model is loaded at most once at a time */
+	private final Object reloadLock = new Object();
+	private WatchService watcher;
+	private Thread watchThread;
+	private volatile boolean running;
+
+	/**
+	 * @param vocabPath
+	 * 		path to vocabulary model
+	 * @param dirPath
+	 * 		path to conditional probability directory
+	 * @param thresholdPath
+	 * 		boundary json file
+	 */
+	public ModelManager(String vocabPath, String dirPath, String thresholdPath) {
+		this(vocabPath, dirPath, thresholdPath, null, DEFAULT_QUIET_MILLIS);
+	}
+
+	/**
+	 * @param modelPath
+	 * 		path to a binary model file written by ModelFile
+	 */
+	public ModelManager(String modelPath) {
+		this(null, null, null, modelPath, DEFAULT_QUIET_MILLIS);
+	}
+
+	/**
+	 * either the three text model paths or modelPath are given
+	 *
+	 * @param quietMillis
+	 * 		time without file events before a reload, so a model being
+	 * 		written file by file is loaded once it is complete
+	 */
+	public ModelManager(String vocabPath, String dirPath, String thresholdPath,
+			String modelPath, long quietMillis) {
+		Preconditions.checkArgument(modelPath != null
+				|| (vocabPath != null && dirPath != null && thresholdPath != null),
+				"either a binary model or a text model must be given");
+		Preconditions.checkArgument(quietMillis >= 0, "quiet time must not be negative",
+				quietMillis);
+		this.vocabPath = vocabPath;
+		this.dirPath = dirPath;
+		this.thresholdPath = thresholdPath;
+		this.modelPath = modelPath;
+		this.quietMillis = quietMillis;
+	}
+
+	/**
+	 * load the model on the calling thread and start watching its files
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		Preconditions.checkState(!this.running, "manager is already started!");
+		this.swap(this.load());
+		this.reloads = 0;
+		this.lastReloadNanos = 0;
+
+		this.watcher = FileSystems.getDefault().newWatchService();
+		if (this.modelPath != null) {
+			this.watchFile(this.modelPath);
+		} else {
+			this.watchFile(this.vocabPath);
+			this.watchFile(this.thresholdPath);
+			this.watchDir(new File(this.dirPath).getAbsoluteFile().toPath());
+		}
+		this.running = true;
+		this.watchThread = new Thread(new Runnable() {
+			public void run() {
+				ModelManager.this.watch();
+			}
+		}, "nb-model-watcher");
+		this.watchThread.setDaemon(true);
+		this.watchThread.start();
+	}
+
+	/**
+	 * stop watching, the current model stays usable
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		Thread thread;
+		synchronized (this) {
+			if (!this.running)
+				return;
+			this.running = false;
+			this.watcher.close();
+			thread = this.watchThread;
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * load the model files now and swap the model in if it is valid
+	 *
+	 * @return true if the new model is in use
+	 */
+	public boolean reload() {
+		synchronized (this.reloadLock) {
+			long startTime = System.nanoTime();
+			MultinomialNB model;
+			try {
+				model = this.load();
+			} catch (RuntimeException e) {
+				// keep serving the current model
+				this.lastFailure = e;
+				return false;
+			}
+			this.swap(model);
+			this.lastReloadNanos = System.nanoTime() - startTime;
+			this.reloads++;
+			this.lastFailure = null;
+			return true;
+		}
+	}
+
+	/**
+	 *
+	 * @return model used by predictions
+	 */
+	public MultinomialNB getModel() {
+		MultinomialNB model = this.current.get();
+		Preconditions.checkState(model != null, "manager is not started!");
+		return model;
+	}
+
+	/**
+	 *
+	 * @return number of models swapped in after start
+	 */
+	public int getReloads() {
+		return this.reloads;
+	}
+
+	/**
+	 *
+	 * @return cause of the last failed reload, null if the last reload
+	 * 		succeeded
+	 */
+	public Exception getLastFailure() {
+		return this.lastFailure;
+	}
+
+	/**
+	 *
+	 * @return time taken by the last successful reload to load,
+	 * 		validate and swap the model in, 0 before the first reload
+	 */
+	public long getLastReloadNanos() {
+		return this.lastReloadNanos;
+	}
+
+	/**
+	 * add a rule(filter) to the current model and every model loaded
+	 * later
+	 *
+	 * @param state
+	 * 		an indicator for rule
+	 * @param r
+	 * 		rule instance
+	 */
+	public synchronized void setRule(int state, Rule r) {
+		Preconditions.checkArgument(!this.rules.containsKey(state),
+				"The state is already existed!", state);
+		MultinomialNB model = this.current.get();
+		if (model != null)
+			model.setRule(state, r);
+		this.rules.put(state, r);
+	}
+
+	/**
+	 * put a cache in front of the label predictions of the current model
+	 * and every model loaded later, emptied on each swap
+	 *
+	 * @param cache
+	 * 		cache to use, null to predict every document
+	 */
+	public synchronized void setCache(PredictionCache cache) {
+		MultinomialNB model = this.current.get();
+		if (model != null)
+			model.setCache(cache);
+		this.cache = cache;
+	}
+
+	/**
+	 * record the inference metrics of the current model and every model
+	 * loaded later into one registry
+	 *
+	 * @param metrics
+	 * 		receiver of the metrics, null to record nothing
+	 */
+	public synchronized void setMetrics(MetricsRegistry metrics) {
+		MultinomialNB model = this.current.get();
+		if (model != null)
+			model.setMetrics(metrics);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * store the table of the current model and every model loaded later
+	 * in the given precision
+	 *
+	 * @param precision
+	 * 		storage precision of the tables
+	 * @param samplePath
+	 * 		sample file measured on the current model, see
+	 * 		MultinomialNB.setPrecision(); null to skip the measurement
+	 * @return report of the measured loss on the current model, null
+	 * 		before start
+	 * @throws IOException
+	 */
+	public synchronized PrecisionReport setPrecision(Precision precision, String samplePath)
+			throws IOException {
+		Preconditions.checkNotNull(precision);
+		MultinomialNB model = this.current.get();
+		PrecisionReport report = model != null ? model.setPrecision(precision, samplePath)
+				: null;
+		this.precision = precision;
+		return report;
+	}
+
+	/**
+	 *
+	 * @return storage precision of the loaded models, null if they keep
+	 * 		the precision of their files
+	 */
+	public Precision getPrecision() {
+		return this.precision;
+	}
+
+	/**
+	 * switch the exp and log of the normalization of the current model
+	 * and every model loaded later
+	 *
+	 * @param mode
+	 * 		exp and log of the normalization
+	 * @param samplePath
+	 * 		sample file compared on the current model, see
+	 * 		NaiveBayes.setMathMode(); null to skip the comparison
+	 * @return report of the comparison on the current model, empty
+	 * 		before start
+	 * @throws IOException
+	 */
+	public synchronized MathModeReport setMathMode(MathMode mode, String samplePath)
+			throws IOException {
+		Preconditions.checkNotNull(mode);
+		MultinomialNB model = this.current.get();
+		MathModeReport report = model != null ? model.setMathMode(mode, samplePath)
+				: new MathModeReport(mode);
+		this.mathMode = mode;
+		return report;
+	}
+
+	/**
+	 *
+	 * @return exp and log of the normalization of the loaded models
+	 */
+	public synchronized MathMode getMathMode() {
+		return this.mathMode;
+	}
+
+	/**
+	 * @see NaiveBayes#predict(String, int)
+	 */
+	public String predict(String document, int state) {
+		return this.getModel().predict(document, state);
+	}
+
+	/**
+	 * @see NaiveBayes#predict(List, int[])
+	 */
+	public ArrayList<String> predict(List<String> documents, int[] states) {
+		return this.getModel().predict(documents, states);
+	}
+
+	/**
+	 * @see NaiveBayes#predict(int[], int[], int)
+	 */
+	public String predict(int[] ids, int[] counts, int state) {
+		return this.getModel().predict(ids, counts, state);
+	}
+
+	/**
+	 * @see NaiveBayes#predict(int[], float[], int)
+	 */
+	public String predict(int[] ids, float[] counts, int state) {
+		return this.getModel().predict(ids, counts, state);
+	}
+
+	/**
+	 * @see NaiveBayes#predict(FeatureBatch, int[])
+	 */
+	public ArrayList<String> predict(FeatureBatch batch, int[] states) {
+		return this.getModel().predict(batch, states);
+	}
+
+	/**
+	 * @see NaiveBayes#predictTopK(String, int, int)
+	 */
+	public TopK predictTopK(String document, int state, int k) {
+		return this.getModel().predictTopK(document, state, k);
+	}
+
+	/**
+	 * build and validate a model from the files, off the lock so
+	 * predictions and rule changes go on meanwhile
+	 */
+	private MultinomialNB load() {
+		MultinomialNB model = this.modelPath != null
+				? new MultinomialNB(this.modelPath)
+				: new MultinomialNB(this.vocabPath, this.dirPath, this.thresholdPath);
+		model.init();
+		validate(model);
+		// the copy is the costly part of a precision change
+		applyPrecision(model, this.precision);
+		return model;
+	}
+
+	/**
+	 * give the model the rules and settings of the manager and make it
+	 * current
+	 */
+	private synchronized void swap(MultinomialNB model) {
+		for (Map.Entry<Integer, Rule> e : this.rules.entrySet())
+			model.setRule(e.getKey(), e.getValue());
+		model.setCache(this.cache);
+		model.setMetrics(this.metrics);
+		// set since the load
+		applyPrecision(model, this.precision);
+		if (model.getMathMode() != this.mathMode) {
+			try {
+				model.setMathMode(this.mathMode, null);
+			} catch (IOException e) {
+				// no sample file is read
+				throw new IllegalStateException(e);
+			}
+		}
+		// in-flight predictions keep the reference they already read
+		this.current.set(model);
+		if (this.cache != null)
+			this.cache.invalidateAll();
+	}
+
+	/**
+	 * copy the table of the model into the precision if it differs
+	 *
+	 * @param precision
+	 * 		storage precision, null to keep the table
+	 */
+	private static void applyPrecision(MultinomialNB model, Precision precision) {
+		if (precision == null || model.getPrecision() == precision)
+			return;
+		try {
+			model.setPrecision(precision, null);
+		} catch (IOException e) {
+			// no sample file is read
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * check the loaded model is complete enough to serve predictions.
+	 * Only its shape is checked, the table is not read: a value that is
+	 * not a number is rejected while the category files are parsed.
+	 *
+	 * @param model
+	 * 		initialized model
+	 */
+	static void validate(MultinomialNB model) {
+		ModelSnapshot snapshot = model.getSnapshot();
+		Preconditions.checkState(snapshot.getNumCats() > 0,
+				"model has no category!", model.numCats);
+		CondProbTable table = snapshot.getCondProb();
+		Preconditions.checkState(table.numRows() == snapshot.getVectorizer().getNumVocab(),
+				"conditional probabilities do not match the vocabulary!", table.numRows());
+		Preconditions.checkState(table.numColumns() == snapshot.getNumCats(),
+				"conditional probabilities do not match the categories!", table.numColumns());
+		for (int j = 0; j < snapshot.getNumCats(); j++)
+			Preconditions.checkState(snapshot.getCategory(j) != null,
+					"category is missing!", j);
+		// the threshold loader only reports a broken file
+		Preconditions.checkState(!model.threshold.isEmpty(),
+				"model has no threshold!", model);
+	}
+
+	/**
+	 * reload once no file event came for quietMillis
+	 */
+	private void watch() {
+		boolean pending = false;
+		while (this.running) {
+			WatchKey key;
+			try {
+				key = pending
+						? this.watcher.poll(this.quietMillis, TimeUnit.MILLISECONDS)
+						: this.watcher.take();
+			} catch (InterruptedException e) {
+				break;
+			} catch (ClosedWatchServiceException e) {
+				break;
+			}
+			if (key == null) {
+				pending = false;
+				this.reload();
+				// a directory replaced by a rename is a new one to watch
+				if (this.dirPath != null)
+					this.rewatchDir();
+				continue;
+			}
+			List<String> names = this.watched.get((Path) key.watchable());
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW
+						|| names == null
+						|| names.contains(event.context().toString()))
+					pending = true;
+			}
+			key.reset();
+		}
+	}
+
+	private void watchFile(String filePath) throws IOException {
+		Path path = new File(filePath).getAbsoluteFile().toPath();
+		Path dir = path.getParent();
+		List<String> names = this.watched.get(dir);
+		if (names == null) {
+			names = new ArrayList<String>();
+			this.register(dir);
+			this.watched.put(dir, names);
+		}
+		names.add(path.getFileName().toString());
+	}
+
+	private void watchDir(Path dir) throws IOException {
+		this.register(dir);
+		// every file of the directory is of interest
+		this.watched.put(dir, null);
+		// and the directory itself, replaced by a rename
+		this.watchFile(dir.toString());
+	}
+
+	/**
+	 * watch the directory again, its key stays on the directory it was
+	 * registered for; registering the same directory again is harmless
+	 */
+	private void rewatchDir() {
+		try {
+			this.register(new File(this.dirPath).getAbsoluteFile().toPath());
+		} catch (IOException e) {
+			// not there yet, its creation in the parent is watched
+		} catch (ClosedWatchServiceException e) {
+			// closing
+		}
+	}
+
+	private void register(Path dir) throws IOException {
+		dir.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+	}
+}
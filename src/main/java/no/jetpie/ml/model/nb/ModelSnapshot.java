@@ -0,0 +1,976 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.common.base.Preconditions;
+
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.Matrix;
+import no.uib.cipr.matrix.sparse.CompRowMatrix;
+import no.jetpie.ml.feature.FeatureBatch;
+import no.jetpie.ml.feature.FeatureVector;
+import no.jetpie.ml.feature.Vectorizer;
+import no.jetpie.ml.metrics.MetricsRegistry;
+import no.jetpie.ml.metrics.MetricsRegistry.Counter;
+import no.jetpie.ml.metrics.MetricsRegistry.Stage;
+import no.jetpie.ml.utils.FastMath;
+
+/**
+ * Immutable state of a loaded model: vectorizer, conditional
+ * probability table, prior, categories with thresholds and stop
+ * flags, the compiled rules and the arithmetic of the normalization.
+ *
+ * A snapshot never changes once it is built, so any number of threads
+ * can predict with it without locking. Changes to the model (a new
+ * rule, another table precision, a reload) build a new snapshot which
+ * the model publishes atomically; predictions running on the old one
+ * finish on it undisturbed.
+ *
+ * The scratch buffers of the single document methods are passed in as
+ * a ScoringContext, one per thread or per task.
+ */
+public final class ModelSnapshot {
+
+	/**
+	 * documents per task of the parallel batch prediction, small enough
+	 * for their text and scores to stay in cache, large enough to pay
+	 * for the scheduling
+	 */
+	static final int CHUNK_DOCS = 256;
+
+	/** loops of the single document scoring */
+	private static final ScoringKernel KERNEL = ScoringKernel.get();
+
+	/** Vectorizer instance */
+	private final Vectorizer vectorizer;
+	/** feature-major conditional probabilities */
+	private final CondProbTable table;
+	/** prior : uniform distributed prior is applied */
+	private final double logPrior;
+	/** number of categories */
+	private final int numCats;
+	/** category names indexed by category position */
+	private final String[] catNames;
+	/** thresholds indexed by category position */
+	private final double[] catThreshold;
+	/** stop flags indexed by category position */
+	private final boolean[] catUsed;
+	/** states having a rule, sorted */
+	private final int[] maskStates;
+	/** compiled rules respected to maskStates */
+	private final BitSet[] masks;
+	/** masks in the forms of the kernel */
+	private final ScoringKernel.Mask[] kernelMasks;
+	/** exp and log of the normalization */
+	private final MathMode mathMode;
+
+	ModelSnapshot(Vectorizer vectorizer, CondProbTable table, double logPrior,
+			String[] catNames, double[] catThreshold, boolean[] catUsed,
+			int[] maskStates, BitSet[] masks, MathMode mathMode) {
+		Preconditions.checkArgument(catNames.length == table.numColumns(),
+				"categories do not match the conditional probabilities", catNames.length);
+		this.vectorizer = vectorizer;
+		this.table = table;
+		this.logPrior = logPrior;
+		this.numCats = catNames.length;
+		this.catNames = catNames;
+		this.catThreshold = catThreshold;
+		this.catUsed = catUsed;
+		this.maskStates = maskStates;
+		this.masks = masks;
+		this.kernelMasks = new ScoringKernel.Mask[masks.length];
+		for (int i = 0; i < masks.length; i++)
+			this.kernelMasks[i] = new ScoringKernel.Mask(masks[i], this.numCats);
+		this.mathMode = mathMode;
+	}
+
+	/**
+	 *
+	 * @param state
+	 * 		non zero state, not yet having a rule
+	 * @param mask
+	 * 		compiled rule of the state
+	 * @return a copy of this snapshot with the rule added
+	 */
+	ModelSnapshot withRule(int state, BitSet mask) {
+		int i = Arrays.binarySearch(this.maskStates, state);
+		Preconditions.checkArgument(i < 0, "The state is already existed!", state);
+		i = -i - 1;
+		int[] states = new int[this.maskStates.length + 1];
+		BitSet[] compiled = new BitSet[this.masks.length + 1];
+		System.arraycopy(this.maskStates, 0, states, 0, i);
+		System.arraycopy(this.masks, 0, compiled, 0, i);
+		states[i] = state;
+		compiled[i] = mask;
+		System.arraycopy(this.maskStates, i, states, i + 1, this.maskStates.length - i);
+		System.arraycopy(this.masks, i, compiled, i + 1, this.masks.length - i);
+		return new ModelSnapshot(this.vectorizer, this.table, this.logPrior,
+				this.catNames, this.catThreshold, this.catUsed, states, compiled,
+				this.mathMode);
+	}
+
+	/**
+	 *
+	 * @param table
+	 * 		conditional probabilities of the same shape
+	 * @return a copy of this snapshot using the table
+	 */
+	ModelSnapshot withTable(CondProbTable table) {
+		return new ModelSnapshot(this.vectorizer, table, this.logPrior,
+				this.catNames, this.catThreshold, this.catUsed,
+				this.maskStates, this.masks, this.mathMode);
+	}
+
+	/**
+	 *
+	 * @param mathMode
+	 * 		exp and log of the normalization
+	 * @return a copy of this snapshot using the mode
+	 */
+	ModelSnapshot withMathMode(MathMode mathMode) {
+		return new ModelSnapshot(this.vectorizer, this.table, this.logPrior,
+				this.catNames, this.catThreshold, this.catUsed,
+				this.maskStates, this.masks, mathMode);
+	}
+
+	/**
+	 *
+	 * @return Vectorizer instance
+	 */
+	public Vectorizer getVectorizer() {
+		return this.vectorizer;
+	}
+
+	/**
+	 *
+	 * @return feature-major conditional probabilities
+	 */
+	CondProbTable getCondProb() {
+		return this.table;
+	}
+
+	/**
+	 *
+	 * @return exp and log of the normalization
+	 */
+	public MathMode getMathMode() {
+		return this.mathMode;
+	}
+
+	/**
+	 *
+	 * @return number of categories
+	 */
+	public int getNumCats() {
+		return this.numCats;
+	}
+
+	/**
+	 *
+	 * @return category names indexed by category position
+	 */
+	String[] catNames() {
+		return this.catNames;
+	}
+
+	/**
+	 *
+	 * @param j
+	 * 		category position
+	 * @return category name
+	 */
+	public String getCategory(int j) {
+		return this.catNames[j];
+	}
+
+	/**
+	 *
+	 * @param document
+	 * 		Single document of tokens separated by whitespace
+	 * @param state
+	 * 		state of the document
+	 * @param ctx
+	 * 		scratch buffers owned by the calling thread
+	 * @return predicted category
+	 */
+	public String predict(String document, int state, ScoringContext ctx) {
+		// vectorization
+		this.vectorizer.transform(document, ctx.x);
+		return this.predict(ctx, state);
+	}
+
+	/**
+	 * predict recording the latency of every stage and the counters of
+	 * the document; the label is the one of predict(String, int,
+	 * ScoringContext)
+	 *
+	 * @param document
+	 * 		Single document of tokens separated by whitespace
+	 * @param state
+	 * 		state of the document
+	 * @param ctx
+	 * 		scratch buffers owned by the calling thread
+	 * @param metrics
+	 * 		receiver of the metrics, null to predict without
+	 * @return predicted category
+	 */
+	public String predict(String document, int state, ScoringContext ctx,
+			MetricsRegistry metrics) {
+		if (metrics == null)
+			return this.predict(document, state, ctx);
+		long t0 = System.nanoTime();
+		this.vectorizer.transform(document, ctx.x);
+		return this.predict(ctx, state, metrics, t0);
+	}
+
+	/**
+	 * predict a pre-vectorized document, the label is the one of the
+	 * document the ids stand for
+	 *
+	 * @param ids
+	 * 		column positions of the terms, see
+	 * 		Vectorizer.transform(int[], int[], int, int, FeatureVector)
+	 * @param counts
+	 * 		count of each id, null for one occurrence per id
+	 * @param state
+	 * 		state of the document
+	 * @param ctx
+	 * 		scratch buffers owned by the calling thread
+	 * @param metrics
+	 * 		receiver of the metrics, null to predict without
+	 * @return predicted category
+	 */
+	public String predict(int[] ids, int[] counts, int state, ScoringContext ctx,
+			MetricsRegistry metrics) {
+		long t0 = metrics == null ? 0 : System.nanoTime();
+		this.vectorizer.transform(ids, counts, 0, ids.length, ctx.x);
+		return metrics == null ? this.predict(ctx, state) : this.predict(ctx, state, metrics, t0);
+	}
+
+	/**
+	 * predict(int[], int[], int, ScoringContext, MetricsRegistry) with
+	 * real valued counts
+	 *
+	 * @param ids
+	 * 		column positions of the terms
+	 * @param counts
+	 * 		count of each id, null for one occurrence per id
+	 * @param state
+	 * 		state of the document
+	 * @param ctx
+	 * 		scratch buffers owned by the calling thread
+	 * @param metrics
+	 * 		receiver of the metrics, null to predict without
+	 * @return predicted category
+	 */
+	public String predict(int[] ids, float[] counts, int state, ScoringContext ctx,
+			MetricsRegistry metrics) {
+		long t0 = metrics == null ? 0 : System.nanoTime();
+		this.vectorizer.transform(ids, counts, 0, ids.length, ctx.x);
+		return metrics == null ? this.predict(ctx, state) : this.predict(ctx, state, metrics, t0);
+	}
+
+	/**
+	 * predict every document of a batch of pre-vectorized documents.
+	 * Without metrics the documents are scored together, see
+	 * predict(List, int[], ScoringContext); with metrics one by one,
+	 * to time the stages of each document.
+	 *
+	 * @param batch
+	 * 		documents as ids and counts
+	 * @param states
+	 * 		state of each document
+	 * @param ctx
+	 * 		scratch buffers owned by the calling thread
+	 * @param metrics
+	 * 		receiver of the metrics, null to predict without
+	 * @return List of category predictions
+	 */
+	public ArrayList<String> predict(FeatureBatch batch, int[] states, ScoringContext ctx,
+			MetricsRegistry metrics) {
+		Preconditions.checkState(states.length == batch.size(),
+				"each document must match a state");
+		ArrayList<String> labels = new ArrayList<String>(batch.size());
+		if (metrics == null) {
+			int blockRows = this.blockRows();
+			for (int r0 = 0; r0 < batch.size(); r0 += blockRows) {
+				int r1 = Math.min(r0 + blockRows, batch.size());
+				ctx.clearRows();
+				for (int i = r0; i < r1; i++) {
+					this.vectorizer.transform(batch.getIds(), batch.getCounts(),
+							batch.getOffset(i), batch.getLength(i), ctx.x);
+					ctx.addRow();
+				}
+				this.predictRows(ctx, states, r0, labels);
+			}
+			return labels;
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			long t0 = System.nanoTime();
+			this.vectorizer.transform(batch.getIds(), batch.getCounts(), batch.getOffset(i),
+					batch.getLength(i), ctx.x);
+			labels.add(this.predict(ctx, states[i], metrics, t0));
+		}
+		return labels;
+	}
+
+	/**
+	 * predict a batch of documents on the buffers of a context. The
+	 * documents are vectorized into the batch rows of the context and
+	 * scored together by the blocked kernel of the table, which reads a
+	 * feature row shared by several documents once; the labels are the
+	 * ones of predict(String, int, ScoringContext). The rows are scored
+	 * a block of the kernel at a time, so the buffers of the context
+	 * stay bounded whatever the size of the batch.
+	 *
+	 * @param documents
+	 * 		List of documents of tokens separated by whitespace
+	 * @param states
+	 * 		state of each document
+	 * @param ctx
+	 * 		scratch buffers owned by the calling thread
+	 * @return List of category predictions
+	 */
+	public ArrayList<String> predict(List<String> documents, int[] states, ScoringContext ctx) {
+		Preconditions.checkState(states.length == documents.size(),
+				"each document must match a state");
+		ArrayList<String> labels = new ArrayList<String>(documents.size());
+		int blockRows = this.blockRows();
+		for (int r0 = 0; r0 < documents.size(); r0 += blockRows) {
+			int r1 = Math.min(r0 + blockRows, documents.size());
+			ctx.clearRows();
+			for (int i = r0; i < r1; i++) {
+				this.vectorizer.transform(documents.get(i), ctx.x);
+				ctx.addRow();
+			}
+			this.predictRows(ctx, states, r0, labels);
+		}
+		return labels;
+	}
+
+	/**
+	 *
+	 * @return number of rows scored together, the rows of a block of
+	 * 		the kernel
+	 */
+	private int blockRows() {
+		return Math.max(1, CondProbTable.BLOCK_BYTES / (this.numCats * 8));
+	}
+
+	/**
+	 * predict the batch rows of the context
+	 *
+	 * @param ctx
+	 * 		context holding the vectorized documents
+	 * @param states
+	 * 		state of each document of the batch
+	 * @param first
+	 * 		position in the batch of the first row
+	 * @param labels
+	 * 		receiver of the category predictions
+	 */
+	private void predictRows(ScoringContext ctx, int[] states, int first,
+			ArrayList<String> labels) {
+		int numRows = ctx.numRows;
+		double[] jil = ctx.batchScores(this.numCats);
+		this.table.accumulate(ctx.rowPtr, ctx.columns, ctx.values, numRows, jil);
+		for (int i = 0; i < numRows; i++) {
+			int offset = i * this.numCats;
+			// get log(prior) + log(likelihood)
+			for (int j = offset; j < offset + this.numCats; j++)
+				jil[j] += this.logPrior;
+			double logsumexp = this.logSumExp(jil, offset, 1);
+			labels.add(this.label(jil, offset, 1, logsumexp, states[first + i]));
+		}
+	}
+
+	/**
+	 * predict the feature vector of the context recording the metrics
+	 *
+	 * @param ctx
+	 * 		context holding the vectorized document
+	 * @param state
+	 * 		state of the document
+	 * @param metrics
+	 * 		receiver of the metrics
+	 * @param t0
+	 * 		start of the vectorization
+	 * @return predicted category
+	 */
+	private String predict(ScoringContext ctx, int state, MetricsRegistry metrics, long t0) {
+		long t1 = System.nanoTime();
+		double[] jil = ctx.scores(this.numCats);
+		this.jointLogLikelihood(ctx.x, jil);
+		long t2 = System.nanoTime();
+		double logsumexp = this.logSumExp(jil, 0, 1);
+		long t3 = System.nanoTime();
+		int prediction = this.argmax(jil, 0, 1, logsumexp, state);
+		boolean passes = this.passes(jil, 0, 1, logsumexp, prediction);
+		long t4 = System.nanoTime();
+
+		metrics.recordLatency(Stage.VECTORIZE, t1 - t0);
+		metrics.recordLatency(Stage.JOINT_LOG_LIKELIHOOD, t2 - t1);
+		metrics.recordLatency(Stage.NORMALIZE, t3 - t2);
+		metrics.recordLatency(Stage.ARGMAX, t4 - t3);
+		metrics.recordLatency(Stage.PREDICT, t4 - t0);
+		metrics.increment(Counter.DOCUMENTS, 1);
+		metrics.increment(Counter.TOKENS, ctx.x.getNumTokens());
+		metrics.increment(Counter.UNKNOWN_TOKENS, ctx.x.getNumUnknown());
+		if (passes) {
+			metrics.recordCategory(this.catNames[prediction]);
+			return this.catNames[prediction];
+		}
+		metrics.increment(Counter.NULL_PREDICTIONS, 1);
+		if (prediction > -1)
+			metrics.increment(Counter.THRESHOLD_REJECTIONS, 1);
+		return null;
+	}
+
+	/**
+	 * predict the feature vector of the context
+	 *
+	 * @param ctx
+	 * 		context holding the vectorized document
+	 * @param state
+	 * 		state of the document
+	 * @return predicted category
+	 */
+	String predict(ScoringContext ctx, int state) {
+		double[] jil = ctx.scores(this.numCats);
+		// get joint likelihood
+		this.jointLogLikelihood(ctx.x, jil);
+		// the row is not normalized, the winner is compared with its
+		// threshold after subtracting log exp sum
+		double logsumexp = this.logSumExp(jil, 0, 1);
+		return this.label(jil, 0, 1, logsumexp, state);
+	}
+
+	/**
+	 *
+	 * @param documents
+	 * 		List of documents of tokens separated by whitespace
+	 * @param states
+	 * 		state of each document
+	 * @return List of category predictions
+	 */
+	public ArrayList<String> predict(List<String> documents, int[] states) {
+		// pre-check
+		Preconditions.checkState(states.length== documents.size(),
+				"each document must match a state");
+		// transform documents into feature vectors
+		Matrix X = this.vectorizer.transform(documents);
+		// get joint log likelihood
+		DenseMatrix jil = this.jointLogLikelihood(X);
+		double[] data = jil.getData();
+		int numRows = jil.numRows();
+		ArrayList<String> labels = new ArrayList<String>();
+
+		// row i of the column major result is data[i + j * numRows],
+		// only the log exp sum of a row is computed, it is not normalized
+		for (int i = 0; i < numRows; i++) {
+			double logsumexp = this.logSumExp(data, i, numRows);
+			labels.add(this.label(data, i, numRows, logsumexp, states[i]));
+		}
+		return labels;
+	}
+
+	/**
+	 * parallel version of predict(List, int[]). The batch is split into
+	 * chunks of CHUNK_DOCS documents, each chunk is tokenized and scored
+	 * by one task with its own buffers, and the labels are returned in
+	 * input order. A ForkJoinPool splits the batch recursively, any
+	 * other executor gets one task per chunk.
+	 *
+	 * @param documents
+	 * 		List of documents of tokens separated by whitespace
+	 * @param states
+	 * 		state of each document
+	 * @param executor
+	 * 		executor running the chunks
+	 * @return List of category predictions
+	 */
+	public ArrayList<String> predict(List<String> documents, int[] states,
+			ExecutorService executor) {
+		return this.predict(documents, states, executor, null, null);
+	}
+
+	/**
+	 * predict(List, int[], ExecutorService) through a cache and
+	 * recording metrics, as predict(String, int) of the model does for
+	 * each document
+	 *
+	 * @param documents
+	 * 		List of documents of tokens separated by whitespace
+	 * @param states
+	 * 		state of each document
+	 * @param executor
+	 * 		executor running the chunks
+	 * @param cache
+	 * 		cache of label predictions, null if none
+	 * @param metrics
+	 * 		receiver of the metrics, null to predict without
+	 * @return List of category predictions
+	 */
+	public ArrayList<String> predict(List<String> documents, final int[] states,
+			ExecutorService executor, final PredictionCache cache,
+			final MetricsRegistry metrics) {
+		Preconditions.checkState(states.length== documents.size(),
+				"each document must match a state");
+		// chunks index the list, avoid a linear get on linked lists
+		final List<String> docs = documents instanceof RandomAccess
+				? documents : new ArrayList<String>(documents);
+		final String[] labels = new String[docs.size()];
+
+		if (executor instanceof ForkJoinPool) {
+			((ForkJoinPool) executor).invoke(new ChunkAction(docs, states, 0, labels.length,
+					labels, cache, metrics));
+		} else {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int from = 0; from < labels.length; from += CHUNK_DOCS) {
+				final int start = from;
+				final int end = Math.min(from + CHUNK_DOCS, labels.length);
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						ModelSnapshot.this.predictChunk(docs, states, start, end, labels,
+								cache, metrics);
+					}
+				}));
+			}
+			await(futures);
+		}
+		return new ArrayList<String>(Arrays.asList(labels));
+	}
+
+	/**
+	 * predict documents [from, to) into labels with a context of the
+	 * calling task
+	 */
+	private void predictChunk(List<String> documents, int[] states,
+			int from, int to, String[] labels, PredictionCache cache, MetricsRegistry metrics) {
+		ScoringContext ctx = new ScoringContext();
+		for (int i = from; i < to; i++) {
+			labels[i] = cache != null
+					? cache.predict(this, documents.get(i), states[i], ctx, metrics)
+					: this.predict(documents.get(i), states[i], ctx, metrics);
+		}
+	}
+
+	/**
+	 * wait for every future, the first failure is thrown after the
+	 * remaining tasks are cancelled
+	 */
+	private static void await(List<Future<?>> futures) {
+		try {
+			for (Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("batch prediction interrupted", e);
+		} catch (ExecutionException e) {
+			cancel(futures);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private static void cancel(List<Future<?>> futures) {
+		for (Future<?> f : futures)
+			f.cancel(true);
+	}
+
+	/**
+	 * documents [from, to), split in halves down to CHUNK_DOCS
+	 */
+	private final class ChunkAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<String> documents;
+		private final int[] states;
+		private final int from;
+		private final int to;
+		private final String[] labels;
+		private final PredictionCache cache;
+		private final MetricsRegistry metrics;
+
+		ChunkAction(List<String> documents, int[] states, int from, int to,
+				String[] labels, PredictionCache cache, MetricsRegistry metrics) {
+			this.documents = documents;
+			this.states = states;
+			this.from = from;
+			this.to = to;
+			this.labels = labels;
+			this.cache = cache;
+			this.metrics = metrics;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= CHUNK_DOCS) {
+				ModelSnapshot.this.predictChunk(this.documents, this.states,
+						this.from, this.to, this.labels, this.cache, this.metrics);
+				return;
+			}
+			int mid = (this.from + this.to) >>> 1;
+			invokeAll(new ChunkAction(this.documents, this.states, this.from, mid, this.labels,
+					this.cache, this.metrics),
+					new ChunkAction(this.documents, this.states, mid, this.to, this.labels,
+							this.cache, this.metrics));
+		}
+	}
+
+	/**
+	 *
+	 * @param document
+	 * 		Single document of tokens separated by whitespace
+	 * @param state
+	 * 		state of the document
+	 * @param k
+	 * 		maximum number of categories
+	 * @param ctx
+	 * 		scratch buffers owned by the calling thread
+	 * @return the k most probable categories allowed by the state with
+	 * 		their normalized probabilities, before threshold and stop
+	 * 		list checks
+	 */
+	public TopK predictTopK(String document, int state, int k, ScoringContext ctx) {
+		Preconditions.checkArgument(k > 0, "k must be positive", k);
+		this.vectorizer.transform(document, ctx.x);
+		return this.predictTopK(ctx, state, k);
+	}
+
+	/**
+	 * top k of the feature vector of the context
+	 *
+	 * @param ctx
+	 * 		context holding the vectorized document
+	 * @param state
+	 * 		state of the document
+	 * @param k
+	 * 		maximum number of categories
+	 * @return the k most probable categories allowed by the state
+	 */
+	TopK predictTopK(ScoringContext ctx, int state, int k) {
+		double[] jil = ctx.scores(this.numCats);
+		this.jointLogLikelihood(ctx.x, jil);
+		TopK top = new TopK(k, this.catNames);
+		this.topK(jil, 0, 1, state, top);
+		return top;
+	}
+
+	/**
+	 *
+	 * @param documents
+	 * 		List of documents of tokens separated by whitespace
+	 * @param states
+	 * 		state of each document
+	 * @param k
+	 * 		maximum number of categories per document
+	 * @return for each document the k most probable categories allowed
+	 * 		by its state with their normalized probabilities, before
+	 * 		threshold and stop list checks
+	 */
+	public ArrayList<TopK> predictTopK(List<String> documents, int[] states, int k) {
+		Preconditions.checkState(states.length== documents.size(),
+				"each document must match a state");
+		Preconditions.checkArgument(k > 0, "k must be positive", k);
+		Matrix X = this.vectorizer.transform(documents);
+		DenseMatrix jil = this.jointLogLikelihood(X);
+		double[] data = jil.getData();
+		int numRows = jil.numRows();
+		ArrayList<TopK> results = new ArrayList<TopK>();
+		for (int i = 0; i < numRows; i++) {
+			TopK top = new TopK(k, this.catNames);
+			this.topK(data, i, numRows, states[i], top);
+			results.add(top);
+		}
+		return results;
+	}
+
+	/**
+	 * log prior + X * table, the joint likelihood of the multinomial
+	 * model
+	 *
+	 * @param X
+	 * 		Input document-feature matrix
+	 * @return LOG joint likelihood document-category matrix
+	 */
+	DenseMatrix jointLogLikelihood(Matrix X) {
+
+		DenseMatrix jil= new DenseMatrix(X.numRows(),this.numCats);
+
+		// get log(likelihood), gathering only the non-zero features
+		if (X instanceof CompRowMatrix)
+			this.table.accumulate((CompRowMatrix) X, jil);
+		else
+			X.mult(this.table, jil);
+
+		// get log(prior) + log(likelihood)
+		double[] data = jil.getData();
+		for (int i = 0; i < data.length; i++)
+			data[i] += this.logPrior;
+		return jil;
+	}
+
+	/**
+	 * single document version of jointLogLikelihood
+	 *
+	 * @param x
+	 * 		feature vector of the document
+	 * @param jil
+	 * 		row of at least nCats to fill with LOG joint likelihood
+	 */
+	void jointLogLikelihood(FeatureVector x, double[] jil) {
+
+		Arrays.fill(jil, 0, this.numCats, 0);
+		// gather only the feature rows present in the document,
+		// accumulated in ascending column order as X.mult does
+		this.table.accumulate(x, jil);
+
+		// get log(prior) + log(likelihood)
+		KERNEL.add(jil, this.numCats, this.logPrior);
+	}
+
+	/**
+	 *
+	 * @param jil
+	 * 		size = nCats row of normalized LOG joint likelihood
+	 * @param state
+	 * 		state of the document
+	 * @return predicted category after rule, threshold and stop
+	 * 		list checks, null if none
+	 */
+	String label(double[] jil, int state) {
+		return this.label(jil, 0, 1, 0, state);
+	}
+
+	/**
+	 * single row version of argmax
+	 *
+	 * @param jil
+	 * 		size = nCats row of normalized LOG joint likelihood
+	 * @param state
+	 * 		state of the document
+	 * @return category prediction, -1 if none
+	 */
+	int argmax(double[] jil, int state) {
+		return this.argmax(jil, 0, 1, 0, state);
+	}
+
+	/**
+	 * label of a row jil[offset + j * stride] of LOG joint likelihood
+	 * normalized on the fly by subtracting logsumexp
+	 *
+	 * @return predicted category after rule, threshold and stop
+	 * 		list checks, null if none
+	 */
+	String label(double[] jil, int offset, int stride,
+			double logsumexp, int state) {
+		int prediction = this.argmax(jil, offset, stride, logsumexp, state);
+
+		if (this.passes(jil, offset, stride, logsumexp, prediction))
+			return this.catNames[prediction];
+		else
+			return null;
+	}
+
+	/**
+	 * threshold and stop list checks of the category found by argmax
+	 *
+	 * @return true if the category is predicted, false if none
+	 */
+	private boolean passes(double[] jil, int offset, int stride,
+			double logsumexp, int prediction) {
+		return prediction > -1
+				&& jil[offset + prediction * stride] - logsumexp
+						> this.catThreshold[prediction]
+				&& this.catUsed[prediction];
+	}
+
+	/**
+	 * argmax of a row jil[offset + j * stride] of LOG joint likelihood
+	 * normalized on the fly by subtracting logsumexp
+	 *
+	 * @return category prediction, -1 if none
+	 */
+	int argmax(double[] jil, int offset, int stride,
+			double logsumexp, int state) {
+		if (stride == 1) {
+			ScoringKernel.Mask mask = null;
+			if (state != 0) {
+				int i = Arrays.binarySearch(this.maskStates, state);
+				if (i < 0)
+					return -1;
+				mask = this.kernelMasks[i];
+			}
+			return KERNEL.argmax(jil, offset, this.numCats, logsumexp, mask);
+		}
+		int curPred = -1;
+		// as logarithm for negative
+		double curMax = Double.NEGATIVE_INFINITY;
+
+		if (state == 0) {
+			for (int j = 0; j < this.numCats; j++) {
+				double v = jil[offset + j * stride] - logsumexp;
+				if (v > curMax && v != 0) {
+					curPred = j;
+					curMax = v;
+				}
+			}
+		} else {
+			// only visit the categories valid for the state
+			BitSet mask = this.mask(state);
+			if (mask == null)
+				return curPred;
+			for (int j = mask.nextSetBit(0); j >= 0; j = mask.nextSetBit(j + 1)) {
+				double v = jil[offset + j * stride] - logsumexp;
+				if (v > curMax && v != 0) {
+					curPred = j;
+					curMax = v;
+				}
+			}
+		}
+		return curPred;
+	}
+
+	/**
+	 * keep the k best categories of a row jil[offset + j * stride] of
+	 * LOG joint likelihood allowed by the state, and normalize them with
+	 * the log exp sum computed online in the same pass
+	 *
+	 * @param top
+	 * 		empty result to fill
+	 */
+	private void topK(double[] jil, int offset, int stride, int state, TopK top) {
+		BitSet mask = null;
+		if (state != 0) {
+			mask = this.mask(state);
+			if (mask == null)
+				return;
+		}
+		double max = Double.NEGATIVE_INFINITY;
+		double sumexp = 0;
+		for (int j = 0; j < this.numCats; j++) {
+			double v = jil[offset + j * stride];
+			// online log exp sum, rescale the sum when the max moves
+			if (v > max) {
+				sumexp = sumexp * this.exp(max - v) + 1;
+				max = v;
+			} else {
+				sumexp += this.exp(v - max);
+			}
+			if (mask == null || mask.get(j))
+				top.offer(j, v);
+		}
+		top.finish(max + this.log(sumexp));
+	}
+
+	/**
+	 * log(sum(exp(row))) of a row jil[offset + j * stride]
+	 *
+	 * @return log exp sum of the row
+	 */
+	double logSumExp(double[] jil, int offset, int stride) {
+		if (this.mathMode == MathMode.FAST)
+			return this.fastLogSumExp(jil, offset, stride);
+		if (stride == 1)
+			return KERNEL.logSumExp(jil, offset, this.numCats);
+		double max = Double.NEGATIVE_INFINITY;
+		for (int j = 0; j < this.numCats; j++) {
+			if (jil[offset + j * stride] > max)
+				max = jil[offset + j * stride];
+		}
+		// caution: log is a natural log here
+		double logsumexp = 0;
+		for (int j = 0; j < this.numCats; j++) {
+			logsumexp += Math.exp(jil[offset + j * stride] - max);
+		}
+		logsumexp = Math.log(logsumexp);
+		logsumexp += max;
+		return logsumexp;
+	}
+
+	/**
+	 * logSumExp with FastMath, the same passes
+	 *
+	 * @return log exp sum of the row
+	 */
+	private double fastLogSumExp(double[] jil, int offset, int stride) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int j = 0; j < this.numCats; j++) {
+			if (jil[offset + j * stride] > max)
+				max = jil[offset + j * stride];
+		}
+		double sumexp = 0;
+		for (int j = 0; j < this.numCats; j++) {
+			sumexp += FastMath.exp(jil[offset + j * stride] - max);
+		}
+		return FastMath.log(sumexp) + max;
+	}
+
+	/**
+	 *
+	 * @return e^x in the math mode of the snapshot
+	 */
+	double exp(double x) {
+		return this.mathMode == MathMode.FAST ? FastMath.exp(x) : Math.exp(x);
+	}
+
+	/**
+	 *
+	 * @return natural logarithm of x in the math mode of the snapshot
+	 */
+	double log(double x) {
+		return this.mathMode == MathMode.FAST ? FastMath.log(x) : Math.log(x);
+	}
+
+	/**
+	 * normalized LOG joint likelihood of a document
+	 *
+	 * @param x
+	 * 		feature vector of the document
+	 * @param jil
+	 * 		row of at least nCats to fill
+	 */
+	void score(FeatureVector x, double[] jil) {
+		this.jointLogLikelihood(x, jil);
+		this.rowLogNormalize(jil);
+	}
+
+	/**
+	 * Normalize a single row in place by log(sum(exp(row)))
+	 *
+	 * @param jil
+	 * 		joint likelihood row for each category
+	 */
+	void rowLogNormalize(double[] jil) {
+		double logsumexp = this.logSumExp(jil, 0, 1);
+		// minus instead of divide in log domain
+		for (int j = 0; j < this.numCats; j++) {
+			jil[j] -= logsumexp;
+		}
+	}
+
+	/**
+	 *
+	 * @param state
+	 * 		non zero state
+	 * @return category mask of the state, null if it has no rule
+	 */
+	private BitSet mask(int state) {
+		int i = Arrays.binarySearch(this.maskStates, state);
+		return i < 0 ? null : this.masks[i];
+	}
+}
@@ -1,12 +1,21 @@
 package no.jetpie.ml.model.nb;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
@@ -14,8 +23,11 @@ import com.google.common.io.Files;
 import com.google.gson.stream.JsonReader;
 
 import no.uib.cipr.matrix.*;
+import no.jetpie.ml.feature.FeatureVector;
 import no.jetpie.ml.feature.TfidfVectorizer;
 import no.jetpie.ml.feature.Vectorizer;
+import no.jetpie.ml.feature.VocabularyIndex;
+import no.jetpie.ml.utils.DoubleParser;
 /**
  * The multinomial Naive Bayes model
  * 
@@ -28,6 +40,8 @@ public class MultinomialNB extends NaiveBayes{
 	
 	/** conditional probability model file suffix */
 	private final String FILE_SUFFIX = ".txt";
+	/** smallest code point of a UTF-8 sequence by number of continuation bytes */
+	private static final int[] MIN_CODE_POINT = {0, 0x80, 0x800, 0x10000};
 	
 	public MultinomialNB(Vectorizer v,String filePath, String thresholdPath){
 		super(v, filePath, thresholdPath);
@@ -36,15 +50,25 @@ public class MultinomialNB extends NaiveBayes{
 	public MultinomialNB(String vocabPath,String filePath, String thresholdPath){
 		super(vocabPath, filePath, thresholdPath);
 	}	
+
+	/**
+	 * @param modelPath
+	 * 		path to a binary model file written by ModelFile
+	 */
+	public MultinomialNB(String modelPath){
+		super(modelPath);
+	}
 	
 	/**
-	 * Read the conditional probabilities trained model
+	 * Read the conditional probabilities trained model. Category files
+	 * are parsed in parallel by loadThreads threads, each one filling
+	 * its own column of the table; lines whose term is not in the
+	 * vocabulary are skipped and counted in the load report.
 	 * 
 	 * @param dirPath
 	 * 		path to the model DIRECTORY
 	 */
 	protected void loadCondProba(String dirPath){
-		long startTime = System.currentTimeMillis();
 		// main body
 		File rootDir = new File(dirPath);
 		Preconditions.checkState(rootDir.isDirectory(),
@@ -60,7 +84,7 @@ public class MultinomialNB extends NaiveBayes{
 					String ext = name.substring(lastIndex);
 					// match path name extension
 					if (ext.equals(FILE_SUFFIX)) {
-						return true;
+						return new File(dir, name).isFile();
 					}
 				}
 				return false;
@@ -70,34 +94,256 @@ public class MultinomialNB extends NaiveBayes{
 		
 		// sort the category in descending order
 		Collections.sort(Arrays.asList(files));
-		double[][] values = new double[this.numCats][this.numFeatures];
-		int ptr = 0;
-		for (File file : files) {
-			if (file.isFile()) {
-				// guava read lines
-				try {
-					String[] names = file.getName().split("\\.");
-					this.category.put(ptr, names[0]);
-
-					List<String> lines = Files.readLines(file, Charsets.UTF_8);
-					for (String line : lines) {
-						String[] parts = line.split(":");
-						values[ptr][this.vectorizer.getPosInCol(parts[0])] = Double
-								.parseDouble(parts[1]);
+		final LoadReport report = this.loadReport != null ? this.loadReport
+				: new LoadReport(this.loadThreads, null);
+		long bytes = 0;
+		for (File file : files)
+			bytes += file.length();
+		report.expect(files.length, bytes);
+
+		// feature-major, the values of a feature are contiguous
+		long size = (long) this.numFeatures * this.numCats;
+		Preconditions.checkState(size <= Integer.MAX_VALUE,
+				"model is too large for a heap table!", size);
+		final double[] values = new double[(int) size];
+		final ThreadLocal<ParseBuffers> buffers = new ThreadLocal<ParseBuffers>() {
+			@Override
+			protected ParseBuffers initialValue() {
+				return new ParseBuffers();
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(this.loadThreads, files.length)));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int ptr = 0; ptr < files.length; ptr++) {
+				String[] names = files[ptr].getName().split("\\.");
+				this.category.put(ptr, names[0]);
+				final File file = files[ptr];
+				final int column = ptr;
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						MultinomialNB.this.loadCategory(file, column, values, report, buffers.get());
+						return null;
 					}
-					ptr++;
-				} catch (IOException e) {
-					e.printStackTrace();
+				}));
+			}
+			for (Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("model loading interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException("cannot read a category file", cause);
+		} finally {
+			executor.shutdownNow();
+		}
+		this.setCondProb(new DoubleCondProbTable(values, this.numFeatures, this.numCats));
+	}
+
+	/**
+	 * per thread buffers of the category files: the bytes of a whole
+	 * file and the characters of a term, grown as needed
+	 */
+	private static final class ParseBuffers {
+		byte[] bytes = new byte[1 << 16];
+		char[] chars = new char[64];
+	}
+
+	/**
+	 * parse the "term:log probability" lines of a category file into
+	 * its column of the feature-major values. The file is read at once
+	 * into the buffer and scanned in place: terms are decoded into the
+	 * char buffer for the vocabulary lookup and values parsed from the
+	 * bytes, so no String is created but for unknown terms.
+	 */
+	private void loadCategory(File file, int column, double[] values,
+			LoadReport report, ParseBuffers buffers) throws IOException {
+		long startTime = System.nanoTime();
+		long lines = 0;
+		long unknown = 0;
+		FileInputStream in = new FileInputStream(file);
+		int size;
+		try {
+			FileChannel channel = in.getChannel();
+			Preconditions.checkState(channel.size() < Integer.MAX_VALUE,
+					"category file too large!", file);
+			size = (int) channel.size();
+			if (buffers.bytes.length < size)
+				buffers.bytes = new byte[size];
+			ByteBuffer target = ByteBuffer.wrap(buffers.bytes, 0, size);
+			while (target.hasRemaining() && channel.read(target) >= 0)
+				;
+			size = target.position();
+		} finally {
+			in.close();
+		}
+
+		byte[] bytes = buffers.bytes;
+		int i = 0;
+		while (i < size) {
+			// a line ends at \n, \r or \r\n like readLine
+			int start = i;
+			int colon = -1;
+			int end = -1;
+			while (i < size && bytes[i] != '\n' && bytes[i] != '\r') {
+				if (bytes[i] == ':') {
+					if (colon < 0)
+						colon = i;
+					else if (end < 0)
+						end = i;
 				}
+				i++;
+			}
+			int eol = i;
+			if (i < size && bytes[i++] == '\r' && i < size && bytes[i] == '\n')
+				i++;
+			lines++;
+			// same fields as split(":"), the term and the value; checked
+			// without Preconditions, whose arguments box on every line
+			if (colon < 0)
+				throw new IllegalStateException("malformed conditional probability line! "
+						+ file + ":" + lines);
+			int pos = this.lookup(bytes, start, colon - start, buffers);
+			if (pos == VocabularyIndex.NOT_FOUND) {
+				unknown++;
+				report.addUnknown(new String(bytes, start, colon - start, Charsets.UTF_8));
+				continue;
+			}
+			if (end < 0)
+				end = eol;
+			double value = DoubleParser.parse(bytes, colon + 1, end - colon - 1);
+			// rejected here so the loaded table never has to be scanned
+			if (Double.isNaN(value))
+				throw new IllegalStateException("conditional probability is not a number! "
+						+ file + ":" + lines);
+			values[pos * this.numCats + column] = value;
+		}
+		report.add(new LoadReport.FileStats(file.getPath(), file.length(), lines,
+				System.nanoTime() - startTime, unknown));
+	}
+
+	/**
+	 * column of a UTF-8 term, decoded into the char buffer; malformed
+	 * bytes are decoded by a String instead, to get the replacement
+	 * characters of a reader
+	 */
+	private int lookup(byte[] bytes, int offset, int length, ParseBuffers buffers) {
+		if (buffers.chars.length < length)
+			buffers.chars = new char[length];
+		char[] chars = buffers.chars;
+		int n = 0;
+		int i = offset;
+		int end = offset + length;
+		while (i < end) {
+			int b = bytes[i];
+			if (b >= 0) {
+				chars[n++] = (char) b;
+				i++;
+				continue;
 			}
+			int extra = (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2 : (b & 0xF8) == 0xF0 ? 3 : 0;
+			if (extra == 0 || i + extra >= end)
+				return this.vectorizer.getPosInModel(new String(bytes, offset, length, Charsets.UTF_8));
+			int cp = b & (0x3F >> extra);
+			for (int k = 1; k <= extra; k++) {
+				int c = bytes[i + k];
+				if ((c & 0xC0) != 0x80)
+					return this.vectorizer.getPosInModel(new String(bytes, offset, length, Charsets.UTF_8));
+				cp = cp << 6 | (c & 0x3F);
+			}
+			// overlong forms, surrogates and code points out of range
+			if (cp < MIN_CODE_POINT[extra] || cp > Character.MAX_CODE_POINT
+					|| (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE))
+				return this.vectorizer.getPosInModel(new String(bytes, offset, length, Charsets.UTF_8));
+			n += Character.toChars(cp, chars, n);
+			i += extra + 1;
 		}
-		this.TfeatureCondProb = new DenseMatrix(this.numFeatures, this.numCats);
-		new DenseMatrix(values).transpose(this.TfeatureCondProb);
-		System.out.print("conditional probabilities parameters loaded..");
-		System.out.println("(Elasped time: " + 
-		(System.currentTimeMillis()-startTime)/1000 + "s)");
+		return this.vectorizer.getPosInModel(chars, 0, n);
 	}
 	
+	/**
+	 * 
+	 * @param table
+	 * 		feature-major conditional probabilities
+	 */
+	void setCondProb(CondProbTable table) {
+		this.TfeatureCondProb = table;
+	}
+
+	/**
+	 * 
+	 * @return feature-major conditional probabilities
+	 */
+	CondProbTable getCondProb() {
+		return this.TfeatureCondProb;
+	}
+
+	/**
+	 * Replace the conditional probability table by a copy of the given
+	 * precision, e.g. to fit more categories in the heap. The loss
+	 * against the current table is measured on the sample documents.
+	 * Call it after init(); predictions running meanwhile finish on
+	 * the current table.
+	 * 
+	 * @param precision
+	 * 		storage precision of the new table
+	 * @param samplePath
+	 * 		sample file, one document per line, optionally prefixed by
+	 * 		its true category and a tab; null to skip the measurement
+	 * @return report of the measured loss
+	 * @throws IOException
+	 */
+	public synchronized PrecisionReport setPrecision(Precision precision,
+			String samplePath) throws IOException {
+		ModelSnapshot exact = this.getSnapshot();
+		CondProbTable compact = CondProbTable.copyOf(exact.getCondProb(), precision);
+		ModelSnapshot next = exact.withTable(compact);
+		PrecisionReport report = new PrecisionReport(precision,
+				exact.getCondProb().sizeInBytes(), compact.sizeInBytes());
+
+		if (samplePath != null) {
+			List<String> lines = Files.readLines(new File(samplePath), Charsets.UTF_8);
+			FeatureVector x = new FeatureVector();
+			double[] exactJil = new double[this.numCats];
+			double[] compactJil = new double[this.numCats];
+			for (String line : lines) {
+				int tab = line.indexOf('\t');
+				String label = tab < 0 ? null : line.substring(0, tab);
+				exact.getVectorizer().transform(tab < 0 ? line : line.substring(tab + 1), x);
+				exact.score(x, exactJil);
+				next.score(x, compactJil);
+				report.add(exactJil, compactJil,
+						exact.argmax(exactJil, 0), next.argmax(compactJil, 0),
+						exact.label(exactJil, 0), next.label(compactJil, 0), label);
+			}
+		}
+		this.setCondProb(compact);
+		this.publish(next);
+		return report;
+	}
+
+	/**
+	 * 
+	 * @return storage precision of the conditional probability table
+	 */
+	public Precision getPrecision() {
+		return this.getSnapshot().getCondProb().getPrecision();
+	}
+
+	@Override
+	protected void loadModelFile(String filePath) {
+		try {
+			ModelFile.read(filePath, this);
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot read the binary model " + filePath, e);
+		}
+	}
 	
 	/**
 	 * 
@@ -107,7 +353,6 @@ public class MultinomialNB extends NaiveBayes{
 	 */
 	protected void loadJsonFile(String jsonfile) throws IOException{
 		
-		long startTime = System.currentTimeMillis();
 		JsonReader jsonReader = new JsonReader(new FileReader(jsonfile));
 		jsonReader.beginObject();
 		// no safty here
@@ -130,23 +375,10 @@ public class MultinomialNB extends NaiveBayes{
 		}
 		jsonReader.endObject();
 		jsonReader.close();
-		
-		System.out.print("threshold and stop list loaded..");
-		System.out.println("(Elasped time: " + 
-		(System.currentTimeMillis()-startTime) + "ms)");
 	}
 	@Override
 	protected Matrix jointLogLikelihood(Matrix X) {
-
-		Matrix jil= new DenseMatrix(X.numRows(),this.numCats);
-		
-		// get log(likelihood)
-		X.mult( this.TfeatureCondProb,jil);		
-		
-		// get log(prior) + log(likelihood)
-		for(MatrixEntry e: jil)
-			e.set(e.get() + this.logPrior);
-		return jil;
+		return this.getSnapshot().jointLogLikelihood(X);
 	}
 
 }
@@ -0,0 +1,541 @@
+package no.jetpie.ml.model.nb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.gson.stream.JsonWriter;
+
+import no.jetpie.ml.feature.FeatureVector;
+import no.jetpie.ml.feature.HashingVectorizer;
+import no.jetpie.ml.feature.NGramTokenizer;
+import no.jetpie.ml.feature.TokenSink;
+import no.jetpie.ml.feature.Vectorizer;
+import no.jetpie.ml.feature.VocabularyIndex;
+
+/**
+ * Trains a MultinomialNB from labelled documents, incrementally.
+ *
+ * partialFit() tokenizes the documents as the Vectorizer does, grows
+ * the vocabulary and accumulates in primitive arrays the document
+ * frequency of every term and, per category, the l2 normalized term
+ * frequencies of its documents, sparse over the terms the category
+ * has seen. write() turns the counts into the
+ * text model MultinomialNB and TfidfVectorizer read:
+ * <pre>
+ *   idf(t)     = ln((1 + numDocs) / (1 + df(t))) + 1
+ *   w(c, t)    = idf(t) * sum of normalized tf(t) over documents of c
+ *   log P(t|c) = ln((w(c, t) + alpha) / (sum_t w(c, t) + alpha * numVocab))
+ * </pre>
+ * The idf is only known once every document is seen, so it scales the
+ * accumulated features instead of being applied before the row
+ * normalization as in prediction; the table keeps the relative weight
+ * of the terms of a document up to that normalization.
+ *
+ * Terms containing ',' or ':' are skipped, they cannot be written in
+ * the text model. A trainer is not thread-safe.
+ *
+ * With a HashingVectorizer the buckets take the place of the terms:
+ * the model is keyed by bucket number and its vocabulary model holds
+ * the idf of the buckets hit in training, to be read by a
+ * HashingVectorizer of the same bits.
+ *
+ * The counts are additive, so trainers fed with different shards of
+ * a corpus merge into the trainer of the whole corpus, in any
+ * grouping: document and term counts exactly, feature sums up to the
+ * rounding of their different order of addition. The vocabulary
+ * columns follow the order the terms came in. A trainer can be saved as a partial file with
+ * writePartial() and read back with readPartial(), to merge shards
+ * trained on other machines.
+ */
+public class MultinomialNBTrainer {
+
+	/** "NBJP" */
+	static final int PARTIAL_MAGIC = 0x4E424A50;
+	/** partial file format version */
+	static final int PARTIAL_VERSION = 2;
+
+	/** additive (Laplace/Lidstone) smoothing */
+	private final double alpha;
+	/** terms are hashed into buckets if not null */
+	private final HashingVectorizer hashing;
+	/** terms seen in less documents are left out of the model */
+	private int minDf = 1;
+	/** every term seen, the value is the term ordinal */
+	private final VocabularyIndex vocabulary = new VocabularyIndex();
+	/** document frequency by term ordinal */
+	private int[] df = new int[16];
+	/** category position by name */
+	private final HashMap<String, Integer> catIndex = new HashMap<String, Integer>();
+	/** category names by position */
+	private final ArrayList<String> catNames = new ArrayList<String>();
+	/** number of documents by category position */
+	private int[] catDocs = new int[4];
+	/** normalized term frequencies by category position, term ordinal */
+	private TermSums[] featureSums = new TermSums[4];
+	/** number of documents */
+	private long numDocs;
+
+	/** tokenizer following the N_GRAM of the Vectorizer */
+	private final NGramTokenizer tokenizer = Vectorizer.newTokenizer();
+	/** counts of the current document */
+	private final FeatureVector x = new FeatureVector();
+	/** decimal bucket number of the current n-gram */
+	private final char[] key = new char[10];
+	private final TokenSink sink = new TokenSink() {
+		public void accept(char[] buffer, int offset, int length) {
+			if (MultinomialNBTrainer.this.hashing != null) {
+				char[] key = MultinomialNBTrainer.this.key;
+				int n = 0;
+				int pos = MultinomialNBTrainer.this.hashing.getPosInCol(buffer, offset, length);
+				do {
+					key[key.length - ++n] = (char) ('0' + pos % 10);
+					pos /= 10;
+				} while (pos > 0);
+				buffer = key;
+				offset = key.length - n;
+				length = n;
+			}
+			int ordinal = MultinomialNBTrainer.this.vocabulary.get(buffer, offset, length);
+			if (ordinal == VocabularyIndex.NOT_FOUND) {
+				for (int i = offset; i < offset + length; i++) {
+					if (buffer[i] == ',' || buffer[i] == ':')
+						return;
+				}
+				ordinal = MultinomialNBTrainer.this.addTerm(
+						CharBuffer.wrap(buffer, offset, length));
+			}
+			MultinomialNBTrainer.this.x.add(ordinal);
+		}
+	};
+
+	/**
+	 * @param alpha
+	 * 		additive smoothing parameter, 1 for Laplace smoothing
+	 */
+	public MultinomialNBTrainer(double alpha) {
+		this(alpha, null);
+	}
+
+	/**
+	 * @param alpha
+	 * 		additive smoothing parameter, 1 for Laplace smoothing
+	 * @param hashing
+	 * 		vectorizer whose buckets replace the terms, without alternate
+	 * 		sign; null to learn a vocabulary
+	 */
+	public MultinomialNBTrainer(double alpha, HashingVectorizer hashing) {
+		Preconditions.checkArgument(alpha > 0, "alpha must be positive", alpha);
+		Preconditions.checkArgument(hashing == null || !hashing.isAlternateSign(),
+				"signed features cannot be counted", hashing);
+		this.alpha = alpha;
+		this.hashing = hashing;
+	}
+
+	/**
+	 * @param minDf
+	 * 		minimum document frequency of a term to be written
+	 */
+	public void setMinDf(int minDf) {
+		Preconditions.checkArgument(minDf > 0, "minimum document frequency must be positive",
+				minDf);
+		this.minDf = minDf;
+	}
+
+	/**
+	 * learn from a mini-batch
+	 *
+	 * @param documents
+	 * 		documents of terms separated by whitespace
+	 * @param labels
+	 * 		category of each document
+	 */
+	public void partialFit(List<String> documents, List<String> labels) {
+		Preconditions.checkArgument(documents.size() == labels.size(),
+				"each document must match a label");
+		for (int i = 0; i < documents.size(); i++)
+			this.partialFit(documents.get(i), labels.get(i));
+	}
+
+	/**
+	 * learn from one document
+	 *
+	 * @param document
+	 * 		document of terms separated by whitespace
+	 * @param label
+	 * 		category of the document
+	 */
+	public void partialFit(String document, String label) {
+		int cat = this.category(label);
+		this.x.clear();
+		this.tokenizer.tokenize(document, this.sink);
+		this.x.compact();
+
+		this.numDocs++;
+		this.catDocs[cat]++;
+		double norm = 0;
+		for (int i = 0; i < this.x.size(); i++)
+			norm += this.x.get(i) * this.x.get(i);
+		if (norm == 0)
+			return;
+		norm = Math.sqrt(norm);
+		TermSums sums = this.featureSums(cat);
+		for (int i = 0; i < this.x.size(); i++) {
+			int ordinal = this.x.index(i);
+			this.df[ordinal]++;
+			sums.add(ordinal, this.x.get(i) / norm);
+		}
+	}
+
+	/**
+	 * add the counts of another trainer, e.g. trained on another shard.
+	 * Terms and categories new to this trainer are appended. Both must
+	 * have the same alpha and hashing space.
+	 *
+	 * @param other
+	 * 		trainer to add, left unchanged
+	 */
+	public void merge(MultinomialNBTrainer other) {
+		Preconditions.checkArgument(other != this, "cannot merge a trainer into itself");
+		Preconditions.checkArgument(this.getBits() == other.getBits(),
+				"cannot merge trainers of different hashing spaces", other.getBits());
+		Preconditions.checkArgument(this.alpha == other.alpha,
+				"cannot merge trainers of different smoothing", other.alpha);
+		int numTerms = other.vocabulary.size();
+		int[] ordinals = new int[numTerms];
+		for (int t = 0; t < numTerms; t++) {
+			String term = other.vocabulary.term(t);
+			int ordinal = this.vocabulary.get(term);
+			if (ordinal == VocabularyIndex.NOT_FOUND)
+				ordinal = this.addTerm(term);
+			ordinals[t] = ordinal;
+			this.df[ordinal] += other.df[t];
+		}
+		for (int oc = 0; oc < other.catNames.size(); oc++) {
+			int cat = this.category(other.catNames.get(oc));
+			this.catDocs[cat] += other.catDocs[oc];
+			TermSums src = other.featureSums[oc];
+			if (src == null)
+				continue;
+			TermSums dst = this.featureSums(cat);
+			for (int i = 0; i < src.size(); i++)
+				dst.add(ordinals[src.key(i)], src.sum(i));
+		}
+		this.numDocs += other.numDocs;
+	}
+
+	/**
+	 * save the counts into a partial file
+	 *
+	 * @param path
+	 * 		path to the partial file
+	 * @throws IOException
+	 */
+	public void writePartial(String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(path), 1 << 16));
+		try {
+			out.writeInt(PARTIAL_MAGIC);
+			out.writeInt(PARTIAL_VERSION);
+			out.writeDouble(this.alpha);
+			out.writeInt(this.getBits());
+			out.writeLong(this.numDocs);
+			int numTerms = this.vocabulary.size();
+			out.writeInt(numTerms);
+			for (int t = 0; t < numTerms; t++) {
+				writeString(out, this.vocabulary.term(t));
+				out.writeInt(this.df[t]);
+			}
+			out.writeInt(this.catNames.size());
+			for (int cat = 0; cat < this.catNames.size(); cat++) {
+				writeString(out, this.catNames.get(cat));
+				out.writeInt(this.catDocs[cat]);
+				// sparse: a category sees a small part of the vocabulary
+				TermSums sums = this.featureSums[cat];
+				int nnz = sums == null ? 0 : sums.size();
+				out.writeInt(nnz);
+				for (int i = 0; i < nnz; i++) {
+					out.writeInt(sums.key(i));
+					out.writeDouble(sums.sum(i));
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * read a partial file written by writePartial()
+	 *
+	 * @param path
+	 * 		path to the partial file
+	 * @return trainer holding the saved counts
+	 * @throws IOException
+	 */
+	public static MultinomialNBTrainer readPartial(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(path), 1 << 16));
+		try {
+			Preconditions.checkState(in.readInt() == PARTIAL_MAGIC,
+					"not a partial training file!", path);
+			int version = in.readInt();
+			Preconditions.checkState(version == 1 || version == PARTIAL_VERSION,
+					"unsupported partial training file version!", version);
+			double alpha = in.readDouble();
+			// version 1 has no hashing
+			int bits = version == 1 ? 0 : in.readInt();
+			MultinomialNBTrainer trainer = new MultinomialNBTrainer(alpha,
+					bits == 0 ? null : new HashingVectorizer(bits));
+			trainer.numDocs = in.readLong();
+			int numTerms = in.readInt();
+			for (int t = 0; t < numTerms; t++) {
+				int ordinal = trainer.addTerm(readString(in));
+				trainer.df[ordinal] = in.readInt();
+			}
+			int numCats = in.readInt();
+			for (int c = 0; c < numCats; c++) {
+				int cat = trainer.category(readString(in));
+				trainer.catDocs[cat] = in.readInt();
+				int nnz = in.readInt();
+				if (nnz == 0)
+					continue;
+				TermSums sums = trainer.featureSums(cat);
+				for (int i = 0; i < nnz; i++) {
+					int t = in.readInt();
+					Preconditions.checkState(t >= 0 && t < numTerms,
+							"term ordinal out of range!", t);
+					sums.add(t, in.readDouble());
+				}
+			}
+			return trainer;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 *
+	 * @return additive smoothing parameter
+	 */
+	public double getAlpha() {
+		return this.alpha;
+	}
+
+	/**
+	 *
+	 * @return number of bits of the hashing space, 0 if terms are not
+	 * 		hashed
+	 */
+	public int getBits() {
+		return this.hashing == null ? 0 : this.hashing.getBits();
+	}
+
+	/**
+	 *
+	 * @return number of documents learned
+	 */
+	public long getNumDocs() {
+		return this.numDocs;
+	}
+
+	/**
+	 *
+	 * @return number of categories seen
+	 */
+	public int getNumCats() {
+		return this.catNames.size();
+	}
+
+	/**
+	 *
+	 * @return number of terms, or buckets, seen before the minimum
+	 * 		document frequency is applied
+	 */
+	public int getNumTerms() {
+		return this.vocabulary.size();
+	}
+
+	/**
+	 *
+	 * @param label
+	 * 		category name
+	 * @return number of documents learned for the category
+	 */
+	public int getNumDocs(String label) {
+		Integer cat = this.catIndex.get(label);
+		return cat == null ? 0 : this.catDocs[cat];
+	}
+
+	/**
+	 * write the text model: vocabulary with idf, one log probability
+	 * file per category and the boundary json. Category files of the
+	 * directory not written by this call are deleted.
+	 *
+	 * @param vocabPath
+	 * 		path to vocabulary model
+	 * @param dirPath
+	 * 		path to conditional probability directory
+	 * @param thresholdPath
+	 * 		boundary json file
+	 * @param threshold
+	 * 		LOG probability threshold of every category
+	 * @throws IOException
+	 */
+	public void write(String vocabPath, String dirPath, String thresholdPath,
+			double threshold) throws IOException {
+		Preconditions.checkState(this.catNames.size() > 0, "no document learned!");
+		// columns of the terms kept, in order of appearance
+		int numTerms = this.vocabulary.size();
+		int[] column = new int[numTerms];
+		int numVocab = 0;
+		for (int t = 0; t < numTerms; t++)
+			column[t] = this.df[t] >= this.minDf ? numVocab++ : -1;
+		Preconditions.checkState(numVocab > 0, "no term reaches the minimum document frequency!",
+				this.minDf);
+
+		double[] idf = new double[numTerms];
+		Writer out = writer(new File(vocabPath));
+		try {
+			for (int t = 0; t < numTerms; t++) {
+				if (column[t] < 0)
+					continue;
+				idf[t] = Math.log((1.0 + this.numDocs) / (1.0 + this.df[t])) + 1;
+				out.write(this.vocabulary.term(t) + "," + column[t] + "," + idf[t] + "\n");
+			}
+		} finally {
+			out.close();
+		}
+
+		File dir = new File(dirPath);
+		Preconditions.checkState(dir.isDirectory() || dir.mkdirs(),
+				"cannot create the model directory!", dir);
+		for (File stale : dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.endsWith(".txt")
+						&& !MultinomialNBTrainer.this.catIndex.containsKey(
+								name.substring(0, name.length() - 4));
+			}
+		})) {
+			Preconditions.checkState(stale.delete(), "cannot delete a stale category!", stale);
+		}
+		for (int cat = 0; cat < this.catNames.size(); cat++) {
+			TermSums sums = this.featureSums[cat];
+			// summed by term ordinal, whatever the order the terms came in
+			double total = this.alpha * numVocab;
+			for (int t = 0; sums != null && t < numTerms; t++) {
+				if (column[t] >= 0)
+					total += idf[t] * sums.get(t);
+			}
+			double logTotal = Math.log(total);
+			out = writer(new File(dir, this.catNames.get(cat) + ".txt"));
+			try {
+				for (int t = 0; t < numTerms; t++) {
+					if (column[t] < 0)
+						continue;
+					double w = sums != null ? idf[t] * sums.get(t) : 0;
+					out.write(this.vocabulary.term(t) + ":"
+							+ (Math.log(w + this.alpha) - logTotal) + "\n");
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		JsonWriter json = new JsonWriter(writer(new File(thresholdPath)));
+		try {
+			json.beginObject();
+			for (String name : this.catNames) {
+				json.name(name).beginObject();
+				json.name("threshold").value(threshold);
+				json.name("used").value(1);
+				json.endObject();
+			}
+			json.endObject();
+		} finally {
+			json.close();
+		}
+	}
+
+	/**
+	 *
+	 * @param label
+	 * 		category name
+	 * @return position of the category, added if new
+	 */
+	private int category(String label) {
+		Integer cat = this.catIndex.get(label);
+		if (cat != null)
+			return cat;
+		// the name becomes a file name, read back up to the first '.'
+		Preconditions.checkArgument(label != null && !label.isEmpty()
+				&& label.indexOf('.') < 0 && label.indexOf('/') < 0
+				&& label.indexOf(File.separatorChar) < 0,
+				"label cannot be a category file name!", label);
+		int pos = this.catNames.size();
+		if (pos == this.catDocs.length) {
+			this.catDocs = Arrays.copyOf(this.catDocs, pos << 1);
+			this.featureSums = Arrays.copyOf(this.featureSums, pos << 1);
+		}
+		this.catIndex.put(label, pos);
+		this.catNames.add(label);
+		return pos;
+	}
+
+	/**
+	 *
+	 * @return ordinal of a new term
+	 */
+	private int addTerm(CharSequence term) {
+		int ordinal = this.vocabulary.size();
+		this.vocabulary.put(term, ordinal);
+		if (ordinal == this.df.length)
+			this.df = Arrays.copyOf(this.df, ordinal << 1);
+		return ordinal;
+	}
+
+	/**
+	 *
+	 * @return sums of the category, created if missing
+	 */
+	private TermSums featureSums(int cat) {
+		TermSums sums = this.featureSums[cat];
+		if (sums == null) {
+			sums = new TermSums();
+			this.featureSums[cat] = sums;
+		}
+		return sums;
+	}
+
+	private static Writer writer(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), Charsets.UTF_8), 1 << 16);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeInt(s.length());
+		out.writeChars(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		char[] chars = new char[in.readInt()];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = in.readChar();
+		return new String(chars);
+	}
+}
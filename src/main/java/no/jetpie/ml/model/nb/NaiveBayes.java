@@ -5,6 +5,7 @@ import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 //Matrix import
 import no.uib.cipr.matrix.*;
@@ -15,12 +16,23 @@ import com.google.common.io.Files;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 
+import no.jetpie.ml.feature.FeatureBatch;
+import no.jetpie.ml.feature.FeatureVector;
 import no.jetpie.ml.feature.TfidfVectorizer;
 import no.jetpie.ml.feature.Vectorizer;
+import no.jetpie.ml.metrics.MetricsRegistry;
 import no.jetpie.ml.utils.Rule;
 /**
  * Base class for Naive Bayes Models
  * 
+ * After init() every prediction method is thread-safe. The loaded
+ * model lives in an immutable ModelSnapshot published through a
+ * volatile field; a prediction reads it once, so a concurrent
+ * setRule() or precision change never shows a half updated model.
+ * Scratch buffers are kept per thread. An optional PredictionCache
+ * answers label predictions of documents seen before, an optional
+ * MetricsRegistry receives the latencies and counters of the others.
+ * 
  * @author bingqingqu
  * @version 0.1.2
  * @date 2015.1.22
@@ -32,7 +44,7 @@ public abstract class NaiveBayes {
 	 * transposed conditional probabilities matrix transposed form because
 	 * later will be used as A * B^T
 	 */
-	protected Matrix TfeatureCondProb;
+	protected CondProbTable TfeatureCondProb;
 	/** prior : uniform distributed prior is applied */
 	protected double logPrior;
 	/** number of categories */
@@ -55,8 +67,31 @@ public abstract class NaiveBayes {
 	private String dirPath;
 	/** file path to thresholds */
 	private String thresholdPath;
-	
-
+	/** file path to a binary model, used instead of the text files */
+	private String modelPath;
+	/** current immutable state used by predictions */
+	private volatile ModelSnapshot snapshot;
+	/** cache of label predictions, null if none */
+	private volatile PredictionCache cache;
+	/** receiver of the inference metrics, null if none */
+	private volatile MetricsRegistry metrics;
+	/** exp and log of the normalization */
+	protected MathMode mathMode = MathMode.EXACT;
+	/** number of threads parsing the category files */
+	protected int loadThreads = Runtime.getRuntime().availableProcessors();
+	/** receiver of the loading progress, null if none */
+	private LoadListener loadListener;
+	/** counters of the last init(), filled while loading */
+	protected LoadReport loadReport;
+	/** counters of the vocabulary model read by the constructor */
+	private LoadReport.FileStats vocabStats;
+	/** scratch buffers for single document prediction */
+	private final ThreadLocal<ScoringContext> context = new ThreadLocal<ScoringContext>() {
+		@Override
+		protected ScoringContext initialValue() {
+			return new ScoringContext();
+		}
+	};
 	
 	
 	/**
@@ -87,7 +122,10 @@ public abstract class NaiveBayes {
 	 */
 	public NaiveBayes(String vocabPath, String dirPath, String thresholdPath) {
 		this.vectorizer = new TfidfVectorizer(vocabPath, true);
+		long startTime = System.nanoTime();
 		this.vectorizer.init();
+		this.vocabStats = new LoadReport.FileStats(vocabPath, new File(vocabPath).length(),
+				this.vectorizer.getNumVocab(), System.nanoTime() - startTime, 0);
 		Preconditions.checkNotNull(this.vectorizer.getNumVocab(),
 				"vocabulary model has no vocabulary!", this.vectorizer);
 		this.numFeatures = this.vectorizer.getNumVocab();
@@ -98,18 +136,117 @@ public abstract class NaiveBayes {
 	}
 	
 	/**
-	 * initialize the parameters
+	 * @param modelPath
+	 * 		path to a binary model file holding vocabulary, idf, 
+	 * 		categories, thresholds and conditional probabilities
+	 */
+	protected NaiveBayes(String modelPath) {
+		this.modelPath = modelPath;
+	}
+	
+	/**
+	 * initialize the parameters; the counters of the load go to the
+	 * LoadListener as files are read and to getLoadReport() once done
 	 */
 	public void init(){
-		this.loadCondProba(this.dirPath);
-		try {
-			this.loadJsonFile(this.thresholdPath);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		long startTime = System.nanoTime();
+		this.loadReport = new LoadReport(this.loadThreads, this.loadListener);
+		if (this.vocabStats != null) {
+			this.loadReport.expect(1, this.vocabStats.getBytes());
+			this.loadReport.add(this.vocabStats);
+		}
+		if (this.modelPath != null) {
+			this.loadReport.expect(1, new File(this.modelPath).length());
+			long t = System.nanoTime();
+			this.loadModelFile(this.modelPath);
+			Preconditions.checkNotNull(this.vectorizer,
+					"binary model is not loaded!", this.modelPath);
+			this.loadReport.add(new LoadReport.FileStats(this.modelPath,
+					new File(this.modelPath).length(), 0, System.nanoTime() - t, 0));
+		} else {
+			this.loadCondProba(this.dirPath);
+			this.loadReport.expect(1, new File(this.thresholdPath).length());
+			long t = System.nanoTime();
+			try {
+				this.loadJsonFile(this.thresholdPath);
+			} catch (IOException e) {
+				throw new IllegalStateException("cannot read the thresholds "
+						+ this.thresholdPath, e);
+			}
+			this.loadReport.add(new LoadReport.FileStats(this.thresholdPath,
+					new File(this.thresholdPath).length(), 0, System.nanoTime() - t, 0));
 		}
 		// uniform prior
 		this.logPrior = 0 - Math.log((double) this.numCats);
+		// rules set meanwhile are either compiled here or added to
+		// the published snapshot
+		synchronized (this) {
+			this.publish(this.buildSnapshot());
+		}
+		// the vocabulary model is read by the constructor
+		long nanos = System.nanoTime() - startTime;
+		if (this.vocabStats != null)
+			nanos += this.vocabStats.getNanos();
+		this.loadReport.finish(nanos, this.TfeatureCondProb.sizeInBytes());
+	}
+
+	/**
+	 * 
+	 * @param listener
+	 * 		receiver of the progress of the next init(), null if none
+	 */
+	public void setLoadListener(LoadListener listener) {
+		this.loadListener = listener;
+	}
+
+	/**
+	 * 
+	 * @param threads
+	 * 		number of threads parsing the category files in init()
+	 */
+	public void setLoadThreads(int threads) {
+		Preconditions.checkArgument(threads > 0, "threads must be positive", threads);
+		this.loadThreads = threads;
+	}
+
+	/**
+	 * 
+	 * @return counters of the last init(), null before
+	 */
+	public LoadReport getLoadReport() {
+		return this.loadReport;
+	}
+
+	/**
+	 * flatten category names, thresholds and stop flags into arrays
+	 * indexed by category position and compile every rule into a
+	 * category mask
+	 * 
+	 * @return snapshot of the loaded model
+	 */
+	private ModelSnapshot buildSnapshot() {
+		String[] catNames = new String[this.numCats];
+		double[] catThreshold = new double[this.numCats];
+		boolean[] catUsed = new boolean[this.numCats];
+		for (int j = 0; j < this.numCats; j++) {
+			String name = this.category.get(j);
+			Double t = this.threshold.get(name);
+			Boolean u = this.used.get(name);
+			catNames[j] = name;
+			// a category without threshold never passes the check
+			catThreshold[j] = t == null ? Double.NaN : t;
+			catUsed[j] = u != null && u;
+		}
+		int[] states = new int[this.rules.size()];
+		int n = 0;
+		for (int state : this.rules.keySet())
+			states[n++] = state;
+		Arrays.sort(states);
+		BitSet[] compiled = new BitSet[states.length];
+		for (int i = 0; i < states.length; i++)
+			compiled[i] = this.rules.get(states[i]).compile(catNames);
+		return new ModelSnapshot(this.vectorizer, this.TfeatureCondProb, this.logPrior,
+				catNames, catThreshold, catUsed, states, compiled, this.mathMode);
 	}
 
 	/**
@@ -127,6 +264,15 @@ public abstract class NaiveBayes {
 	 * @throws IOException 
 	 */
 	protected abstract void loadJsonFile(String jsonfile) throws IOException;
+
+	/**
+	 * Read the whole model from a binary model file, which sets the
+	 * vectorizer, categories, thresholds and conditional probabilities
+	 * 
+	 * @param filePath
+	 * 		path to the binary model file
+	 */
+	protected abstract void loadModelFile(String filePath);
 	
 	
 	/**
@@ -148,29 +294,77 @@ public abstract class NaiveBayes {
 	 * 		List of category predictions
 	 */
 	public ArrayList<String> predict(List<String> documents,int [] states) {
-		// pre-check
+		ModelSnapshot snapshot = this.getSnapshot();
+		PredictionCache c = this.cache;
+		MetricsRegistry m = this.metrics;
+		if (c == null && m == null)
+			return snapshot.predict(documents, states);
+		// document by document, the labels are the same
 		Preconditions.checkState(states.length== documents.size(),
 				"each document must match a state");
-		// transform documents into feature vectors
-		Matrix X = this.vectorizer.transform(documents);
-		// get joint log likelihood 
-		Matrix jil = jointLogLikelihood(X);
-		// normalize using log exp sum
-		this.rowLogNormalize(jil);
-		int[] predictions = this.argmax(jil,states);
-		ArrayList<String> labels = new ArrayList<String>();
-
-		for (int i = 0; i < predictions.length; i++) {
-			String predCate = this.category.get(predictions[i]);
-			if( predictions[i] > -1
-					&& jil.get(i, predictions[i]) > this.threshold.get(predCate)
-					&& this.used.get(predCate))
-				labels.add(predCate);
-			else
-				labels.add(null);
+		ScoringContext ctx = this.context.get();
+		ArrayList<String> labels = new ArrayList<String>(documents.size());
+		int i = 0;
+		for (String document : documents) {
+			labels.add(c != null ? c.predict(snapshot, document, states[i], ctx, m)
+					: snapshot.predict(document, states[i], ctx, m));
+			i++;
 		}
 		return labels;
 	}
+
+	/**
+	 * parallel batch prediction, e.g. for offline re-classification;
+	 * the labels are the ones of predict(List, int[]) in input order.
+	 * Every document goes through the cache and the metrics if set.
+	 * 
+	 * @param documents
+	 * 		List of documents of tokens separated by whitespace
+	 * @param states
+	 * 		state of each document
+	 * @param executor
+	 * 		executor running the chunks of the batch, a ForkJoinPool
+	 * 		such as ForkJoinPool.commonPool() or a fixed thread pool
+	 * @return
+	 * 		List of category predictions
+	 */
+	public ArrayList<String> predict(List<String> documents, int[] states,
+			ExecutorService executor) {
+		return this.getSnapshot().predict(documents, states, executor, this.cache,
+				this.metrics);
+	}
+
+	/**
+	 * 
+	 * @param documents
+	 * 		List of documents of tokens separated by whitespace
+	 * @param states
+	 * 		state of each document
+	 * @param k
+	 * 		maximum number of categories per document
+	 * @return for each document the k most probable categories allowed
+	 * 		by its state with their normalized probabilities, before
+	 * 		threshold and stop list checks
+	 */
+	public ArrayList<TopK> predictTopK(List<String> documents, int[] states, int k) {
+		return this.getSnapshot().predictTopK(documents, states, k);
+	}
+
+	/**
+	 * 
+	 * @param document
+	 * 		Single document of tokens separated by whitespace
+	 * @param state
+	 * 		state of the document
+	 * @param k
+	 * 		maximum number of categories
+	 * @return the k most probable categories allowed by the state with
+	 * 		their normalized probabilities, before threshold and stop
+	 * 		list checks
+	 */
+	public TopK predictTopK(String document, int state, int k) {
+		return this.getSnapshot().predictTopK(document, state, k, this.context.get());
+	}
 	
 	/**
 	 * 
@@ -180,27 +374,121 @@ public abstract class NaiveBayes {
 	 * 
 	 */
 	public String predict(String document,int state) {
-		//TODO improve the efficiency by using vector later
-		// use a batch manner to process
-		ArrayList<String> documents = new ArrayList<String>();
-		
-		documents.add(document);
-		// vectorization
-		Matrix X = this.vectorizer.transform(documents);
-		// get joint likelihood
-		Matrix jil = jointLogLikelihood(X);
-		this.rowLogNormalize(jil);
-		int [] states = {state};
-		int[] predictions = this.argmax(jil,states);
-		// return predictions
-		String predCate = this.category.get(predictions[0]);
+		// reuse the buffers of the current thread, no matrix is built
+		PredictionCache c = this.cache;
+		if (c != null)
+			return c.predict(this.getSnapshot(), document, state, this.context.get(),
+					this.metrics);
+		return this.getSnapshot().predict(document, state, this.context.get(), this.metrics);
+	}
 
-		if( predictions[0] > -1
-				&& jil.get(0, predictions[0]) > this.threshold.get(predCate)
-				&& this.used.get(predCate))
-			return predCate;
-		else
-			return null;
+	/**
+	 * predict(String, int) of a small batch of documents on the buffers
+	 * of the current thread, scored together; with a cache or metrics
+	 * the documents are predicted one by one through them
+	 * 
+	 * @param documents
+	 * 		documents of tokens separated by whitespace
+	 * @param states
+	 * 		state of each document
+	 * @return List of category predictions
+	 */
+	ArrayList<String> predictBatch(List<String> documents, int[] states) {
+		if (this.cache == null && this.metrics == null)
+			return this.getSnapshot().predict(documents, states, this.context.get());
+		ArrayList<String> labels = new ArrayList<String>(documents.size());
+		for (int i = 0; i < documents.size(); i++)
+			labels.add(this.predict(documents.get(i), states[i]));
+		return labels;
+	}
+
+	/**
+	 * predict a pre-vectorized document, without tokenizing nor looking
+	 * the terms up; idf and normalization are applied in the model, so
+	 * the label is the one of the document the ids stand for. The cache
+	 * is keyed by text and not used.
+	 * 
+	 * @param ids
+	 * 		column positions of the terms in the vocabulary of the model
+	 * 		(buckets for a HashingVectorizer), in any order
+	 * @param counts
+	 * 		count of each id, null for one occurrence per id
+	 * @param state
+	 * 		state of the document
+	 * @return predicted category
+	 */
+	public String predict(int[] ids, int[] counts, int state) {
+		return this.getSnapshot().predict(ids, counts, state, this.context.get(), this.metrics);
+	}
+
+	/**
+	 * predict(int[], int[], int) with real valued counts
+	 * 
+	 * @param ids
+	 * 		column positions of the terms in the vocabulary of the model
+	 * @param counts
+	 * 		count of each id, null for one occurrence per id
+	 * @param state
+	 * 		state of the document
+	 * @return predicted category
+	 */
+	public String predict(int[] ids, float[] counts, int state) {
+		return this.getSnapshot().predict(ids, counts, state, this.context.get(), this.metrics);
+	}
+
+	/**
+	 * 
+	 * @param batch
+	 * 		pre-vectorized documents, reusable by the caller once the
+	 * 		call returns
+	 * @param states
+	 * 		state of each document
+	 * @return List of category predictions
+	 */
+	public ArrayList<String> predict(FeatureBatch batch, int[] states) {
+		return this.getSnapshot().predict(batch, states, this.context.get(), this.metrics);
+	}
+
+	/**
+	 * put a cache in front of the label predictions of predict(String,
+	 * int), predict(List, int[]) and predict(List, int[],
+	 * ExecutorService); the cache may be shared by models
+	 * 
+	 * @param cache
+	 * 		cache to use, null to predict every document
+	 */
+	public void setCache(PredictionCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * 
+	 * @return cache of label predictions, null if none
+	 */
+	public PredictionCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * record stage latencies, counters and the predicted categories of
+	 * the documents scored by predict(String, int), predict(List, int[])
+	 * and predict(List, int[], ExecutorService); documents answered by
+	 * the cache are counted by the cache
+	 * 
+	 * @param metrics
+	 * 		receiver of the metrics, may be shared by models; null to
+	 * 		record nothing
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * 
+	 * @return receiver of the inference metrics, null if none
+	 */
+	public MetricsRegistry getMetrics() {
+		return this.metrics;
 	}
 
 	/**
@@ -211,9 +499,21 @@ public abstract class NaiveBayes {
 	 * 	       pair 	 
 	 */
 	public Matrix predictLogProba(ArrayList<String> documents) {
-		Matrix X = this.vectorizer.transform(documents);
-		Matrix jil = this.jointLogLikelihood(X);
-		this.rowLogNormalize(jil);
+		return this.predictLogProba(this.getSnapshot(), documents);
+	}
+
+	/**
+	 * 
+	 * @param snapshot
+	 * 		state of the model to predict with
+	 * @param documents
+	 * 		documents of terms separated by white space
+	 * @return LOG joint likelihood for each document-category pair
+	 */
+	private Matrix predictLogProba(ModelSnapshot snapshot, ArrayList<String> documents) {
+		Matrix X = snapshot.getVectorizer().transform(documents);
+		Matrix jil = snapshot.jointLogLikelihood(X);
+		this.rowLogNormalize(jil, snapshot);
 		return jil;
 	}
 
@@ -228,10 +528,7 @@ public abstract class NaiveBayes {
 
 		ArrayList<String> documents = new ArrayList<String>();
 		documents.add(document);
-		Matrix X = this.vectorizer.transform(documents);
-		Matrix jil = this.jointLogLikelihood(X);
-		this.rowLogNormalize(jil);
-		return jil;
+		return this.predictLogProba(documents);
 	}
 
 	/**
@@ -241,9 +538,10 @@ public abstract class NaiveBayes {
 	 * @return joint likelihood of documents
 	 */
 	public Matrix predictProba(ArrayList<String> documents){
-		Matrix jil = this.predictLogProba(documents);
+		ModelSnapshot snapshot = this.getSnapshot();
+		Matrix jil = this.predictLogProba(snapshot, documents);
 		for(MatrixEntry e: jil){
-			e.set(Math.exp(e.get()));
+			e.set(snapshot.exp(e.get()));
 		}
 		return jil;
 	}
@@ -255,70 +553,21 @@ public abstract class NaiveBayes {
 	 * @return joint likelihood of documents
 	 */
 	public Matrix predictProba(String document){
-		Matrix jil = this.predictLogProba(document);
-		for(MatrixEntry e: jil){
-			e.set(Math.exp(e.get()));
-		}
-		return jil;
+		ArrayList<String> documents = new ArrayList<String>();
+		documents.add(document);
+		return this.predictProba(documents);
 	}
 	
 	
-	/**
-	 * 
-	 * @param jil
-	 * 		nDocs * nCats Matrix of predictions for each doc and cat pairs
-	 * @return size = nDocs integer array for predictions
-	 */
-	private int[] argmax(Matrix jil,int [] states) {
-		int[] predictions = new int[jil.numRows()];
-		
-		for (int i = 0; i < jil.numRows(); i++) {
-			int curPred = -1;
-			// as logarithm for negative
-			double curMax = Double.NEGATIVE_INFINITY;	
-			
-			if(states[i] == 0){
-				
-				for (int j = 0; j < jil.numColumns(); j++) {
-					
-					if (jil.get(i, j) > curMax && jil.get(i, j) != 0) {
-						curPred = j;
-						curMax = jil.get(i, j);
-					}
-				}
-				predictions[i] = curPred;
-				
-			}else if(!this.statePool.contains(states[i])){
-				predictions[i] = curPred;
-				continue;
-				
-			}
-			else{
-				Rule r = this.rules.get(states[i]);
-				for (int j = 0; j < jil.numColumns(); j++) {
-					
-					if(r.isValid(this.category.get(j))){
-						if (jil.get(i, j) > curMax && jil.get(i, j) != 0){
-							curPred = j;
-							curMax = jil.get(i, j);
-						}
-					}
-				}
-				predictions[i] = curPred;
-				
-			}
-		}
-		return predictions;
-	}
-
-	
 	/**
 	 * Normalize the Matrix by row log(sum(exp(X)))
 	 * 
 	 * @param jil
 	 * 		joint likelihood matrix for each category
+	 * @param snapshot
+	 * 		snapshot giving exp and log
 	 */
-	private void rowLogNormalize(Matrix jil) {
+	private void rowLogNormalize(Matrix jil, ModelSnapshot snapshot) {
 		// get max values for each row
 		double[] rowMax = new double[jil.numRows()];
 		Arrays.fill(rowMax, Double.NEGATIVE_INFINITY);
@@ -330,10 +579,10 @@ public abstract class NaiveBayes {
 		// caution: log is a natural log here
 		double[] logsumexp = new double[jil.numRows()];
 		for (MatrixEntry e : jil) {
-			logsumexp[e.row()] += Math.exp(e.get() - rowMax[e.row()]);
+			logsumexp[e.row()] += snapshot.exp(e.get() - rowMax[e.row()]);
 		}
 		for (int i = 0; i < logsumexp.length; i++) {
-			logsumexp[i] = Math.log(logsumexp[i]);
+			logsumexp[i] = snapshot.log(logsumexp[i]);
 			logsumexp[i] += rowMax[i];
 		}
 
@@ -346,6 +595,62 @@ public abstract class NaiveBayes {
 		return;
 	}
 	
+	/**
+	 * Switch the exp and log of the normalization, e.g. to FAST when
+	 * thousands of categories make Math.exp the main cost of a
+	 * prediction. The argmax and threshold decisions of the mode are
+	 * compared with the exact mode on the sample documents. Call it
+	 * after init(); the mode is kept by later init() calls.
+	 * 
+	 * @param mode
+	 * 		exp and log of the normalization
+	 * @param samplePath
+	 * 		sample file, one document per line, optionally prefixed by
+	 * 		its true category and a tab; null to skip the comparison
+	 * @return report of the comparison
+	 * @throws IOException
+	 */
+	public synchronized MathModeReport setMathMode(MathMode mode, String samplePath)
+			throws IOException {
+		ModelSnapshot current = this.getSnapshot();
+		ModelSnapshot exact = current.withMathMode(MathMode.EXACT);
+		ModelSnapshot next = current.withMathMode(mode);
+		MathModeReport report = new MathModeReport(mode);
+
+		if (samplePath != null) {
+			List<String> lines = Files.readLines(new File(samplePath), Charsets.UTF_8);
+			FeatureVector x = new FeatureVector();
+			double[] exactJil = new double[this.numCats];
+			double[] nextJil = new double[this.numCats];
+			double[] exactProba = new double[this.numCats];
+			double[] nextProba = new double[this.numCats];
+			for (String line : lines) {
+				int tab = line.indexOf('\t');
+				exact.getVectorizer().transform(tab < 0 ? line : line.substring(tab + 1), x);
+				exact.score(x, exactJil);
+				next.score(x, nextJil);
+				for (int j = 0; j < this.numCats; j++) {
+					exactProba[j] = exact.exp(exactJil[j]);
+					nextProba[j] = next.exp(nextJil[j]);
+				}
+				report.add(exactJil, nextJil, exactProba, nextProba,
+						exact.argmax(exactJil, 0), next.argmax(nextJil, 0),
+						exact.label(exactJil, 0), next.label(nextJil, 0));
+			}
+		}
+		this.mathMode = mode;
+		this.publish(next);
+		return report;
+	}
+
+	/**
+	 * 
+	 * @return exp and log of the normalization
+	 */
+	public MathMode getMathMode() {
+		return this.mathMode;
+	}
+
 	/**
 	 * add a rule(filter) to current algorithm
 	 * @param state
@@ -353,11 +658,40 @@ public abstract class NaiveBayes {
 	 * @param r
 	 * 		rule instance
 	 */
-	public void setRule(int state, Rule r){
+	public synchronized void setRule(int state, Rule r){
 		// check if the state is already exist
 		Preconditions.checkArgument(!this.statePool.contains(state),
 				"The state is already existed!",state);
+		// categories are known after init, otherwise init compiles
+		ModelSnapshot current = this.snapshot;
+		if (current != null)
+			this.publish(current.withRule(state, r.compile(current.catNames())));
 		this.rules.put(state, r);
 		this.statePool.add(state);
 	}
+
+	/**
+	 * 
+	 * @return the current state of the model, predictions made on it
+	 * 		are not affected by later changes of the model
+	 */
+	public ModelSnapshot getSnapshot() {
+		ModelSnapshot current = this.snapshot;
+		Preconditions.checkState(current != null, "model is not initialized!");
+		return current;
+	}
+
+	/**
+	 * publish a new snapshot, predictions started afterwards use it
+	 * 
+	 * @param next
+	 * 		snapshot to publish
+	 */
+	protected synchronized void publish(ModelSnapshot next) {
+		this.snapshot = next;
+		// entries of the previous snapshot are never returned, free them
+		PredictionCache c = this.cache;
+		if (c != null)
+			c.invalidateAll();
+	}
 }
@@ -0,0 +1,337 @@
+package no.jetpie.ml.model.nb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import no.jetpie.ml.feature.HashingVectorizer;
+
+/**
+ * Trains a MultinomialNB on all cores. Every worker counts its shard
+ * of the corpus into its own MultinomialNBTrainer, then the partial
+ * trainers are merged pairwise in parallel. The result writes the
+ * usual text model with MultinomialNBTrainer.write().
+ *
+ * Document and term counts are the ones of a single trainer fed the
+ * whole corpus. The feature sums are doubles added in another order,
+ * so the log probabilities match up to rounding; and fit(Path) deals
+ * lines to whichever worker is free, so the order of the vocabulary
+ * columns changes from run to run, the model does not.
+ *
+ * Labelled files hold one document per line as "label TAB document".
+ * Across machines, train each shard into a partial file and merge the
+ * files:
+ * <pre>
+ *   java no.jetpie.ml.model.nb.ParallelTrainer train shard.tsv shard.nbp [alpha [bits]]
+ *   java no.jetpie.ml.model.nb.ParallelTrainer merge model/ -3.0 a.nbp b.nbp ...
+ * </pre>
+ * merge writes model/vocabulary.model, model/log_proba/ and
+ * model/boundary.json with the given threshold for every category.
+ * With bits the terms are hashed into 2^bits buckets, see the
+ * HashingVectorizer of MultinomialNBTrainer; the partial files keep
+ * the bits and only merge with partials of the same bits.
+ */
+public class ParallelTrainer {
+
+	/** lines handed to a worker at once */
+	private static final int BATCH_LINES = 1024;
+
+	/** additive smoothing parameter */
+	private final double alpha;
+	/** terms are hashed into buckets if not null */
+	private final HashingVectorizer hashing;
+	/** number of workers */
+	private final int threads;
+
+	/**
+	 * @param alpha
+	 * 		additive smoothing parameter
+	 * @param hashing
+	 * 		vectorizer whose buckets replace the terms, shared by the
+	 * 		workers; null to learn a vocabulary
+	 * @param threads
+	 * 		number of workers
+	 */
+	public ParallelTrainer(double alpha, HashingVectorizer hashing, int threads) {
+		Preconditions.checkArgument(alpha > 0, "alpha must be positive", alpha);
+		Preconditions.checkArgument(hashing == null || !hashing.isAlternateSign(),
+				"signed features cannot be counted", hashing);
+		Preconditions.checkArgument(threads > 0, "threads must be positive", threads);
+		this.alpha = alpha;
+		this.hashing = hashing;
+		this.threads = threads;
+	}
+
+	/**
+	 * @param alpha
+	 * 		additive smoothing parameter
+	 * @param threads
+	 * 		number of workers
+	 */
+	public ParallelTrainer(double alpha, int threads) {
+		this(alpha, null, threads);
+	}
+
+	/**
+	 * @param alpha
+	 * 		additive smoothing parameter
+	 */
+	public ParallelTrainer(double alpha) {
+		this(alpha, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * train on a list split into one contiguous shard per worker
+	 *
+	 * @param documents
+	 * 		documents of terms separated by whitespace
+	 * @param labels
+	 * 		category of each document
+	 * @return trainer holding the counts of all documents
+	 */
+	public MultinomialNBTrainer fit(final List<String> documents, final List<String> labels) {
+		Preconditions.checkArgument(documents.size() == labels.size(),
+				"each document must match a label");
+		ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+		try {
+			List<Future<MultinomialNBTrainer>> futures =
+					new ArrayList<Future<MultinomialNBTrainer>>();
+			int n = documents.size();
+			for (int w = 0; w < this.threads; w++) {
+				final int from = (int) ((long) n * w / this.threads);
+				final int to = (int) ((long) n * (w + 1) / this.threads);
+				futures.add(executor.submit(new Callable<MultinomialNBTrainer>() {
+					public MultinomialNBTrainer call() {
+						MultinomialNBTrainer trainer = ParallelTrainer.this.newTrainer();
+						trainer.partialFit(documents.subList(from, to), labels.subList(from, to));
+						return trainer;
+					}
+				}));
+			}
+			return merge(get(futures), executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * train on a labelled file, lines are dealt to the workers in
+	 * batches through a bounded queue so the file is never held in
+	 * memory
+	 *
+	 * @param path
+	 * 		UTF-8 file of "label TAB document" lines
+	 * @return trainer holding the counts of all documents
+	 * @throws IOException
+	 */
+	public MultinomialNBTrainer fit(Path path) throws IOException {
+		final BlockingQueue<List<String>> queue =
+				new ArrayBlockingQueue<List<String>>(this.threads * 2);
+		final List<String> end = new ArrayList<String>();
+		ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+		try {
+			List<Future<MultinomialNBTrainer>> futures =
+					new ArrayList<Future<MultinomialNBTrainer>>();
+			for (int w = 0; w < this.threads; w++) {
+				futures.add(executor.submit(new Callable<MultinomialNBTrainer>() {
+					public MultinomialNBTrainer call() throws InterruptedException {
+						MultinomialNBTrainer trainer = ParallelTrainer.this.newTrainer();
+						List<String> batch;
+						while ((batch = queue.take()) != end) {
+							for (String line : batch)
+								fitLine(trainer, line);
+						}
+						return trainer;
+					}
+				}));
+			}
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					Files.newInputStream(path), Charsets.UTF_8), 1 << 16);
+			try {
+				List<String> batch = new ArrayList<String>(BATCH_LINES);
+				String line;
+				while ((line = reader.readLine()) != null) {
+					batch.add(line);
+					if (batch.size() == BATCH_LINES) {
+						this.put(queue, batch, futures);
+						batch = new ArrayList<String>(BATCH_LINES);
+					}
+				}
+				if (!batch.isEmpty())
+					this.put(queue, batch, futures);
+				for (int w = 0; w < this.threads; w++)
+					this.put(queue, end, futures);
+			} finally {
+				reader.close();
+			}
+			return merge(get(futures), executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * merge partial trainers pairwise, each round in parallel
+	 *
+	 * @param partials
+	 * 		trainers to merge, modified
+	 * @return trainer holding the counts of all partials
+	 */
+	public MultinomialNBTrainer merge(List<MultinomialNBTrainer> partials) {
+		ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+		try {
+			return merge(partials, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * pairwise rounds: (0 1) (2 3) ... then (01 23) ..., the order of
+	 * the partials is kept so the vocabulary order is reproducible
+	 */
+	private static MultinomialNBTrainer merge(List<MultinomialNBTrainer> partials,
+			ExecutorService executor) {
+		Preconditions.checkArgument(!partials.isEmpty(), "nothing to merge");
+		List<MultinomialNBTrainer> round = partials;
+		while (round.size() > 1) {
+			List<Future<MultinomialNBTrainer>> futures =
+					new ArrayList<Future<MultinomialNBTrainer>>();
+			for (int i = 0; i < round.size(); i += 2) {
+				final MultinomialNBTrainer left = round.get(i);
+				final MultinomialNBTrainer right = i + 1 < round.size() ? round.get(i + 1) : null;
+				futures.add(executor.submit(new Callable<MultinomialNBTrainer>() {
+					public MultinomialNBTrainer call() {
+						if (right != null)
+							left.merge(right);
+						return left;
+					}
+				}));
+			}
+			round = get(futures);
+		}
+		return round.get(0);
+	}
+
+	/**
+	 *
+	 * @return empty trainer of a worker
+	 */
+	private MultinomialNBTrainer newTrainer() {
+		return new MultinomialNBTrainer(this.alpha, this.hashing);
+	}
+
+	/**
+	 * learn a "label TAB document" line, lines without a tab are skipped
+	 */
+	static void fitLine(MultinomialNBTrainer trainer, String line) {
+		int tab = line.indexOf('\t');
+		if (tab > 0)
+			trainer.partialFit(line.substring(tab + 1), line.substring(0, tab));
+	}
+
+	/**
+	 * put a batch, failing fast if a worker died and the queue is full.
+	 * Only finished workers are looked at: waiting on a running one
+	 * would block while it waits on the queue.
+	 */
+	private void put(BlockingQueue<List<String>> queue, List<String> batch,
+			List<Future<MultinomialNBTrainer>> workers) throws IOException {
+		try {
+			while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+				for (Future<MultinomialNBTrainer> f : workers) {
+					if (f.isDone())
+						get(f);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("training interrupted", e);
+		}
+	}
+
+	private static <T> List<T> get(List<Future<T>> futures) {
+		List<T> results = new ArrayList<T>();
+		for (Future<T> f : futures)
+			results.add(get(f));
+		return results;
+	}
+
+	private static <T> T get(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("training interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private static void report(String what, MultinomialNBTrainer trainer, int threads,
+			long startTime) {
+		System.out.print(what + ": " + trainer.getNumDocs() + " docs, "
+				+ trainer.getNumTerms() + " terms, " + trainer.getNumCats()
+				+ " categories, " + threads + " threads..");
+		System.out.println("(Elasped time: " +
+		(System.currentTimeMillis()-startTime) + "ms)");
+	}
+
+	/**
+	 * @param args
+	 * 		train labelled-file partial-file [alpha [bits]]
+	 * 		| merge model-dir threshold partial-file...
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 3 && args.length <= 5 && args[0].equals("train")) {
+			double alpha = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+			HashingVectorizer hashing = args.length > 4
+					? new HashingVectorizer(Integer.parseInt(args[4])) : null;
+			ParallelTrainer trainer = new ParallelTrainer(alpha, hashing,
+					Runtime.getRuntime().availableProcessors());
+			long startTime = System.currentTimeMillis();
+			MultinomialNBTrainer trained = trainer.fit(Paths.get(args[1]));
+			report("training", trained, trainer.threads, startTime);
+			trained.writePartial(args[2]);
+		} else if (args.length >= 4 && args[0].equals("merge")) {
+			List<MultinomialNBTrainer> partials = new ArrayList<MultinomialNBTrainer>();
+			for (int i = 3; i < args.length; i++)
+				partials.add(MultinomialNBTrainer.readPartial(args[i]));
+			ParallelTrainer trainer = new ParallelTrainer(partials.get(0).getAlpha());
+			long startTime = System.currentTimeMillis();
+			MultinomialNBTrainer merged = trainer.merge(partials);
+			report("merge", merged, trainer.threads, startTime);
+			Path dir = Files.createDirectories(Paths.get(args[1]));
+			merged.write(dir.resolve("vocabulary.model").toString(),
+					dir.resolve("log_proba").toString(),
+					dir.resolve("boundary.json").toString(), Double.parseDouble(args[2]));
+		} else {
+			System.err.println("usage: ParallelTrainer train <labelled file> <partial file> [alpha [bits]]");
+			System.err.println("       ParallelTrainer merge <model dir> <threshold> <partial file>...");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package no.jetpie.ml.model.nb;
+
+/**
+ * Storage precision of the conditional probability table
+ */
+public enum Precision {
+	/** 64 bit floating point, exact */
+	DOUBLE(8),
+	/** 32 bit floating point */
+	FLOAT(4),
+	/** 16 bit integer scaled per category */
+	INT16(2),
+	/** 8 bit integer scaled per category */
+	INT8(1);
+
+	/** bytes of one value */
+	private final int bytes;
+
+	private Precision(int bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 *
+	 * @return bytes of one value
+	 */
+	public int bytes() {
+		return this.bytes;
+	}
+}
@@ -0,0 +1,167 @@
+package no.jetpie.ml.model.nb;
+
+/**
+ * Loss of a reduced precision table against the double table,
+ * measured on a sample of documents
+ */
+public class PrecisionReport {
+
+	/** precision of the compact table */
+	private final Precision precision;
+	/** bytes of the double table */
+	private final long exactBytes;
+	/** bytes of the compact table */
+	private final long compactBytes;
+	/** number of sample documents */
+	private int numDocs;
+	/** number of labelled sample documents */
+	private int numLabelled;
+	/** documents with the same argmax category */
+	private int argmaxAgreed;
+	/** documents with the same prediction after threshold checks */
+	private int predictionAgreed;
+	/** correct predictions of the double table */
+	private int exactCorrect;
+	/** correct predictions of the compact table */
+	private int compactCorrect;
+	/** largest error of a normalized LOG probability */
+	private double maxAbsError;
+	/** sum of errors of normalized LOG probabilities */
+	private double sumAbsError;
+	/** number of compared probabilities */
+	private long numValues;
+
+	PrecisionReport(Precision precision, long exactBytes, long compactBytes) {
+		this.precision = precision;
+		this.exactBytes = exactBytes;
+		this.compactBytes = compactBytes;
+	}
+
+	/**
+	 * add one sample document
+	 *
+	 * @param exact
+	 * 		normalized LOG probabilities of the double table
+	 * @param compact
+	 * 		normalized LOG probabilities of the compact table
+	 * @param exactArgmax
+	 * 		argmax category of the double table
+	 * @param compactArgmax
+	 * 		argmax category of the compact table
+	 * @param exactLabel
+	 * 		prediction of the double table
+	 * @param compactLabel
+	 * 		prediction of the compact table
+	 * @param label
+	 * 		true category, null if unknown
+	 */
+	void add(double[] exact, double[] compact, int exactArgmax, int compactArgmax,
+			String exactLabel, String compactLabel, String label) {
+		this.numDocs++;
+		if (exactArgmax == compactArgmax)
+			this.argmaxAgreed++;
+		if (exactLabel == null ? compactLabel == null : exactLabel.equals(compactLabel))
+			this.predictionAgreed++;
+		if (label != null) {
+			this.numLabelled++;
+			if (label.equals(exactLabel))
+				this.exactCorrect++;
+			if (label.equals(compactLabel))
+				this.compactCorrect++;
+		}
+		for (int j = 0; j < exact.length; j++) {
+			double error = Math.abs(exact[j] - compact[j]);
+			this.maxAbsError = Math.max(this.maxAbsError, error);
+			this.sumAbsError += error;
+		}
+		this.numValues += exact.length;
+	}
+
+	public Precision getPrecision() {
+		return this.precision;
+	}
+
+	public long getExactBytes() {
+		return this.exactBytes;
+	}
+
+	public long getCompactBytes() {
+		return this.compactBytes;
+	}
+
+	public int getNumDocs() {
+		return this.numDocs;
+	}
+
+	/**
+	 *
+	 * @return fraction of documents with the same argmax category
+	 */
+	public double getArgmaxAgreement() {
+		return this.numDocs == 0 ? 1 : (double) this.argmaxAgreed / this.numDocs;
+	}
+
+	/**
+	 *
+	 * @return fraction of documents with the same prediction
+	 */
+	public double getPredictionAgreement() {
+		return this.numDocs == 0 ? 1 : (double) this.predictionAgreed / this.numDocs;
+	}
+
+	/**
+	 *
+	 * @return accuracy of the double table, NaN without labels
+	 */
+	public double getExactAccuracy() {
+		return (double) this.exactCorrect / this.numLabelled;
+	}
+
+	/**
+	 *
+	 * @return accuracy of the compact table, NaN without labels
+	 */
+	public double getCompactAccuracy() {
+		return (double) this.compactCorrect / this.numLabelled;
+	}
+
+	/**
+	 *
+	 * @return largest error of a normalized LOG probability
+	 */
+	public double getMaxAbsError() {
+		return this.maxAbsError;
+	}
+
+	/**
+	 *
+	 * @return mean error of a normalized LOG probability
+	 */
+	public double getMeanAbsError() {
+		return this.numValues == 0 ? 0 : this.sumAbsError / this.numValues;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.precision).append(" table ")
+				.append(String.format("%.1fMB -> %.1fMB",
+						this.exactBytes / 1048576.0, this.compactBytes / 1048576.0));
+		if (this.numDocs > 0) {
+			sb.append(", ").append(this.numDocs).append(" docs")
+					.append(", argmax agreement ")
+					.append(String.format("%.4f", this.getArgmaxAgreement()))
+					.append(", prediction agreement ")
+					.append(String.format("%.4f", this.getPredictionAgreement()))
+					.append(", max/mean log proba error ")
+					.append(String.format("%.3g/%.3g", this.maxAbsError,
+							this.getMeanAbsError()));
+		}
+		if (this.numLabelled > 0) {
+			sb.append(", accuracy ")
+					.append(String.format("%.4f -> %.4f", this.getExactAccuracy(),
+							this.getCompactAccuracy()));
+		}
+		return sb.toString();
+	}
+}
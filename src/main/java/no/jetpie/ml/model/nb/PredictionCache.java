@@ -0,0 +1,257 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import no.jetpie.ml.feature.TokenSink;
+import no.jetpie.ml.metrics.MetricsRegistry;
+
+/**
+ * Bounded cache of predicted labels, for documents coming again and
+ * again such as a listing crawled from several pages.
+ *
+ * A document is keyed by a 128 bits hash of its n-grams as the
+ * vectorizer tokenizes them, so documents only differing in case or
+ * spacing share an entry, and by its state. The hash is not
+ * cryptographic but its two 64 bits lanes make an accidental collision
+ * negligible. A lookup costs one tokenization, a hit skips the
+ * vectorization and the scoring.
+ *
+ * Every entry remembers the model snapshot it was predicted on and is
+ * only returned for that snapshot, so a new model or rule never serves
+ * a stale label; NaiveBayes also empties its cache when it publishes a
+ * new snapshot. Entries are evicted beyond the maximum size, least
+ * recently used first, and after the time to live. Thread-safe.
+ */
+public class PredictionCache {
+
+	/** labels by document key */
+	private final Cache<Key, Entry> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** per-thread hasher of the n-grams of a document */
+	private final ThreadLocal<KeyHasher> hasher = new ThreadLocal<KeyHasher>() {
+		@Override
+		protected KeyHasher initialValue() {
+			return new KeyHasher();
+		}
+	};
+
+	/**
+	 * @param maximumSize
+	 * 		maximum number of entries
+	 * @param ttl
+	 * 		time an entry lives after it is written, 0 to keep it until
+	 * 		evicted by size
+	 * @param unit
+	 * 		unit of ttl
+	 */
+	public PredictionCache(long maximumSize, long ttl, TimeUnit unit) {
+		Preconditions.checkArgument(maximumSize > 0, "maximum size must be positive",
+				maximumSize);
+		Preconditions.checkArgument(ttl >= 0, "time to live must not be negative", ttl);
+		CacheBuilder<Key, Entry> builder = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.removalListener(new RemovalListener<Key, Entry>() {
+					public void onRemoval(RemovalNotification<Key, Entry> n) {
+						if (n.wasEvicted())
+							PredictionCache.this.evictions.incrementAndGet();
+					}
+				});
+		if (ttl > 0)
+			builder.expireAfterWrite(ttl, unit);
+		this.cache = builder.build();
+	}
+
+	/**
+	 * @param maximumSize
+	 * 		maximum number of entries, kept until evicted by size
+	 */
+	public PredictionCache(long maximumSize) {
+		this(maximumSize, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * label of a document, from the cache or predicted and cached
+	 *
+	 * @param snapshot
+	 * 		model to predict with
+	 * @param document
+	 * 		Single document of tokens separated by whitespace
+	 * @param state
+	 * 		state of the document
+	 * @param ctx
+	 * 		scratch buffers of the calling thread
+	 * @param metrics
+	 * 		receiver of the metrics of a predicted document, null if none
+	 * @return predicted category
+	 */
+	String predict(ModelSnapshot snapshot, String document, int state, ScoringContext ctx,
+			MetricsRegistry metrics) {
+		KeyHasher h = this.hasher.get();
+		h.reset();
+		snapshot.getVectorizer().tokenize(document, h);
+		Key key = new Key(h.hash1(), h.hash2(), state);
+
+		Entry e = this.cache.getIfPresent(key);
+		if (e != null && e.snapshot == snapshot) {
+			this.hits.incrementAndGet();
+			return e.label;
+		}
+		this.misses.incrementAndGet();
+		String label = snapshot.predict(document, state, ctx, metrics);
+		this.cache.put(key, new Entry(snapshot, label));
+		return label;
+	}
+
+	/**
+	 * remove every entry, statistics are kept
+	 */
+	public void invalidateAll() {
+		this.cache.invalidateAll();
+	}
+
+	/**
+	 *
+	 * @return approximate number of entries
+	 */
+	public long size() {
+		return this.cache.size();
+	}
+
+	/**
+	 *
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 *
+	 * @return number of lookups predicted, including entries of an older
+	 * 		snapshot
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 *
+	 * @return number of entries evicted by size or time to live
+	 */
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	/**
+	 *
+	 * @return hits over lookups, 0 before the first lookup
+	 */
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long lookups = hits + this.misses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d entries, %d hits, %d misses (hit rate %.3f), %d evictions",
+				this.size(), this.getHits(), this.getMisses(), this.getHitRate(),
+				this.getEvictions());
+	}
+
+	/**
+	 * 128 bits document hash and state
+	 */
+	private static final class Key {
+		final long hash1;
+		final long hash2;
+		final int state;
+
+		Key(long hash1, long hash2, int state) {
+			this.hash1 = hash1;
+			this.hash2 = hash2;
+			this.state = state;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) this.hash1 * 31 + this.state;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return this.hash1 == k.hash1 && this.hash2 == k.hash2 && this.state == k.state;
+		}
+	}
+
+	/**
+	 * label and the snapshot it was predicted on
+	 */
+	private static final class Entry {
+		final ModelSnapshot snapshot;
+		/** null if no category passes */
+		final String label;
+
+		Entry(ModelSnapshot snapshot, String label) {
+			this.snapshot = snapshot;
+			this.label = label;
+		}
+	}
+
+	/**
+	 * Hashes the n-grams of a document in order into two independent
+	 * 64 bits lanes, FNV-1a and a multiply-rotate one, each n-gram
+	 * closed by its length so the boundaries count
+	 */
+	private static final class KeyHasher implements TokenSink {
+		long lane1;
+		long lane2;
+
+		void reset() {
+			this.lane1 = 0xcbf29ce484222325L;
+			this.lane2 = 0x27d4eb2f165667c5L;
+		}
+
+		public void accept(char[] buffer, int offset, int length) {
+			long a = this.lane1;
+			long b = this.lane2;
+			for (int i = offset; i < offset + length; i++) {
+				a = (a ^ buffer[i]) * 0x100000001b3L;
+				b = Long.rotateLeft(b + buffer[i] * 0xc2b2ae3d27d4eb4fL, 31) * 0x9e3779b97f4a7c15L;
+			}
+			this.lane1 = (a ^ length) * 0x100000001b3L;
+			this.lane2 = Long.rotateLeft(b + length * 0xc2b2ae3d27d4eb4fL, 31) * 0x9e3779b97f4a7c15L;
+		}
+
+		long hash1() {
+			return fmix(this.lane1);
+		}
+
+		long hash2() {
+			return fmix(this.lane2);
+		}
+
+		/** MurmurHash3 64 bits finalizer */
+		private static long fmix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb93fe53a87c5L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * CondProbTable stored as integers with a scale per category:
+ * value = center[j] + q * scale[j], |q| <= maxLevel.
+ *
+ * The integers are accumulated as they are, sum(x * q), and mapped
+ * back once per document,
+ * score[j] = scale[j] * sum(x * q) + center[j] * sum(x),
+ * so the table is never expanded to doubles. The error of a value
+ * is at most scale[j] / 2, i.e. (max[j] - min[j]) / (4 * maxLevel).
+ */
+public abstract class QuantizedCondProbTable extends CondProbTable {
+
+	/** center of the value range of each category */
+	protected final double[] center;
+	/** value of one integer step of each category */
+	protected final double[] scale;
+
+	/**
+	 * derive the scale of every category from the source table
+	 *
+	 * @param table
+	 * 		table to quantize
+	 * @param maxLevel
+	 * 		largest absolute integer value
+	 */
+	protected QuantizedCondProbTable(CondProbTable table, int maxLevel) {
+		super(table.numRows(), table.numColumns());
+		double[] min = new double[this.numColumns];
+		double[] max = new double[this.numColumns];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for (int k = 0; k < this.numRows; k++) {
+			for (int j = 0; j < this.numColumns; j++) {
+				double v = table.get(k, j);
+				Preconditions.checkArgument(!Double.isInfinite(v) && !Double.isNaN(v),
+						"cannot quantize a non-finite log probability", k, j);
+				min[j] = Math.min(min[j], v);
+				max[j] = Math.max(max[j], v);
+			}
+		}
+		this.center = new double[this.numColumns];
+		this.scale = new double[this.numColumns];
+		for (int j = 0; j < this.numColumns; j++) {
+			this.center[j] = (min[j] + max[j]) / 2;
+			// a constant category keeps scale 0 and quantizes to 0
+			this.scale[j] = (max[j] - min[j]) / (2.0 * maxLevel);
+		}
+	}
+
+	/**
+	 *
+	 * @param value
+	 * 		value of category j
+	 * @param j
+	 * 		category
+	 * @param maxLevel
+	 * 		largest absolute integer value
+	 * @return the nearest integer level
+	 */
+	protected int quantize(double value, int j, int maxLevel) {
+		if (this.scale[j] == 0)
+			return 0;
+		long q = Math.round((value - this.center[j]) / this.scale[j]);
+		return (int) Math.max(-maxLevel, Math.min(maxLevel, q));
+	}
+
+	@Override
+	protected void finishRow(double[] acc, int offset, double valueSum) {
+		for (int j = 0; j < this.numColumns; j++)
+			acc[offset + j] = acc[offset + j] * this.scale[j]
+					+ this.center[j] * valueSum;
+	}
+
+	@Override
+	public long sizeInBytes() {
+		return super.sizeInBytes() + 16L * this.numColumns;
+	}
+}
@@ -0,0 +1,92 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.Arrays;
+
+import no.jetpie.ml.feature.FeatureVector;
+
+/**
+ * Scratch buffers of the single document prediction. A context must
+ * not be shared by threads running at the same time, but it may be
+ * reused across predictions and across model snapshots: the score row
+ * grows when a snapshot has more categories. The batch rows hold the
+ * feature vectors of several documents in CSR form, to be scored
+ * together; a snapshot fills them one block of the kernel at a time,
+ * so they stay bounded by the block size.
+ *
+ * The model keeps one instance per thread; callers scheduling their
+ * own tasks can hold one per task and use ModelSnapshot directly.
+ */
+public final class ScoringContext {
+
+	/** feature vector of the current document */
+	final FeatureVector x = new FeatureVector();
+	/** LOG joint likelihood of the current document for each category */
+	private double[] jil = new double[0];
+	/** first entry of each batch row, then the end of the last one */
+	int[] rowPtr = new int[1];
+	/** feature of each entry of the batch rows */
+	int[] columns = new int[0];
+	/** weight of each entry of the batch rows */
+	double[] values = new double[0];
+	/** number of batch rows */
+	int numRows;
+	/** row major LOG joint likelihood of the batch rows */
+	private double[] batchJil = new double[0];
+
+	public ScoringContext() {
+	}
+
+	/**
+	 *
+	 * @param numCats
+	 * 		number of categories
+	 * @return score row of at least numCats
+	 */
+	double[] scores(int numCats) {
+		if (this.jil.length < numCats)
+			this.jil = new double[numCats];
+		return this.jil;
+	}
+
+	/**
+	 * remove the batch rows but keep the buffers
+	 */
+	void clearRows() {
+		this.numRows = 0;
+	}
+
+	/**
+	 * append a copy of the feature vector x as a batch row
+	 */
+	void addRow() {
+		int nnz = this.rowPtr[this.numRows];
+		int end = nnz + this.x.size();
+		if (end > this.columns.length) {
+			int capacity = Math.max(end, this.columns.length << 1);
+			this.columns = Arrays.copyOf(this.columns, capacity);
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+		if (this.numRows + 1 == this.rowPtr.length)
+			this.rowPtr = Arrays.copyOf(this.rowPtr, this.rowPtr.length << 1);
+		for (int i = 0; i < this.x.size(); i++) {
+			this.columns[nnz + i] = this.x.index(i);
+			this.values[nnz + i] = this.x.get(i);
+		}
+		this.rowPtr[++this.numRows] = end;
+	}
+
+	/**
+	 *
+	 * @param numCats
+	 * 		number of categories
+	 * @return zeroed row major scores of the batch rows
+	 */
+	double[] batchScores(int numCats) {
+		int n = this.numRows * numCats;
+		if (this.batchJil.length < n)
+			this.batchJil = new double[n];
+		else
+			Arrays.fill(this.batchJil, 0, n, 0);
+		return this.batchJil;
+	}
+}
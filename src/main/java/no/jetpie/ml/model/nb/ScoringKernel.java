@@ -0,0 +1,205 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.BitSet;
+
+/**
+ * Inner loops of the single document scoring: accumulation of a
+ * feature row into the score row, the prior add, log exp sum and the
+ * masked argmax, all on contiguous rows.
+ *
+ * The scalar kernel is the default. Setting the system property
+ * nbj.simd=true selects the kernel of src/simd/java written with the
+ * incubating JDK Vector API, built by the simd profile on JDK 16 and
+ * later and run with --add-modules jdk.incubator.vector. When the
+ * class is missing, was compiled for a newer JVM or the module is not
+ * resolved, the scalar kernel is used instead.
+ *
+ * Both kernels give the same accumulation, prior and argmax bit for
+ * bit; the vector log exp sum uses the vector exp and sums in lanes,
+ * so it may differ from the scalar one in the last bits.
+ */
+abstract class ScoringKernel {
+
+	/** system property selecting the vector kernel */
+	static final String SIMD_PROPERTY = "nbj.simd";
+	/** class of the vector kernel, compiled by the simd profile */
+	private static final String VECTOR_KERNEL = "no.jetpie.ml.model.nb.VectorScoringKernel";
+
+	private static final ScoringKernel SCALAR = new ScalarScoringKernel();
+	/** vector kernel, null if it cannot run on this JVM */
+	private static final ScoringKernel VECTOR = loadVector();
+	/** kernel of the scoring */
+	private static final ScoringKernel KERNEL =
+			Boolean.getBoolean(SIMD_PROPERTY) && VECTOR != null ? VECTOR : SCALAR;
+
+	/**
+	 *
+	 * @return kernel selected by the nbj.simd property, getName()
+	 * 		tells which one runs
+	 */
+	static ScoringKernel get() {
+		return KERNEL;
+	}
+
+	/**
+	 *
+	 * @return the scalar kernel
+	 */
+	static ScoringKernel scalar() {
+		return SCALAR;
+	}
+
+	/**
+	 *
+	 * @return the vector kernel, null if it cannot run on this JVM
+	 */
+	static ScoringKernel vector() {
+		return VECTOR;
+	}
+
+	private static ScoringKernel loadVector() {
+		try {
+			return (ScoringKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (LinkageError e) {
+			// compiled for a newer JVM, or jdk.incubator.vector not resolved
+			return null;
+		} catch (ReflectiveOperationException e) {
+			// the constructor failed to use the module
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @return name of the kernel
+	 */
+	abstract String getName();
+
+	/**
+	 * y[yOffset + j] += a * x[xOffset + j] for j in [0, n)
+	 */
+	abstract void axpy(double a, double[] x, int xOffset, double[] y, int yOffset, int n);
+
+	/**
+	 * y[j] += c for j in [0, n)
+	 */
+	abstract void add(double[] y, int n, double c);
+
+	/**
+	 *
+	 * @return log(sum(exp(row))) of row[offset, offset + n)
+	 */
+	abstract double logSumExp(double[] row, int offset, int n);
+
+	/**
+	 * first category of the largest row[offset + j] - logsumexp, the
+	 * zeros left out, among the categories of the mask
+	 *
+	 * @param mask
+	 * 		allowed categories, null for all
+	 * @return category prediction, -1 if none
+	 */
+	abstract int argmax(double[] row, int offset, int n, double logsumexp, Mask mask);
+
+	/**
+	 * categories allowed by a state, as words to visit only the allowed
+	 * ones and as flags to test them all in lanes
+	 */
+	static final class Mask {
+		/** words of the allowed categories, as BitSet.toLongArray() */
+		final long[] words;
+		/** allowed flag of each category */
+		final boolean[] flags;
+		/** number of allowed categories */
+		final int cardinality;
+
+		/**
+		 *
+		 * @param allowed
+		 * 		compiled rule
+		 * @param numCats
+		 * 		number of categories
+		 */
+		Mask(BitSet allowed, int numCats) {
+			this.words = allowed.toLongArray();
+			this.flags = new boolean[numCats];
+			for (int j = allowed.nextSetBit(0); j >= 0 && j < numCats; j = allowed.nextSetBit(j + 1))
+				this.flags[j] = true;
+			this.cardinality = allowed.cardinality();
+		}
+	}
+
+	/**
+	 * the scoring loops of ModelSnapshot, one element at a time
+	 */
+	static final class ScalarScoringKernel extends ScoringKernel {
+
+		@Override
+		String getName() {
+			return "scalar";
+		}
+
+		@Override
+		void axpy(double a, double[] x, int xOffset, double[] y, int yOffset, int n) {
+			for (int j = 0; j < n; j++)
+				y[yOffset + j] += a * x[xOffset + j];
+		}
+
+		@Override
+		void add(double[] y, int n, double c) {
+			for (int j = 0; j < n; j++)
+				y[j] += c;
+		}
+
+		@Override
+		double logSumExp(double[] row, int offset, int n) {
+			double max = Double.NEGATIVE_INFINITY;
+			for (int j = 0; j < n; j++) {
+				if (row[offset + j] > max)
+					max = row[offset + j];
+			}
+			// caution: log is a natural log here
+			double logsumexp = 0;
+			for (int j = 0; j < n; j++) {
+				logsumexp += Math.exp(row[offset + j] - max);
+			}
+			logsumexp = Math.log(logsumexp);
+			logsumexp += max;
+			return logsumexp;
+		}
+
+		@Override
+		int argmax(double[] row, int offset, int n, double logsumexp, Mask mask) {
+			int curPred = -1;
+			// as logarithm for negative
+			double curMax = Double.NEGATIVE_INFINITY;
+			if (mask == null) {
+				for (int j = 0; j < n; j++) {
+					double v = row[offset + j] - logsumexp;
+					if (v > curMax && v != 0) {
+						curPred = j;
+						curMax = v;
+					}
+				}
+				return curPred;
+			}
+			// only visit the categories of the mask
+			long[] words = mask.words;
+			for (int w = 0; w < words.length; w++) {
+				for (long bits = words[w]; bits != 0; bits &= bits - 1) {
+					int j = (w << 6) + Long.numberOfTrailingZeros(bits);
+					if (j >= n)
+						return curPred;
+					double v = row[offset + j] - logsumexp;
+					if (v > curMax && v != 0) {
+						curPred = j;
+						curMax = v;
+					}
+				}
+			}
+			return curPred;
+		}
+	}
+}
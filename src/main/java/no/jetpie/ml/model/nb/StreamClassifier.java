@@ -0,0 +1,431 @@
+package no.jetpie.ml.model.nb;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * Classifies a stream of documents, one per line, into a stream of
+ * predictions, one per input line in the same order.
+ *
+ * The work runs as a pipeline: the calling thread reads batches of
+ * lines, scoring threads vectorize, score and format them, and a
+ * writer thread writes them in input order. At most queueCapacity
+ * batches are in flight, a reader faster than the rest waits for a
+ * free slot, so memory stays bounded whatever the input size. The
+ * whole stream is classified with the model snapshot taken at start.
+ *
+ * Output lines are, in TSV, the label (empty if none) or with top k
+ * "category TAB probability" pairs; in JSON Lines {"label": ...} or
+ * {"top": [{"category": ..., "probability": ...}, ...]}.
+ */
+public class StreamClassifier {
+
+	/** output formats */
+	public enum Format {
+		TSV, JSONL
+	}
+
+	/** model to classify with */
+	private final NaiveBayes model;
+	/** number of scoring threads */
+	private int threads = Runtime.getRuntime().availableProcessors();
+	/** lines per batch */
+	private int batchSize = 1024;
+	/** maximum number of batches in flight */
+	private int queueCapacity = 4;
+	/** output format */
+	private Format format = Format.TSV;
+	/** number of categories per document, 0 for the label only */
+	private int topK = 0;
+	/** state of every document */
+	private int state = 0;
+
+	/**
+	 * @param model
+	 * 		initialized model
+	 */
+	public StreamClassifier(NaiveBayes model) {
+		this.model = model;
+	}
+
+	public void setThreads(int threads) {
+		Preconditions.checkArgument(threads > 0, "threads must be positive", threads);
+		this.threads = threads;
+	}
+
+	public void setBatchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batch size must be positive", batchSize);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param queueCapacity
+	 * 		maximum number of batches in flight, memory is about
+	 * 		queueCapacity * batchSize lines and their output
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		Preconditions.checkArgument(queueCapacity > 0, "queue capacity must be positive",
+				queueCapacity);
+		this.queueCapacity = queueCapacity;
+	}
+
+	public void setFormat(Format format) {
+		this.format = Preconditions.checkNotNull(format);
+	}
+
+	/**
+	 * @param topK
+	 * 		number of categories with their probabilities per document,
+	 * 		0 to write the predicted label
+	 */
+	public void setTopK(int topK) {
+		Preconditions.checkArgument(topK >= 0, "k must not be negative", topK);
+		this.topK = topK;
+	}
+
+	/**
+	 * @param state
+	 * 		state of every document, selects a rule
+	 */
+	public void setState(int state) {
+		this.state = state;
+	}
+
+	/**
+	 * classify a file into another one
+	 *
+	 * @param in
+	 * 		UTF-8 input file, one document per line
+	 * @param out
+	 * 		output file, replaced
+	 * @return counters of the run
+	 * @throws IOException
+	 */
+	public StreamReport classify(Path in, Path out) throws IOException {
+		InputStream input = Files.newInputStream(in);
+		try {
+			OutputStream output = Files.newOutputStream(out);
+			try {
+				return this.classify(input, output);
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * classify a stream into another one, neither stream is closed
+	 *
+	 * @param in
+	 * 		UTF-8 input, one document per line
+	 * @param out
+	 * 		UTF-8 output, one prediction per line
+	 * @return counters of the run
+	 * @throws IOException
+	 */
+	public StreamReport classify(InputStream in, OutputStream out) throws IOException {
+		long startTime = System.nanoTime();
+		Pipeline p = new Pipeline(this.model.getSnapshot(),
+				new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8), 1 << 16));
+		p.start();
+
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(in, Charsets.UTF_8), 1 << 16);
+		long documents = 0;
+		long chars = 0;
+		long readNanos = 0;
+		long blockedNanos = 0;
+		try {
+			boolean eof = false;
+			while (!eof && p.failure == null) {
+				long t0 = System.nanoTime();
+				Batch batch = new Batch(this.batchSize);
+				String line;
+				while (batch.size < this.batchSize && (line = reader.readLine()) != null) {
+					batch.lines[batch.size++] = line;
+					chars += line.length();
+				}
+				eof = batch.size < this.batchSize;
+				long t1 = System.nanoTime();
+				readNanos += t1 - t0;
+				if (batch.size > 0) {
+					documents += batch.size;
+					p.submit(batch);
+					blockedNanos += System.nanoTime() - t1;
+				}
+			}
+		} finally {
+			p.finish();
+		}
+		p.report.read(documents, chars, readNanos, blockedNanos);
+		p.report.finish(System.nanoTime() - startTime);
+		if (p.failure instanceof IOException)
+			throw (IOException) p.failure;
+		if (p.failure instanceof RuntimeException)
+			throw (RuntimeException) p.failure;
+		if (p.failure != null)
+			throw new IllegalStateException(p.failure);
+		return p.report;
+	}
+
+	/**
+	 * lines of a batch and their formatted predictions
+	 */
+	private static final class Batch {
+		final String[] lines;
+		int size;
+		final StringBuilder out = new StringBuilder();
+		/** released once the batch is scored or has failed */
+		final CountDownLatch scored = new CountDownLatch(1);
+
+		Batch(int capacity) {
+			this.lines = new String[capacity];
+		}
+	}
+
+	/** marks the end of the stream in the queues */
+	private static final Batch END = new Batch(0);
+
+	/**
+	 * scoring threads and writer of one run
+	 */
+	private final class Pipeline {
+		final ModelSnapshot snapshot;
+		final Writer writer;
+		final StreamReport report = new StreamReport(StreamClassifier.this.threads);
+		/** batches to score */
+		final BlockingQueue<Batch> work;
+		/** batches to write, in input order */
+		final BlockingQueue<Batch> ordered;
+		final Thread[] scorers = new Thread[StreamClassifier.this.threads];
+		Thread writerThread;
+		volatile Throwable failure;
+
+		Pipeline(ModelSnapshot snapshot, Writer writer) {
+			this.snapshot = snapshot;
+			this.writer = writer;
+			// every batch in flight holds a slot of ordered until written,
+			// work never holds more
+			this.work = new ArrayBlockingQueue<Batch>(StreamClassifier.this.queueCapacity
+					+ StreamClassifier.this.threads);
+			this.ordered = new ArrayBlockingQueue<Batch>(StreamClassifier.this.queueCapacity);
+		}
+
+		void start() {
+			for (int i = 0; i < this.scorers.length; i++) {
+				this.scorers[i] = new Thread(new Runnable() {
+					public void run() {
+						Pipeline.this.score();
+					}
+				}, "nb-stream-score-" + i);
+				this.scorers[i].setDaemon(true);
+				this.scorers[i].start();
+			}
+			this.writerThread = new Thread(new Runnable() {
+				public void run() {
+					Pipeline.this.write();
+				}
+			}, "nb-stream-write");
+			this.writerThread.setDaemon(true);
+			this.writerThread.start();
+		}
+
+		/**
+		 * hand a batch to the pipeline, blocks while queueCapacity
+		 * batches are in flight
+		 */
+		void submit(Batch batch) throws IOException {
+			try {
+				this.ordered.put(batch);
+				this.work.put(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("stream classification interrupted", e);
+			}
+		}
+
+		/**
+		 * end the stream and wait for every thread
+		 */
+		void finish() {
+			boolean interrupted = false;
+			for (int i = 0; i < this.scorers.length + 1; i++) {
+				try {
+					if (i < this.scorers.length)
+						this.work.put(END);
+					else
+						this.ordered.put(END);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					i--;
+				}
+			}
+			for (Thread t : this.scorers)
+				interrupted |= join(t);
+			interrupted |= join(this.writerThread);
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		private boolean join(Thread t) {
+			while (true) {
+				try {
+					t.join();
+					return false;
+				} catch (InterruptedException e) {
+					// the threads end once the queues are drained
+					if (this.failure == null)
+						this.failure = e;
+				}
+			}
+		}
+
+		void score() {
+			ScoringContext ctx = new ScoringContext();
+			while (true) {
+				Batch batch;
+				try {
+					batch = this.work.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (batch == END)
+					return;
+				try {
+					if (this.failure == null)
+						this.score(batch, ctx);
+				} catch (Throwable e) {
+					this.failure = e;
+				} finally {
+					batch.scored.countDown();
+				}
+			}
+		}
+
+		private void score(Batch batch, ScoringContext ctx) {
+			ModelSnapshot s = this.snapshot;
+			int k = StreamClassifier.this.topK;
+			int state = StreamClassifier.this.state;
+			boolean json = StreamClassifier.this.format == Format.JSONL;
+			long tokenize = 0;
+			long score = 0;
+			for (int i = 0; i < batch.size; i++) {
+				long t0 = System.nanoTime();
+				s.getVectorizer().transform(batch.lines[i], ctx.x);
+				long t1 = System.nanoTime();
+				if (k == 0)
+					formatLabel(batch.out, s.predict(ctx, state), json);
+				else
+					formatTopK(batch.out, s.predictTopK(ctx, state, k), json);
+				batch.out.append('\n');
+				score += System.nanoTime() - t1;
+				tokenize += t1 - t0;
+				// the line is not needed anymore
+				batch.lines[i] = null;
+			}
+			this.report.tokenizeNanos.addAndGet(tokenize);
+			this.report.scoreNanos.addAndGet(score);
+		}
+
+		void write() {
+			long writeNanos = 0;
+			while (true) {
+				Batch batch;
+				try {
+					batch = this.ordered.take();
+					if (batch == END)
+						break;
+					batch.scored.await();
+				} catch (InterruptedException e) {
+					this.failure = e;
+					break;
+				}
+				// after a failure keep draining so the reader never blocks
+				if (this.failure != null)
+					continue;
+				long t0 = System.nanoTime();
+				try {
+					this.writer.append(batch.out);
+				} catch (Throwable e) {
+					this.failure = e;
+				}
+				writeNanos += System.nanoTime() - t0;
+			}
+			long t0 = System.nanoTime();
+			try {
+				this.writer.flush();
+			} catch (IOException e) {
+				if (this.failure == null)
+					this.failure = e;
+			}
+			this.report.write(writeNanos + System.nanoTime() - t0);
+		}
+	}
+
+	private static void formatLabel(StringBuilder out, String label, boolean json) {
+		if (json) {
+			out.append("{\"label\": ");
+			quote(out, label);
+			out.append('}');
+		} else if (label != null) {
+			out.append(label);
+		}
+	}
+
+	private static void formatTopK(StringBuilder out, TopK top, boolean json) {
+		if (json)
+			out.append("{\"top\": [");
+		for (int i = 0; i < top.size(); i++) {
+			if (json) {
+				if (i > 0)
+					out.append(", ");
+				out.append("{\"category\": ");
+				quote(out, top.getCategory(i));
+				out.append(", \"probability\": ").append(top.getProbability(i)).append('}');
+			} else {
+				if (i > 0)
+					out.append('\t');
+				out.append(top.getCategory(i)).append('\t').append(top.getProbability(i));
+			}
+		}
+		if (json)
+			out.append("]}");
+	}
+
+	/**
+	 * JSON string literal, or null
+	 */
+	private static void quote(StringBuilder out, String s) {
+		if (s == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				out.append('\\').append(c);
+			else if (c < 0x20)
+				out.append(String.format("\\u%04x", (int) c));
+			else
+				out.append(c);
+		}
+		out.append('"');
+	}
+}
@@ -0,0 +1,121 @@
+package no.jetpie.ml.model.nb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a StreamClassifier run. The busy time of a stage
+ * excludes the time it waits on its neighbours, so the stage with the
+ * lowest throughput is the bottleneck; a reader that is often blocked
+ * means the pipeline is applying backpressure.
+ */
+public class StreamReport {
+
+	/** number of classified documents */
+	private long documents;
+	/** number of input chars */
+	private long chars;
+	/** number of scoring threads */
+	private final int threads;
+	/** time reading and splitting lines */
+	private long readNanos;
+	/** time the reader waited for a free batch slot */
+	private long readBlockedNanos;
+	/** time vectorizing, summed over scoring threads */
+	final AtomicLong tokenizeNanos = new AtomicLong();
+	/** time scoring and formatting, summed over scoring threads */
+	final AtomicLong scoreNanos = new AtomicLong();
+	/** time writing the output */
+	private long writeNanos;
+	/** wall clock time of the run */
+	private long wallNanos;
+
+	StreamReport(int threads) {
+		this.threads = threads;
+	}
+
+	void read(long documents, long chars, long nanos, long blockedNanos) {
+		this.documents = documents;
+		this.chars = chars;
+		this.readNanos = nanos;
+		this.readBlockedNanos = blockedNanos;
+	}
+
+	void write(long nanos) {
+		this.writeNanos = nanos;
+	}
+
+	void finish(long wallNanos) {
+		this.wallNanos = wallNanos;
+	}
+
+	public long getDocuments() {
+		return this.documents;
+	}
+
+	public long getChars() {
+		return this.chars;
+	}
+
+	/**
+	 *
+	 * @return documents per second of the whole run
+	 */
+	public double getThroughput() {
+		return rate(this.documents, this.wallNanos);
+	}
+
+	/**
+	 *
+	 * @return documents per second the reader can deliver
+	 */
+	public double getReadThroughput() {
+		return rate(this.documents, this.readNanos);
+	}
+
+	/**
+	 *
+	 * @return documents per second the scoring threads can vectorize
+	 */
+	public double getTokenizeThroughput() {
+		return rate(this.documents * this.threads, this.tokenizeNanos.get());
+	}
+
+	/**
+	 *
+	 * @return documents per second the scoring threads can score
+	 */
+	public double getScoreThroughput() {
+		return rate(this.documents * this.threads, this.scoreNanos.get());
+	}
+
+	/**
+	 *
+	 * @return documents per second the writer can write
+	 */
+	public double getWriteThroughput() {
+		return rate(this.documents, this.writeNanos);
+	}
+
+	/**
+	 *
+	 * @return fraction of the run the reader waited on the pipeline
+	 */
+	public double getReadBlocked() {
+		return this.wallNanos == 0 ? 0 : (double) this.readBlockedNanos / this.wallNanos;
+	}
+
+	private static double rate(long n, long nanos) {
+		return nanos == 0 ? 0 : n * 1e9 / nanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d docs (%.1fMB) in %dms, %.0f docs/s; stage docs/s: "
+				+ "read %.0f, tokenize %.0f, score %.0f, write %.0f "
+				+ "(%d scoring threads, reader blocked %.0f%%)",
+				this.documents, this.chars * 2 / 1048576.0, this.wallNanos / 1000000,
+				this.getThroughput(), this.getReadThroughput(),
+				this.getTokenizeThroughput(), this.getScoreThroughput(),
+				this.getWriteThroughput(), this.threads, this.getReadBlocked() * 100);
+	}
+}
@@ -0,0 +1,161 @@
+package no.jetpie.ml.model.nb;
+
+/**
+ * The k most probable categories of a document in descending order
+ * of probability.
+ *
+ * While a row is scanned the candidates are kept in a bounded min
+ * heap on primitive arrays, so a category is only compared with the
+ * worst of the current k instead of being stored.
+ */
+public class TopK {
+
+	/** category names indexed by category position */
+	private final String[] catNames;
+	/** category positions, a min heap until finish() */
+	private final int[] index;
+	/** LOG joint likelihood, probabilities after finish() */
+	private final double[] value;
+	/** number of kept categories */
+	private int size;
+
+	/**
+	 *
+	 * @param k
+	 * 		maximum number of categories
+	 * @param catNames
+	 * 		category names indexed by category position
+	 */
+	TopK(int k, String[] catNames) {
+		this.catNames = catNames;
+		this.index = new int[k];
+		this.value = new double[k];
+	}
+
+	/**
+	 * offer a category, categories are offered in ascending position
+	 * so the earlier one wins a tie as in argmax
+	 *
+	 * @param cat
+	 * 		category position
+	 * @param v
+	 * 		LOG joint likelihood of the category
+	 */
+	void offer(int cat, double v) {
+		if (this.size < this.index.length) {
+			// sift up
+			int i = this.size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!worse(v, cat, this.value[parent], this.index[parent]))
+					break;
+				this.index[i] = this.index[parent];
+				this.value[i] = this.value[parent];
+				i = parent;
+			}
+			this.index[i] = cat;
+			this.value[i] = v;
+		} else if (v > this.value[0]) {
+			this.siftDown(cat, v, this.size);
+		}
+	}
+
+	/**
+	 * sort the kept categories in descending order and turn their LOG
+	 * joint likelihood into normalized probabilities
+	 *
+	 * @param logsumexp
+	 * 		log(sum(exp(row))) of the whole row
+	 */
+	void finish(double logsumexp) {
+		// heap sort, the worst goes to the end
+		for (int n = this.size - 1; n > 0; n--) {
+			int cat = this.index[0];
+			double v = this.value[0];
+			this.siftDown(this.index[n], this.value[n], n);
+			this.index[n] = cat;
+			this.value[n] = v;
+		}
+		for (int i = 0; i < this.size; i++)
+			this.value[i] = Math.exp(this.value[i] - logsumexp);
+	}
+
+	/**
+	 * place (cat, v) at the root of a heap of n entries and sift down
+	 */
+	private void siftDown(int cat, double v, int n) {
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n)
+				break;
+			if (child + 1 < n && worse(this.value[child + 1], this.index[child + 1],
+					this.value[child], this.index[child]))
+				child++;
+			if (!worse(this.value[child], this.index[child], v, cat))
+				break;
+			this.index[i] = this.index[child];
+			this.value[i] = this.value[child];
+			i = child;
+		}
+		this.index[i] = cat;
+		this.value[i] = v;
+	}
+
+	/**
+	 * @return true if (va, a) ranks below (vb, b)
+	 */
+	private static boolean worse(double va, int a, double vb, int b) {
+		return va < vb || (va == vb && a > b);
+	}
+
+	/**
+	 *
+	 * @return number of categories, less than k if the state allows
+	 * 		fewer categories
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 		rank, 0 is the most probable
+	 * @return category name
+	 */
+	public String getCategory(int i) {
+		return this.catNames[this.index[i]];
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 		rank, 0 is the most probable
+	 * @return category position
+	 */
+	public int getIndex(int i) {
+		return this.index[i];
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 		rank, 0 is the most probable
+	 * @return normalized probability
+	 */
+	public double getProbability(int i) {
+		return this.value[i];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < this.size; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(this.getCategory(i)).append('=').append(this.value[i]);
+		}
+		return sb.append(']').toString();
+	}
+}
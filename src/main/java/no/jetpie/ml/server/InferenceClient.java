@@ -0,0 +1,310 @@
+package no.jetpie.ml.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * Blocking client of an InferenceServer, one connection with reusable
+ * buffers. A client is not thread-safe: use one per thread or a pool.
+ *
+ * predict(List, int[]) pipelines the documents: up to pipelineDepth
+ * requests are sent before the first response is read, so a batch
+ * pays the round trip about once instead of once per document.
+ *
+ * <pre>
+ *   InferenceClient client = new InferenceClient(new InetSocketAddress("127.0.0.1", 7070));
+ *   String label = client.predict(document, 0);
+ *   client.close();
+ * </pre>
+ *
+ * A request failing on the server throws an IOException with its
+ * message and leaves the connection usable.
+ */
+public class InferenceClient implements Closeable {
+
+	/** initial capacity of the buffers */
+	private static final int INIT_BUFFER_BYTES = 1 << 16;
+
+	private final SocketChannel channel;
+	/** requests to send, in write mode */
+	private ByteBuffer out = ByteBuffer.allocate(INIT_BUFFER_BYTES);
+	/** received bytes, in read mode */
+	private ByteBuffer in = ByteBuffer.allocate(INIT_BUFFER_BYTES);
+	/** id of the next request */
+	private int nextId;
+	/** requests sent before reading a response */
+	private int pipelineDepth = 64;
+	/** status of the last response */
+	private byte status;
+	/** position and length of the payload of the last response */
+	private int payload;
+	private int payloadLength;
+
+	/**
+	 * @param address
+	 * 		address of the server, an InetSocketAddress or on JDK 16
+	 * 		and later a UnixDomainSocketAddress
+	 * @throws IOException
+	 */
+	public InferenceClient(SocketAddress address) throws IOException {
+		this.channel = Protocol.openChannel(address);
+		try {
+			if (address instanceof InetSocketAddress)
+				this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			this.channel.connect(address);
+		} catch (IOException e) {
+			this.channel.close();
+			throw e;
+		}
+		this.in.flip();
+	}
+
+	/**
+	 * @param pipelineDepth
+	 * 		requests of predict(List, int[]) sent before reading a
+	 * 		response
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		Preconditions.checkArgument(pipelineDepth > 0, "pipeline depth must be positive",
+				pipelineDepth);
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	/**
+	 *
+	 * @param document
+	 * 		Single document of tokens separated by whitespace
+	 * @param state
+	 * 		state of the document
+	 * @return predicted category, null if none
+	 * @throws IOException
+	 */
+	public String predict(String document, int state) throws IOException {
+		int id = this.writePredict(document, state);
+		this.flush();
+		this.readResponse(id);
+		return this.label();
+	}
+
+	/**
+	 * predict a pre-vectorized document, see
+	 * NaiveBayes.predict(int[], float[], int)
+	 *
+	 * @param ids
+	 * 		column positions of the terms in the vocabulary of the model
+	 * @param counts
+	 * 		count of each id, null for one occurrence per id
+	 * @param state
+	 * 		state of the document
+	 * @return predicted category, null if none
+	 * @throws IOException
+	 */
+	public String predict(int[] ids, float[] counts, int state) throws IOException {
+		Preconditions.checkArgument(counts == null || counts.length == ids.length,
+				"each id must match a count", ids.length);
+		int length = Protocol.HEADER_BYTES + 8 + 8 * ids.length;
+		int id = this.beginRequest(Protocol.OP_PREDICT_IDS, length);
+		this.out.putInt(state);
+		this.out.putInt(ids.length);
+		for (int i = 0; i < ids.length; i++)
+			this.out.putInt(ids[i]);
+		for (int i = 0; i < ids.length; i++)
+			this.out.putFloat(counts == null ? 1 : counts[i]);
+		this.flush();
+		this.readResponse(id);
+		return this.label();
+	}
+
+	/**
+	 * pipelined predict of every document; if some fail, every response
+	 * is still read and the first error is thrown
+	 *
+	 * @param documents
+	 * 		List of documents of tokens separated by whitespace
+	 * @param states
+	 * 		state of each document
+	 * @return List of category predictions
+	 * @throws IOException
+	 */
+	public List<String> predict(List<String> documents, int[] states) throws IOException {
+		Preconditions.checkState(states.length == documents.size(),
+				"each document must match a state");
+		List<String> labels = new ArrayList<String>(documents.size());
+		int firstId = this.nextId;
+		int sent = 0;
+		String error = null;
+		for (String document : documents) {
+			this.writePredict(document, states[sent++]);
+			if (sent - labels.size() >= this.pipelineDepth) {
+				this.flush();
+				error = this.readLabel(firstId + labels.size(), labels, error);
+			}
+		}
+		this.flush();
+		while (labels.size() < sent)
+			error = this.readLabel(firstId + labels.size(), labels, error);
+		if (error != null)
+			throw new IOException("server error: " + error);
+		return labels;
+	}
+
+	/**
+	 *
+	 * @return status of the server and the model as JSON
+	 * @throws IOException
+	 */
+	public String health() throws IOException {
+		return this.call(Protocol.OP_HEALTH);
+	}
+
+	/**
+	 *
+	 * @return inference metrics of the model, empty if it records none
+	 * @throws IOException
+	 */
+	public String metrics() throws IOException {
+		return this.call(Protocol.OP_METRICS);
+	}
+
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	/**
+	 * read the response of a pipelined predict into labels, null on error
+	 *
+	 * @return the first error message so far, null if none
+	 */
+	private String readLabel(int id, List<String> labels, String error) throws IOException {
+		this.readResponse(id);
+		if (this.status != Protocol.STATUS_ERROR) {
+			labels.add(this.label());
+			return error;
+		}
+		labels.add(null);
+		return error != null ? error : this.payloadText();
+	}
+
+	private String call(byte op) throws IOException {
+		int id = this.beginRequest(op, Protocol.HEADER_BYTES);
+		this.flush();
+		this.readResponse(id);
+		return this.text();
+	}
+
+	/**
+	 * append an OP_PREDICT request
+	 *
+	 * @return id of the request
+	 */
+	private int writePredict(String document, int state) {
+		byte[] bytes = document.getBytes(Charsets.UTF_8);
+		int id = this.beginRequest(Protocol.OP_PREDICT, Protocol.HEADER_BYTES + 4 + bytes.length);
+		this.out.putInt(state);
+		this.out.put(bytes);
+		return id;
+	}
+
+	/**
+	 * append the length and header of a request of length bytes after
+	 * the length prefix
+	 *
+	 * @return id of the request
+	 */
+	private int beginRequest(byte op, int length) {
+		int n = Protocol.LENGTH_BYTES + length;
+		if (this.out.remaining() < n) {
+			ByteBuffer bigger = ByteBuffer.allocate(
+					Math.max(this.out.position() + n, this.out.capacity() << 1));
+			this.out.flip();
+			bigger.put(this.out);
+			this.out = bigger;
+		}
+		int id = this.nextId++;
+		this.out.putInt(length);
+		this.out.putInt(id);
+		this.out.put(op);
+		return id;
+	}
+
+	private void flush() throws IOException {
+		this.out.flip();
+		while (this.out.hasRemaining())
+			this.channel.write(this.out);
+		this.out.clear();
+	}
+
+	/**
+	 * read the next response, which must answer the request id
+	 */
+	private void readResponse(int id) throws IOException {
+		this.fill(Protocol.LENGTH_BYTES);
+		int length = this.in.getInt();
+		if (length < Protocol.HEADER_BYTES)
+			throw new IOException("bad response length " + length);
+		this.fill(length);
+		int responseId = this.in.getInt();
+		this.status = this.in.get();
+		if (responseId != id)
+			throw new IOException("response " + responseId + " does not answer request " + id);
+		this.payload = this.in.position();
+		this.payloadLength = length - Protocol.HEADER_BYTES;
+		this.in.position(this.payload + this.payloadLength);
+	}
+
+	/**
+	 * read until n bytes are available
+	 */
+	private void fill(int n) throws IOException {
+		if (this.in.remaining() >= n)
+			return;
+		if (this.in.capacity() < n) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(n, this.in.capacity() << 1));
+			bigger.put(this.in);
+			this.in = bigger;
+		} else {
+			this.in.compact();
+		}
+		while (this.in.position() < n) {
+			if (this.channel.read(this.in) < 0)
+				throw new EOFException("connection closed by the server");
+		}
+		this.in.flip();
+	}
+
+	/**
+	 *
+	 * @return label of the last response, null for STATUS_NO_LABEL
+	 */
+	private String label() throws IOException {
+		String text = this.text();
+		return this.status == Protocol.STATUS_NO_LABEL ? null : text;
+	}
+
+	/**
+	 *
+	 * @return payload of the last response as text
+	 */
+	private String text() throws IOException {
+		String text = this.payloadText();
+		if (this.status == Protocol.STATUS_ERROR)
+			throw new IOException("server error: " + text);
+		return text;
+	}
+
+	private String payloadText() {
+		return new String(this.in.array(), this.in.arrayOffset() + this.payload,
+				this.payloadLength, Charsets.UTF_8);
+	}
+}
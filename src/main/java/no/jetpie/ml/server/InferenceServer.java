@@ -0,0 +1,608 @@
+package no.jetpie.ml.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.gson.stream.JsonWriter;
+
+import no.jetpie.ml.feature.FeatureBatch;
+import no.jetpie.ml.metrics.MetricsRegistry;
+import no.jetpie.ml.model.nb.ModelManager;
+import no.jetpie.ml.model.nb.MultinomialNB;
+import no.jetpie.ml.model.nb.NaiveBayes;
+
+/**
+ * Serves the predictions of a loaded model to other processes over the
+ * binary Protocol, so the model is loaded once per host instead of once
+ * per application.
+ *
+ * An acceptor thread hands the connections in turn to a fixed number of
+ * event loops. Each loop owns a Selector and its connections, reads
+ * every complete frame of a read, predicts them on its own thread and
+ * writes the responses of the read at once, so pipelined requests cost
+ * one system call each way. The buffers of a connection only grow and
+ * are reused for all its requests. A connection whose responses are
+ * not read stops being read above HIGH_WATER_BYTES of pending output.
+ *
+ * <pre>
+ *   InferenceServer server = new InferenceServer(model, new InetSocketAddress("127.0.0.1", 7070));
+ *   server.start();
+ *   ...
+ *   server.close();
+ * </pre>
+ *
+ * The address may be a UnixDomainSocketAddress on JDK 16 and later;
+ * its socket file is neither replaced nor deleted by the server.
+ */
+public class InferenceServer implements Closeable {
+
+	/** pending output above which a connection is not read */
+	static final int HIGH_WATER_BYTES = 1 << 20;
+	/** initial capacity of the buffers of a connection */
+	private static final int INIT_BUFFER_BYTES = 1 << 16;
+	/** longest wait before accepting again after failures */
+	private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+	/** model to predict with, null if served by the manager */
+	private final NaiveBayes model;
+	/** manager of the model, null if a fixed model is served */
+	private final ModelManager manager;
+	/** address to listen on */
+	private final SocketAddress address;
+	/** number of event loops */
+	private int threads = Runtime.getRuntime().availableProcessors();
+	/** maximum length of a frame */
+	private int maxFrameBytes = Protocol.DEFAULT_MAX_FRAME_BYTES;
+
+	private ServerSocketChannel serverChannel;
+	private Thread acceptThread;
+	private EventLoop[] loops;
+	private volatile boolean running;
+	/** start of the server in milliseconds */
+	private long startMillis;
+
+	/** accepted connections */
+	private final LongAdder accepted = new LongAdder();
+	/** open connections */
+	private final AtomicInteger open = new AtomicInteger();
+	/** answered requests */
+	private final LongAdder requests = new LongAdder();
+	/** requests answered by STATUS_ERROR */
+	private final LongAdder errors = new LongAdder();
+	/** last failure of accepting or of an event loop, null if none */
+	private volatile IOException lastFailure;
+
+	/**
+	 * @param model
+	 * 		initialized model
+	 * @param address
+	 * 		address to listen on, port 0 for any free port
+	 */
+	public InferenceServer(NaiveBayes model, SocketAddress address) {
+		this(Preconditions.checkNotNull(model), null, address);
+	}
+
+	/**
+	 * serve the current model of a manager, reloads included
+	 *
+	 * @param manager
+	 * 		started manager
+	 * @param address
+	 * 		address to listen on, port 0 for any free port
+	 */
+	public InferenceServer(ModelManager manager, SocketAddress address) {
+		this(null, Preconditions.checkNotNull(manager), address);
+	}
+
+	private InferenceServer(NaiveBayes model, ModelManager manager, SocketAddress address) {
+		this.model = model;
+		this.manager = manager;
+		this.address = Preconditions.checkNotNull(address);
+	}
+
+	/**
+	 * @param threads
+	 * 		number of event loops, each predicting on its own thread
+	 */
+	public void setThreads(int threads) {
+		Preconditions.checkArgument(threads > 0, "threads must be positive", threads);
+		this.threads = threads;
+	}
+
+	/**
+	 * @param maxFrameBytes
+	 * 		maximum length of a request frame, a longer one closes its
+	 * 		connection
+	 */
+	public void setMaxFrameBytes(int maxFrameBytes) {
+		Preconditions.checkArgument(maxFrameBytes > Protocol.HEADER_BYTES,
+				"maximum frame is too small", maxFrameBytes);
+		this.maxFrameBytes = maxFrameBytes;
+	}
+
+	/**
+	 * bind the address and start serving
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		Preconditions.checkState(!this.running, "server is already started!");
+		this.serverChannel = Protocol.openServerChannel(this.address);
+		this.serverChannel.bind(this.address);
+		this.loops = new EventLoop[this.threads];
+		for (int i = 0; i < this.loops.length; i++)
+			this.loops[i] = new EventLoop(Selector.open());
+		this.running = true;
+		this.startMillis = System.currentTimeMillis();
+		for (int i = 0; i < this.loops.length; i++) {
+			this.loops[i].thread = new Thread(this.loops[i], "nb-server-loop-" + i);
+			this.loops[i].thread.setDaemon(true);
+			this.loops[i].thread.start();
+		}
+		this.acceptThread = new Thread(new Runnable() {
+			public void run() {
+				InferenceServer.this.accept();
+			}
+		}, "nb-server-accept");
+		this.acceptThread.setDaemon(true);
+		this.acceptThread.start();
+	}
+
+	/**
+	 * stop accepting, close every connection and wait for the threads
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (!this.running)
+				return;
+			this.running = false;
+			this.serverChannel.close();
+			for (EventLoop loop : this.loops)
+				loop.selector.wakeup();
+		}
+		try {
+			this.acceptThread.join();
+			for (EventLoop loop : this.loops)
+				loop.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 *
+	 * @return bound address, e.g. to read the port chosen for port 0
+	 * @throws IOException
+	 */
+	public SocketAddress getAddress() throws IOException {
+		Preconditions.checkState(this.serverChannel != null, "server is not started!");
+		return this.serverChannel.getLocalAddress();
+	}
+
+	public long getAccepted() {
+		return this.accepted.sum();
+	}
+
+	public int getOpenConnections() {
+		return this.open.get();
+	}
+
+	public long getRequests() {
+		return this.requests.sum();
+	}
+
+	public long getErrors() {
+		return this.errors.sum();
+	}
+
+	/**
+	 *
+	 * @return last failure of accepting a connection or of an event
+	 * 		loop, null if none
+	 */
+	public IOException getLastFailure() {
+		return this.lastFailure;
+	}
+
+	/**
+	 *
+	 * @return model predicting the next request
+	 */
+	private NaiveBayes model() {
+		return this.manager != null ? this.manager.getModel() : this.model;
+	}
+
+	/**
+	 * accept connections until the server channel is closed and give
+	 * them to the loops in turn
+	 */
+	private void accept() {
+		boolean tcp = this.address instanceof InetSocketAddress;
+		int next = 0;
+		long backoff = 0;
+		while (this.running) {
+			SocketChannel channel;
+			try {
+				channel = this.serverChannel.accept();
+				backoff = 0;
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				// e.g. out of file descriptors, wait for connections to
+				// close instead of failing again at once
+				this.lastFailure = e;
+				backoff = Math.min(Math.max(1, backoff << 1), MAX_ACCEPT_BACKOFF_MILLIS);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				continue;
+			}
+			try {
+				channel.configureBlocking(false);
+				if (tcp)
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch (IOException e) {
+				closeQuietly(channel);
+				continue;
+			}
+			this.accepted.increment();
+			this.open.incrementAndGet();
+			this.loops[next].add(channel);
+			next = (next + 1) % this.loops.length;
+		}
+	}
+
+	/**
+	 * a selector and the connections registered with it
+	 */
+	private final class EventLoop implements Runnable {
+		final Selector selector;
+		/** accepted channels to register */
+		final ConcurrentLinkedQueue<SocketChannel> pending =
+				new ConcurrentLinkedQueue<SocketChannel>();
+		Thread thread;
+
+		EventLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		void add(SocketChannel channel) {
+			this.pending.add(channel);
+			this.selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (InferenceServer.this.running) {
+					this.selector.select();
+					SocketChannel channel;
+					while ((channel = this.pending.poll()) != null)
+						channel.register(this.selector, SelectionKey.OP_READ, new Connection(channel));
+					Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Connection c = (Connection) key.attachment();
+						try {
+							if (key.isReadable())
+								c.read();
+							if (key.isValid() && key.isWritable())
+								c.flush();
+							if (c.eof && c.out.position() == 0)
+								this.close(key);
+							else
+								c.interest(key);
+						} catch (IOException e) {
+							// reset by the peer
+							this.close(key);
+						}
+					}
+				}
+			} catch (IOException e) {
+				InferenceServer.this.lastFailure = e;
+			} finally {
+				for (SelectionKey key : this.selector.keys())
+					this.close(key);
+				SocketChannel channel;
+				while ((channel = this.pending.poll()) != null) {
+					closeQuietly(channel);
+					InferenceServer.this.open.decrementAndGet();
+				}
+				try {
+					this.selector.close();
+				} catch (IOException e) {
+					// its channels are closed already
+				}
+			}
+		}
+
+		private void close(SelectionKey key) {
+			key.cancel();
+			closeQuietly(key.channel());
+			InferenceServer.this.open.decrementAndGet();
+		}
+	}
+
+	/**
+	 * a client connection with its reusable buffers
+	 */
+	private final class Connection {
+		final SocketChannel channel;
+		/** received bytes, in write mode */
+		ByteBuffer in = ByteBuffer.allocate(INIT_BUFFER_BYTES);
+		/** responses to send, in write mode */
+		ByteBuffer out = ByteBuffer.allocate(INIT_BUFFER_BYTES);
+		final CharsetEncoder encoder = Charsets.UTF_8.newEncoder();
+		/** document of an OP_PREDICT_IDS request */
+		final FeatureBatch batch = new FeatureBatch();
+		final int[] state = new int[1];
+		/**
+		 * true once nothing more is read: the client shut its output
+		 * down or sent a bad frame; the connection closes once its
+		 * responses are written
+		 */
+		boolean eof;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * read what is available and answer every complete frame
+		 */
+		void read() throws IOException {
+			if (this.channel.read(this.in) < 0) {
+				// answer what came before, then close
+				this.eof = true;
+				return;
+			}
+			this.in.flip();
+			while (this.in.remaining() >= Protocol.LENGTH_BYTES) {
+				int start = this.in.position();
+				int length = this.in.getInt(start);
+				if (length < Protocol.HEADER_BYTES
+						|| length > InferenceServer.this.maxFrameBytes) {
+					// answer the frames before it, then close
+					this.eof = true;
+					this.in.clear();
+					this.flush();
+					return;
+				}
+				int end = start + Protocol.LENGTH_BYTES + length;
+				if (this.in.limit() < end) {
+					if (this.in.capacity() < end - start) {
+						// make room for the whole frame
+						ByteBuffer bigger = ByteBuffer.allocate(
+								Math.max(end - start, this.in.capacity() << 1));
+						bigger.put(this.in);
+						bigger.flip();
+						this.in = bigger;
+					}
+					break;
+				}
+				this.handle(start + Protocol.LENGTH_BYTES, end);
+				this.in.position(end);
+			}
+			this.in.compact();
+			this.flush();
+		}
+
+		/**
+		 * write the pending responses as far as the socket takes them
+		 */
+		void flush() throws IOException {
+			this.out.flip();
+			this.channel.write(this.out);
+			this.out.compact();
+		}
+
+		/**
+		 * write while output is pending, read while it is small
+		 */
+		void interest(SelectionKey key) {
+			int ops = this.out.position() > 0 ? SelectionKey.OP_WRITE : 0;
+			if (this.out.position() < HIGH_WATER_BYTES && !this.eof)
+				ops |= SelectionKey.OP_READ;
+			if (key.interestOps() != ops)
+				key.interestOps(ops);
+		}
+
+		/**
+		 * answer the frame in[from, to) after its length
+		 */
+		private void handle(int from, int to) {
+			int id = this.in.getInt(from);
+			byte op = this.in.get(from + 4);
+			int payload = from + Protocol.HEADER_BYTES;
+			InferenceServer.this.requests.increment();
+			try {
+				switch (op) {
+				case Protocol.OP_PREDICT:
+					this.predict(id, payload, to);
+					break;
+				case Protocol.OP_PREDICT_IDS:
+					this.predictIds(id, payload, to);
+					break;
+				case Protocol.OP_HEALTH:
+					this.respond(id, Protocol.STATUS_OK, InferenceServer.this.health());
+					break;
+				case Protocol.OP_METRICS:
+					MetricsRegistry metrics = InferenceServer.this.model().getMetrics();
+					this.respond(id, Protocol.STATUS_OK, metrics == null ? "" : metrics.toString());
+					break;
+				default:
+					throw new IllegalArgumentException("unknown op " + op);
+				}
+			} catch (RuntimeException e) {
+				InferenceServer.this.errors.increment();
+				this.respond(id, Protocol.STATUS_ERROR, String.valueOf(e.getMessage()));
+			}
+		}
+
+		private void predict(int id, int from, int to) {
+			Preconditions.checkArgument(to - from >= 4, "state is missing");
+			int state = this.in.getInt(from);
+			String document = new String(this.in.array(), this.in.arrayOffset() + from + 4,
+					to - from - 4, Charsets.UTF_8);
+			this.respondLabel(id, InferenceServer.this.model().predict(document, state));
+		}
+
+		private void predictIds(int id, int from, int to) {
+			Preconditions.checkArgument(to - from >= 8, "state or length is missing");
+			this.state[0] = this.in.getInt(from);
+			int n = this.in.getInt(from + 4);
+			Preconditions.checkArgument(n >= 0 && n <= (to - from - 8) / 8 && to - from == 8 + 8 * n,
+					"ids and counts do not match the frame", n);
+			int ids = from + 8;
+			int counts = ids + 4 * n;
+			this.batch.clear();
+			for (int i = 0; i < n; i++)
+				this.batch.add(this.in.getInt(ids + 4 * i), this.in.getFloat(counts + 4 * i));
+			this.batch.endDocument();
+			this.respondLabel(id,
+					InferenceServer.this.model().predict(this.batch, this.state).get(0));
+		}
+
+		private void respondLabel(int id, String label) {
+			if (label == null)
+				this.respond(id, Protocol.STATUS_NO_LABEL, "");
+			else
+				this.respond(id, Protocol.STATUS_OK, label);
+		}
+
+		/**
+		 * append a response frame to the output
+		 */
+		private void respond(int id, byte status, String text) {
+			this.ensure(Protocol.LENGTH_BYTES + Protocol.HEADER_BYTES
+					+ (int) (text.length() * this.encoder.maxBytesPerChar()));
+			int start = this.out.position();
+			this.out.position(start + Protocol.LENGTH_BYTES);
+			this.out.putInt(id);
+			this.out.put(status);
+			this.encoder.reset();
+			CoderResult result = this.encoder.encode(CharBuffer.wrap(text), this.out, true);
+			if (!result.isUnderflow()) {
+				// unpaired surrogate, encode it as the String does
+				this.out.position(start + Protocol.LENGTH_BYTES + Protocol.HEADER_BYTES);
+				this.out.put(text.getBytes(Charsets.UTF_8));
+			} else {
+				this.encoder.flush(this.out);
+			}
+			this.out.putInt(start, this.out.position() - start - Protocol.LENGTH_BYTES);
+		}
+
+		/**
+		 * grow the output for n more bytes
+		 */
+		private void ensure(int n) {
+			if (this.out.remaining() >= n)
+				return;
+			ByteBuffer bigger = ByteBuffer.allocate(
+					Math.max(this.out.position() + n, this.out.capacity() << 1));
+			this.out.flip();
+			bigger.put(this.out);
+			this.out = bigger;
+		}
+	}
+
+	/**
+	 *
+	 * @return status of the server and the model as JSON
+	 */
+	String health() {
+		StringWriter sw = new StringWriter();
+		JsonWriter json = new JsonWriter(sw);
+		try {
+			json.beginObject();
+			json.name("status").value("ok");
+			json.name("categories").value(this.model().getSnapshot().getNumCats());
+			json.name("uptimeMillis").value(System.currentTimeMillis() - this.startMillis);
+			json.name("openConnections").value(this.getOpenConnections());
+			json.name("accepted").value(this.getAccepted());
+			json.name("requests").value(this.getRequests());
+			json.name("errors").value(this.getErrors());
+			json.name("lastFailure").value(this.lastFailure == null
+					? null : this.lastFailure.toString());
+			if (this.manager != null) {
+				json.name("reloads").value(this.manager.getReloads());
+				json.name("lastReloadFailure").value(this.manager.getLastFailure() == null
+						? null : this.manager.getLastFailure().toString());
+			}
+			json.endObject();
+			json.close();
+		} catch (IOException e) {
+			// a StringWriter does not fail
+			throw new IllegalStateException(e);
+		}
+		return sw.toString();
+	}
+
+	private static void closeQuietly(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing to do, the connection is dropped either way
+		}
+	}
+
+	/**
+	 * serve a text or a binary model on a TCP port
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2 && args.length != 4) {
+			System.err.println("usage: InferenceServer <vocabulary.model> "
+					+ "<log_proba dir> <boundary.json> <port>");
+			System.err.println("       InferenceServer <model file> <port>");
+			System.exit(1);
+		}
+		MultinomialNB model = args.length == 2 ? new MultinomialNB(args[0])
+				: new MultinomialNB(args[0], args[1], args[2]);
+		model.init();
+		System.out.println("model loaded: " + model.getLoadReport());
+		final InferenceServer server = new InferenceServer(model,
+				new InetSocketAddress(Integer.parseInt(args[args.length - 1])));
+		server.start();
+		System.out.println("inference server listening on " + server.getAddress());
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					server.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		// the server threads are daemons, serve until the hook closes it
+		try {
+			server.acceptThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
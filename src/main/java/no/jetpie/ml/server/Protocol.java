@@ -0,0 +1,119 @@
+package no.jetpie.ml.server;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Binary protocol of the InferenceServer.
+ *
+ * Every request and response is a frame of a big endian int length,
+ * the number of bytes following it, then the request id given by the
+ * client and echoed in the response:
+ *
+ * <pre>
+ *   request:  int length | int id | byte op     | payload
+ *   response: int length | int id | byte status | payload
+ * </pre>
+ *
+ * Requests of a connection are answered in order, so a client may
+ * send several requests before reading the responses (pipelining).
+ *
+ * <pre>
+ *   OP_PREDICT      int state | UTF-8 document
+ *   OP_PREDICT_IDS  int state | int n | n int ids | n float counts
+ *   OP_HEALTH       -
+ *   OP_METRICS      -
+ * </pre>
+ *
+ * A predict is answered by STATUS_OK and the UTF-8 label or by
+ * STATUS_NO_LABEL; health by a JSON object and metrics by the text of
+ * the MetricsRegistry of the model, both UTF-8; a failed request by
+ * STATUS_ERROR and a UTF-8 message. A frame longer than the maximum
+ * of the server closes the connection.
+ */
+public final class Protocol {
+
+	/** label of a document of terms separated by whitespace */
+	public static final byte OP_PREDICT = 1;
+	/** label of a document pre-vectorized as feature ids and counts */
+	public static final byte OP_PREDICT_IDS = 2;
+	/** status of the server and the model as JSON */
+	public static final byte OP_HEALTH = 3;
+	/** inference metrics of the model as text */
+	public static final byte OP_METRICS = 4;
+
+	/** the payload is the answer */
+	public static final byte STATUS_OK = 0;
+	/** no category passes the rule, threshold and stop list checks */
+	public static final byte STATUS_NO_LABEL = 1;
+	/** the payload is the error message */
+	public static final byte STATUS_ERROR = 2;
+
+	/** bytes of the length prefix */
+	public static final int LENGTH_BYTES = 4;
+	/** bytes of id and op or status following the length */
+	public static final int HEADER_BYTES = 5;
+	/** default maximum of the length of a frame */
+	public static final int DEFAULT_MAX_FRAME_BYTES = 1 << 24;
+
+	private Protocol() {
+	}
+
+	/**
+	 *
+	 * @param address
+	 * 		InetSocketAddress, or UnixDomainSocketAddress on JDK 16 and
+	 * 		later
+	 * @return an unbound server channel of the family of the address
+	 * @throws IOException
+	 */
+	static ServerSocketChannel openServerChannel(SocketAddress address) throws IOException {
+		if (address instanceof InetSocketAddress)
+			return ServerSocketChannel.open();
+		return (ServerSocketChannel) open(ServerSocketChannel.class, address);
+	}
+
+	/**
+	 *
+	 * @param address
+	 * 		InetSocketAddress, or UnixDomainSocketAddress on JDK 16 and
+	 * 		later
+	 * @return an unconnected channel of the family of the address
+	 * @throws IOException
+	 */
+	static SocketChannel openChannel(SocketAddress address) throws IOException {
+		if (address instanceof InetSocketAddress)
+			return SocketChannel.open();
+		return (SocketChannel) open(SocketChannel.class, address);
+	}
+
+	/**
+	 * open(ProtocolFamily) of JDK 15 and StandardProtocolFamily.UNIX of
+	 * JDK 16, looked up at run time as the library targets Java 8
+	 */
+	private static Object open(Class<?> channelClass, SocketAddress address)
+			throws IOException {
+		try {
+			ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+			return channelClass.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("unix domain sockets need JDK 16 or later: "
+					+ address, e);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("unix domain sockets need JDK 16 or later: "
+					+ address, e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
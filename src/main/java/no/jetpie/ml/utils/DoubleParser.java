@@ -0,0 +1,210 @@
+package no.jetpie.ml.utils;
+
+import java.math.BigInteger;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Parse decimal doubles straight from UTF-8 bytes, without a String.
+ *
+ * The result is always the one of Double.parseDouble on the same text.
+ * Plain decimals of at most 19 significant digits, e.g. the output of
+ * Double.toString, are converted exactly in a few multiplications:
+ * Clinger's fast path when the significand and the power of ten are
+ * both exact doubles, else the Eisel-Lemire algorithm on a table of
+ * 128 bit powers of ten. Anything else, i.e. longer significands,
+ * subnormals, hexadecimal, NaN, Infinity or the rare cases the
+ * algorithm cannot round with certainty, falls back to
+ * Double.parseDouble.
+ */
+public final class DoubleParser {
+
+	/** most significant digits held by an unsigned long */
+	private static final int MAX_DIGITS = 19;
+	/** exact powers of ten as doubles */
+	private static final double[] EXACT_POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	/** range of the table of powers of ten */
+	private static final int MIN_EXP10 = -348;
+	private static final int MAX_EXP10 = 347;
+	/** high and low 64 bits of 10^q normalized to [2^127, 2^128), rounded down */
+	private static final long[] POW10_HI = new long[MAX_EXP10 - MIN_EXP10 + 1];
+	private static final long[] POW10_LO = new long[MAX_EXP10 - MIN_EXP10 + 1];
+
+	static {
+		BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+		for (int q = MIN_EXP10; q <= MAX_EXP10; q++) {
+			BigInteger m;
+			if (q >= 0) {
+				m = BigInteger.TEN.pow(q);
+				int shift = m.bitLength() - 128;
+				m = shift > 0 ? m.shiftRight(shift) : m.shiftLeft(-shift);
+			} else {
+				BigInteger d = BigInteger.TEN.pow(-q);
+				m = BigInteger.ONE.shiftLeft(127 + d.bitLength()).divide(d);
+			}
+			POW10_HI[q - MIN_EXP10] = m.shiftRight(64).longValue();
+			POW10_LO[q - MIN_EXP10] = m.and(mask).longValue();
+		}
+	}
+
+	private DoubleParser() {
+	}
+
+	/**
+	 *
+	 * @param buffer
+	 * 		UTF-8 text
+	 * @param offset
+	 * 		first byte of the number
+	 * @param length
+	 * 		number of bytes of the number
+	 * @return the value Double.parseDouble gives for the text
+	 * @throws NumberFormatException
+	 * 		if the text is not a number
+	 */
+	public static double parse(byte[] buffer, int offset, int length) {
+		int i = offset;
+		int end = offset + length;
+		// same whitespace trimming as Double.parseDouble
+		while (i < end && (buffer[i] & 0xff) <= ' ')
+			i++;
+		while (end > i && (buffer[end - 1] & 0xff) <= ' ')
+			end--;
+		boolean negative = false;
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+'))
+			negative = buffer[i++] == '-';
+
+		long significand = 0;
+		int digits = 0;
+		int exp10 = 0;
+		boolean any = false;
+		boolean point = false;
+		for (; i < end; i++) {
+			int c = buffer[i];
+			if (c >= '0' && c <= '9') {
+				any = true;
+				if (point)
+					exp10--;
+				if (significand == 0 && c == '0')
+					continue;
+				if (++digits > MAX_DIGITS)
+					return fallback(buffer, offset, length);
+				significand = significand * 10 + (c - '0');
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (!any)
+			return fallback(buffer, offset, length);
+		if (i < end) {
+			if (buffer[i] != 'e' && buffer[i] != 'E')
+				return fallback(buffer, offset, length);
+			i++;
+			boolean negativeExp = false;
+			if (i < end && (buffer[i] == '-' || buffer[i] == '+'))
+				negativeExp = buffer[i++] == '-';
+			if (i == end)
+				return fallback(buffer, offset, length);
+			int exp = 0;
+			for (; i < end; i++) {
+				int c = buffer[i];
+				if (c < '0' || c > '9')
+					return fallback(buffer, offset, length);
+				// beyond the range any digit only means 0 or infinity
+				if (exp < 100000)
+					exp = exp * 10 + (c - '0');
+			}
+			exp10 += negativeExp ? -exp : exp;
+		}
+
+		if (significand == 0)
+			return negative ? -0.0 : 0.0;
+		// Clinger: both operands exact, a single rounding
+		if (digits <= 15 && exp10 >= -22 && exp10 <= 22) {
+			double d = (double) significand;
+			d = exp10 < 0 ? d / EXACT_POW10[-exp10] : d * EXACT_POW10[exp10];
+			return negative ? -d : d;
+		}
+		long bits = eiselLemire(significand, exp10);
+		if (bits == -1)
+			return fallback(buffer, offset, length);
+		double d = Double.longBitsToDouble(bits);
+		return negative ? -d : d;
+	}
+
+	/**
+	 * Eisel-Lemire: multiply the normalized significand by the
+	 * truncated power of ten and round, refusing when the truncation
+	 * could change the rounding
+	 *
+	 * @return bits of the positive double, -1 if undecided, subnormal
+	 * 		or out of range
+	 */
+	private static long eiselLemire(long significand, int exp10) {
+		if (exp10 < MIN_EXP10 || exp10 > MAX_EXP10)
+			return -1;
+		int clz = Long.numberOfLeadingZeros(significand);
+		long man = significand << clz;
+		long exp2 = ((217706 * exp10) >> 16) + 64 + 1023 - clz;
+
+		int q = exp10 - MIN_EXP10;
+		long xHi = multiplyHighUnsigned(man, POW10_HI[q]);
+		long xLo = man * POW10_HI[q];
+		if ((xHi & 0x1FF) == 0x1FF && Long.compareUnsigned(xLo + man, man) < 0) {
+			// the next 64 bits of the power of ten may carry into the result
+			long yHi = multiplyHighUnsigned(man, POW10_LO[q]);
+			long yLo = man * POW10_LO[q];
+			long mergedHi = xHi;
+			long mergedLo = xLo + yHi;
+			if (Long.compareUnsigned(mergedLo, xLo) < 0)
+				mergedHi++;
+			if ((mergedHi & 0x1FF) == 0x1FF && mergedLo + 1 == 0
+					&& Long.compareUnsigned(yLo + man, man) < 0)
+				return -1;
+			xHi = mergedHi;
+			xLo = mergedLo;
+		}
+
+		long msb = xHi >>> 63;
+		long mantissa = xHi >>> (msb + 9);
+		exp2 -= 1 ^ msb;
+		// exactly halfway between two doubles, round to even undecided
+		if (xLo == 0 && (xHi & 0x1FF) == 0 && (mantissa & 3) == 1)
+			return -1;
+		mantissa += mantissa & 1;
+		mantissa >>>= 1;
+		if ((mantissa >>> 53) > 0) {
+			mantissa >>>= 1;
+			exp2++;
+		}
+		if (exp2 < 1 || exp2 >= 0x7FF)
+			return -1;
+		return exp2 << 52 | (mantissa & 0x000FFFFFFFFFFFFFL);
+	}
+
+	/**
+	 *
+	 * @return high 64 bits of the unsigned 128 bit product
+	 */
+	private static long multiplyHighUnsigned(long x, long y) {
+		long x1 = x >> 32;
+		long x2 = x & 0xFFFFFFFFL;
+		long y1 = y >> 32;
+		long y2 = y & 0xFFFFFFFFL;
+		long z2 = x2 * y2;
+		long t = x1 * y2 + (z2 >>> 32);
+		long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+		long z0 = t >> 32;
+		long signedHigh = x1 * y1 + z0 + (z1 >> 32);
+		return signedHigh + ((x >> 63) & y) + ((y >> 63) & x);
+	}
+
+	private static double fallback(byte[] buffer, int offset, int length) {
+		return Double.parseDouble(new String(buffer, offset, length, Charsets.UTF_8));
+	}
+}
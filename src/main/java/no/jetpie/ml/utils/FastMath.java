@@ -0,0 +1,102 @@
+package no.jetpie.ml.utils;
+
+/**
+ * Table based exp and log for the probability normalization, a few
+ * multiplications and one lookup in a table small enough to stay in
+ * the L1 cache.
+ *
+ * exp(x) splits x into k * ln2 / 256 + r with |r| <= ln2 / 512, takes
+ * 2^(k / 256) from a table of 256 powers and exp(r) from a polynomial
+ * of degree 4. Its relative error is below MAX_EXP_ERROR, a few ulps,
+ * for x in (-708, 709); outside, including NaN and infinities, it
+ * returns Math.exp(x). It takes about half the time of Math.exp.
+ *
+ * log(x) splits a normal x into 2^e * m with m in [1, 2), divides m by
+ * the center of one of 128 intervals of [1, 2) and takes log(1 + r),
+ * |r| < 1 / 256, from a polynomial of degree 5. Its error is below
+ * MAX_LOG_ERROR * max(1, |log(x)|); zero, subnormal, negative and non
+ * finite x are given to Math.log(x).
+ */
+public final class FastMath {
+
+	/** largest relative error of exp in (-708, 709) */
+	public static final double MAX_EXP_ERROR = 1e-15;
+	/** largest error of log of a positive normal double, relative to max(1, |log(x)|) */
+	public static final double MAX_LOG_ERROR = 1e-15;
+
+	/** log2 of the number of powers of two in the exp table */
+	private static final int EXP_BITS = 8;
+	private static final int EXP_SIZE = 1 << EXP_BITS;
+	/** 2^(j / EXP_SIZE) */
+	private static final double[] EXP_TABLE = new double[EXP_SIZE];
+	private static final double INV_LN2_N = EXP_SIZE / Math.log(2);
+	/** ln2 / EXP_SIZE in two parts, the high one with a short mantissa */
+	private static final double LN2_N_HI = 6.93147180369123816490e-01 / EXP_SIZE;
+	private static final double LN2_N_LO = 1.90821492927058770002e-10 / EXP_SIZE;
+	/** 1.5 * 2^52, adding it rounds to an integer held by the low bits */
+	private static final double SHIFTER = 6755399441055744.0;
+
+	/** log2 of the number of intervals of the log table */
+	private static final int LOG_BITS = 7;
+	private static final int LOG_SIZE = 1 << LOG_BITS;
+	/** inverse of the center of each interval of [1, 2) */
+	private static final double[] LOG_INV = new double[LOG_SIZE];
+	/** -log(LOG_INV[j]) */
+	private static final double[] LOG_CENTER = new double[LOG_SIZE];
+	private static final double LN2_HI = 6.93147180369123816490e-01;
+	private static final double LN2_LO = 1.90821492927058770002e-10;
+	private static final long MANTISSA = 0x000FFFFFFFFFFFFFL;
+	private static final long EXPONENT_ONE = 0x3FF0000000000000L;
+
+	static {
+		for (int j = 0; j < EXP_SIZE; j++)
+			EXP_TABLE[j] = Math.pow(2, (double) j / EXP_SIZE);
+		for (int j = 0; j < LOG_SIZE; j++) {
+			LOG_INV[j] = 1 / (1 + (j + 0.5) / LOG_SIZE);
+			LOG_CENTER[j] = -Math.log(LOG_INV[j]);
+		}
+	}
+
+	private FastMath() {
+	}
+
+	/**
+	 *
+	 * @param x
+	 * 		exponent
+	 * @return e^x within MAX_EXP_ERROR relative error
+	 */
+	public static double exp(double x) {
+		// also false for NaN
+		if (!(x > -708 && x < 709))
+			return Math.exp(x);
+		double kd = x * INV_LN2_N + SHIFTER;
+		int k = (int) Double.doubleToRawLongBits(kd);
+		kd -= SHIFTER;
+		double r = x - kd * LN2_N_HI - kd * LN2_N_LO;
+		double p = 1 + r * (1 + r * (0.5 + r * (1.0 / 6 + r * (1.0 / 24))));
+		double y = EXP_TABLE[k & (EXP_SIZE - 1)] * p;
+		// multiply by 2^(k / EXP_SIZE) in the exponent, the result is normal
+		return Double.longBitsToDouble(Double.doubleToRawLongBits(y)
+				+ ((long) (k >> EXP_BITS) << 52));
+	}
+
+	/**
+	 *
+	 * @param x
+	 * 		positive number
+	 * @return natural logarithm of x within MAX_LOG_ERROR * max(1, |log(x)|)
+	 */
+	public static double log(double x) {
+		// also false for NaN
+		if (!(x >= Double.MIN_NORMAL && x <= Double.MAX_VALUE))
+			return Math.log(x);
+		long bits = Double.doubleToRawLongBits(x);
+		int e = (int) (bits >>> 52) - 1023;
+		int j = (int) (bits >>> (52 - LOG_BITS)) & (LOG_SIZE - 1);
+		double m = Double.longBitsToDouble((bits & MANTISSA) | EXPONENT_ONE);
+		double r = m * LOG_INV[j] - 1;
+		double p = r * (1 + r * (-0.5 + r * (1.0 / 3 + r * (-0.25 + r * 0.2))));
+		return e * LN2_HI + (LOG_CENTER[j] + (p + e * LN2_LO));
+	}
+}
@@ -2,6 +2,7 @@ package no.jetpie.ml.utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -57,4 +58,21 @@ public class Rule {
 		return this.constraint.contains(category);
 	}
 	
+	/**
+	 * compile the rule into a mask over category positions, so a
+	 * prediction only visits the valid categories
+	 * 
+	 * @param categories
+	 * 		category names indexed by category position
+	 * @return mask with bit j set if categories[j] is valid
+	 */
+	public BitSet compile(String[] categories){
+		BitSet mask = new BitSet(categories.length);
+		for (int j = 0; j < categories.length; j++) {
+			if (this.isValid(categories[j]))
+				mask.set(j);
+		}
+		return mask;
+	}
+	
 }
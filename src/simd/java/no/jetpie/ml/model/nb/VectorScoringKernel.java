@@ -0,0 +1,131 @@
+package no.jetpie.ml.model.nb;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * ScoringKernel on the widest double vectors of the CPU, e.g. 4 lanes
+ * with AVX2 and 8 with AVX-512. Tails shorter than a vector run the
+ * scalar loop.
+ *
+ * The accumulation multiplies then adds, without fused multiply-add,
+ * and the argmax compares the same differences as the scalar kernel,
+ * so both give the same results bit for bit. The log exp sum keeps a
+ * partial sum per lane and uses the vector exp.
+ *
+ * Compiled by the simd profile only, it needs JDK 16 or later and
+ * --add-modules jdk.incubator.vector at run time.
+ */
+final class VectorScoringKernel extends ScoringKernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	/** number of lanes */
+	private static final int LANES = SPECIES.length();
+
+	VectorScoringKernel() {
+		// fail here, at selection, if the module cannot be used
+		DoubleVector.zero(SPECIES).reduceLanes(VectorOperators.ADD);
+	}
+
+	@Override
+	String getName() {
+		return "vector " + SPECIES;
+	}
+
+	@Override
+	void axpy(double a, double[] x, int xOffset, double[] y, int yOffset, int n) {
+		DoubleVector va = DoubleVector.broadcast(SPECIES, a);
+		int bound = SPECIES.loopBound(n);
+		int j = 0;
+		for (; j < bound; j += LANES) {
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset + j);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOffset + j);
+			vy.add(va.mul(vx)).intoArray(y, yOffset + j);
+		}
+		for (; j < n; j++)
+			y[yOffset + j] += a * x[xOffset + j];
+	}
+
+	@Override
+	void add(double[] y, int n, double c) {
+		DoubleVector vc = DoubleVector.broadcast(SPECIES, c);
+		int bound = SPECIES.loopBound(n);
+		int j = 0;
+		for (; j < bound; j += LANES)
+			DoubleVector.fromArray(SPECIES, y, j).add(vc).intoArray(y, j);
+		for (; j < n; j++)
+			y[j] += c;
+	}
+
+	@Override
+	double logSumExp(double[] row, int offset, int n) {
+		int bound = SPECIES.loopBound(n);
+		DoubleVector vmax = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		int j = 0;
+		for (; j < bound; j += LANES)
+			vmax = vmax.max(DoubleVector.fromArray(SPECIES, row, offset + j));
+		double max = vmax.reduceLanes(VectorOperators.MAX);
+		for (; j < n; j++) {
+			if (row[offset + j] > max)
+				max = row[offset + j];
+		}
+
+		DoubleVector vm = DoubleVector.broadcast(SPECIES, max);
+		DoubleVector vsum = DoubleVector.zero(SPECIES);
+		for (j = 0; j < bound; j += LANES)
+			vsum = vsum.add(DoubleVector.fromArray(SPECIES, row, offset + j).sub(vm)
+					.lanewise(VectorOperators.EXP));
+		double sum = vsum.reduceLanes(VectorOperators.ADD);
+		for (; j < n; j++)
+			sum += Math.exp(row[offset + j] - max);
+		return Math.log(sum) + max;
+	}
+
+	@Override
+	int argmax(double[] row, int offset, int n, double logsumexp, Mask mask) {
+		// visiting the few allowed categories beats testing all in lanes
+		if (mask != null && mask.cardinality < n / LANES)
+			return ScoringKernel.scalar().argmax(row, offset, n, logsumexp, mask);
+		boolean[] flags = mask == null ? null : mask.flags;
+		DoubleVector vl = DoubleVector.broadcast(SPECIES, logsumexp);
+		int bound = SPECIES.loopBound(n);
+
+		// largest candidate of each lane, NaN never passes the compare
+		DoubleVector best = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		int j = 0;
+		for (; j < bound; j += LANES) {
+			DoubleVector v = DoubleVector.fromArray(SPECIES, row, offset + j).sub(vl);
+			VectorMask<Double> better = v.compare(VectorOperators.GT, best)
+					.and(v.compare(VectorOperators.NE, 0));
+			if (flags != null)
+				better = better.and(VectorMask.fromArray(SPECIES, flags, j));
+			best = best.blend(v, better);
+		}
+		double max = best.reduceLanes(VectorOperators.MAX);
+		for (; j < n; j++) {
+			double v = row[offset + j] - logsumexp;
+			if (v > max && v != 0 && (flags == null || flags[j]))
+				max = v;
+		}
+		if (max == Double.NEGATIVE_INFINITY)
+			return -1;
+
+		// the first allowed category reaching it, as the scalar scan
+		DoubleVector vmax = DoubleVector.broadcast(SPECIES, max);
+		for (j = 0; j < bound; j += LANES) {
+			DoubleVector v = DoubleVector.fromArray(SPECIES, row, offset + j).sub(vl);
+			VectorMask<Double> hit = v.compare(VectorOperators.EQ, vmax);
+			if (flags != null)
+				hit = hit.and(VectorMask.fromArray(SPECIES, flags, j));
+			if (hit.anyTrue())
+				return j + hit.firstTrue();
+		}
+		for (; j < n; j++) {
+			if (row[offset + j] - logsumexp == max && (flags == null || flags[j]))
+				return j;
+		}
+		return -1;
+	}
+}
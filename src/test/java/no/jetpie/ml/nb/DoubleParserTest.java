@@ -0,0 +1,91 @@
+package no.jetpie.ml.nb;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import no.jetpie.ml.utils.DoubleParser;
+
+import com.google.common.base.Charsets;
+
+/**
+ * DoubleParser bit for bit against Double.parseDouble, across the fast
+ * path, the Eisel-Lemire path and the fallback
+ */
+public class DoubleParserTest extends TestCase {
+
+	public void testBoundaries() {
+		String[] texts = {
+				// Clinger's fast path and its limits
+				"0", "-0", "0.0", "1", "-1", "+1", "3.14159", "1e22", "1e23", "-1e23",
+				"9007199254740992", "9007199254740993", "9007199254740991",
+				// 19 and 20 significant digits
+				"1234567890123456789", "12345678901234567890", "9999999999999999999",
+				"18446744073709551615", "0.1234567890123456789", "0.12345678901234567890",
+				"000000000000000000001.5", "1.0000000000000000000000000",
+				// exponents
+				"1e308", "1.7976931348623157e308", "1.7976931348623159e308", "1e309",
+				"2.2250738585072014E-308", "2.2250738585072011e-308", "1e-320",
+				"4.9e-324", "2.4e-324", "2.5e-324", "1e-400", "1E5", "1e+5", "1e-5",
+				"-1.5e-7", ".5", "5.", "-.5e1",
+				// halfway cases Eisel-Lemire cannot always decide
+				"9007199254740993.0", "2.0000000000000004440892098500626",
+				"7.2057594037927933e16", "4.5035996273704985e15",
+				// whitespace and signs
+				" 1.5", "1.5 ", "\t-2.5\n", "  +0.25  ",
+				// given to Double.parseDouble
+				"NaN", "-Infinity", "Infinity", "0x1p3", "1.5d", "2f" };
+		for (String text : texts)
+			assertParse(text);
+	}
+
+	public void testRandomDoubles() {
+		Random random = new Random(13);
+		for (int n = 0; n < 100000; n++) {
+			double x = Double.longBitsToDouble(random.nextLong());
+			if (Double.isNaN(x) || Double.isInfinite(x))
+				continue;
+			assertParse(Double.toString(x));
+			assertParse(String.format("%.17e", x));
+		}
+		// log probabilities as the trainer writes them
+		for (int n = 0; n < 100000; n++)
+			assertParse(Double.toString(-30 * random.nextDouble()));
+	}
+
+	public void testRandomDigits() {
+		Random random = new Random(17);
+		for (int n = 0; n < 100000; n++) {
+			StringBuilder text = new StringBuilder();
+			int digits = 1 + random.nextInt(22);
+			for (int i = 0; i < digits; i++)
+				text.append((char) ('0' + random.nextInt(10)));
+			text.insert(random.nextInt(digits + 1), '.');
+			text.append('e').append(random.nextInt(700) - 350);
+			assertParse(text.toString());
+		}
+	}
+
+	public void testOffset() {
+		byte[] buffer = "term:-1.25e-3,".getBytes(Charsets.UTF_8);
+		assertEquals(-1.25e-3, DoubleParser.parse(buffer, 5, 8));
+	}
+
+	public void testInvalid() {
+		String[] texts = { "", " ", "-", "+", ".", "e5", "1e", "1..2", "1e5.0", "abc", "1,5" };
+		for (String text : texts) {
+			try {
+				DoubleParser.parse(text.getBytes(Charsets.UTF_8), 0, text.length());
+				fail(text);
+			} catch (NumberFormatException e) {
+				// expected, as Double.parseDouble
+			}
+		}
+	}
+
+	private static void assertParse(String text) {
+		byte[] buffer = text.getBytes(Charsets.UTF_8);
+		long expected = Double.doubleToRawLongBits(Double.parseDouble(text));
+		long actual = Double.doubleToRawLongBits(DoubleParser.parse(buffer, 0, buffer.length));
+		assertEquals(text, expected, actual);
+	}
+}
@@ -0,0 +1,65 @@
+package no.jetpie.ml.nb;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import no.jetpie.ml.utils.FastMath;
+
+/**
+ * FastMath.exp and FastMath.log within their documented error
+ */
+public class FastMathTest extends TestCase {
+
+	public void testExpError() {
+		Random random = new Random(3);
+		for (int n = 0; n < 200000; n++)
+			assertExp(-708 + 1417 * random.nextDouble());
+		// the normalization mostly sees small negative log probabilities
+		for (int n = 0; n < 200000; n++)
+			assertExp(-50 * random.nextDouble());
+		double[] edges = { 0, -0.0, 1e-300, -1e-300, 1, -1, Math.log(2) / 512, -708, 708.9 };
+		for (double x : edges)
+			assertExp(x);
+	}
+
+	public void testExpOutsideRange() {
+		double[] xs = { -745, -1000, 710, 1000, Double.NaN, Double.NEGATIVE_INFINITY,
+				Double.POSITIVE_INFINITY };
+		for (double x : xs)
+			assertEquals(Math.exp(x), FastMath.exp(x));
+	}
+
+	public void testLogError() {
+		Random random = new Random(5);
+		for (int n = 0; n < 200000; n++)
+			assertLog(Double.longBitsToDouble(Double.doubleToRawLongBits(Double.MIN_NORMAL)
+					+ (long) (random.nextDouble() * (Double.doubleToRawLongBits(Double.MAX_VALUE)
+							- Double.doubleToRawLongBits(Double.MIN_NORMAL)))));
+		// around 1, where log is near 0 and the error is absolute
+		for (int n = 0; n < 200000; n++)
+			assertLog(0.5 + random.nextDouble());
+		double[] edges = { 1, Math.nextUp(1.0), Math.nextDown(1.0), 2, 0.5, Double.MIN_NORMAL,
+				Double.MAX_VALUE };
+		for (double x : edges)
+			assertLog(x);
+	}
+
+	public void testLogOutsideRange() {
+		double[] xs = { 0, -0.0, Double.MIN_VALUE, Double.MIN_NORMAL / 2, -1, Double.NaN,
+				Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (double x : xs)
+			assertEquals(Math.log(x), FastMath.log(x));
+	}
+
+	private static void assertExp(double x) {
+		double expected = Math.exp(x);
+		double error = Math.abs(FastMath.exp(x) - expected) / expected;
+		assertTrue("exp(" + x + ") error " + error, error <= FastMath.MAX_EXP_ERROR);
+	}
+
+	private static void assertLog(double x) {
+		double expected = Math.log(x);
+		double error = Math.abs(FastMath.log(x) - expected) / Math.max(1, Math.abs(expected));
+		assertTrue("log(" + x + ") error " + error, error <= FastMath.MAX_LOG_ERROR);
+	}
+}
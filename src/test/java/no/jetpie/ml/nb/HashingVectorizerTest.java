@@ -0,0 +1,43 @@
+package no.jetpie.ml.nb;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import no.jetpie.ml.feature.HashingVectorizer;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * HashingVectorizer.hash against the guava murmur3_32 of the String
+ */
+public class HashingVectorizerTest extends TestCase {
+
+	private static final HashFunction MURMUR3 = Hashing.murmur3_32();
+
+	public void testHashMatchesGuava() {
+		String[] terms = { "", "a", "ab", "abc", "abcd", "ball", "goal", "vote", "law",
+				"été", "北京", "😀", "naive bayes" };
+		for (String term : terms)
+			assertHash(term);
+	}
+
+	public void testRandomTermsMatchGuava() {
+		Random random = new Random(11);
+		for (int n = 0; n < 10000; n++) {
+			char[] chars = new char[random.nextInt(24)];
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = (char) (n % 2 == 0 ? 'a' + random.nextInt(26) : random.nextInt(0x10000));
+			assertHash(new String(chars));
+		}
+	}
+
+	private static void assertHash(String term) {
+		int expected = MURMUR3.hashString(term).asInt();
+		assertEquals(term, expected, HashingVectorizer.hash(term));
+		assertEquals(term, expected, HashingVectorizer.hash(new StringBuilder(term)));
+		// the term in the middle of a larger buffer
+		char[] buffer = ("<" + term + ">").toCharArray();
+		assertEquals(term, expected, HashingVectorizer.hash(buffer, 1, term.length()));
+	}
+}
@@ -0,0 +1,182 @@
+package no.jetpie.ml.nb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import no.jetpie.ml.model.nb.MultinomialNB;
+import no.jetpie.ml.server.InferenceClient;
+import no.jetpie.ml.server.InferenceServer;
+import no.jetpie.ml.server.Protocol;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * InferenceServer and InferenceClient on a free localhost port
+ */
+public class InferenceServerTest extends TestCase {
+
+	private static final int MAX_FRAME_BYTES = 1 << 12;
+
+	private File dir;
+	private MultinomialNB model;
+	private InferenceServer server;
+	private InferenceClient client;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.dir = Files.createTempDir();
+		TinyModel.write(this.dir, -1.0);
+		this.model = new MultinomialNB(new File(this.dir, "vocabulary.model").getPath(),
+				new File(this.dir, "log_proba").getPath(),
+				new File(this.dir, "boundary.json").getPath());
+		this.model.init();
+		this.server = new InferenceServer(this.model, new InetSocketAddress("127.0.0.1", 0));
+		this.server.setThreads(2);
+		this.server.setMaxFrameBytes(MAX_FRAME_BYTES);
+		this.server.start();
+		this.client = new InferenceClient(this.server.getAddress());
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		this.client.close();
+		this.server.close();
+		TinyModel.delete(this.dir);
+	}
+
+	public void testPredict() throws IOException {
+		assertEquals("sport", this.client.predict("ball goal", 0));
+		assertEquals("politics", this.client.predict("vote law", 0));
+		assertEquals(this.model.predict("unknown words", 0),
+				this.client.predict("unknown words", 0));
+	}
+
+	public void testPipelinedPredict() throws IOException {
+		this.client.setPipelineDepth(16);
+		List<String> documents = new ArrayList<String>();
+		for (int i = 0; i < 200; i++)
+			documents.add(i % 3 == 0 ? "ball goal ball" : i % 3 == 1 ? "vote law" : "nothing");
+		int[] states = new int[documents.size()];
+		List<String> labels = this.client.predict(documents, states);
+		assertEquals(documents.size(), labels.size());
+		for (int i = 0; i < documents.size(); i++)
+			assertEquals(this.model.predict(documents.get(i), 0), labels.get(i));
+	}
+
+	public void testPredictIds() throws IOException {
+		assertEquals("sport", this.client.predict(new int[] { 0, 1 }, null, 0));
+		assertEquals("politics", this.client.predict(new int[] { 3, 2 },
+				new float[] { 2, 1 }, 0));
+		assertEquals(this.model.predict(new int[] { 1, 2 }, new float[] { 1, 3 }, 0),
+				this.client.predict(new int[] { 1, 2 }, new float[] { 1, 3 }, 0));
+	}
+
+	public void testHealth() throws IOException {
+		this.client.predict("ball", 0);
+		String health = this.client.health();
+		assertTrue(health, health.contains("\"status\":\"ok\""));
+		assertTrue(health, health.contains("\"categories\":2"));
+		assertTrue(health, health.contains("\"openConnections\":1"));
+	}
+
+	/**
+	 * a failed request is answered by STATUS_ERROR and the connection
+	 * stays usable
+	 */
+	public void testErrorStatus() throws IOException {
+		Socket socket = this.connect();
+		try {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			ByteArrayOutputStream frames = new ByteArrayOutputStream();
+			frame(frames, 1, (byte) 99, new byte[0]);
+			// state is missing
+			frame(frames, 2, Protocol.OP_PREDICT, new byte[2]);
+			frame(frames, 3, Protocol.OP_PREDICT, predictPayload("ball goal"));
+			out.write(frames.toByteArray());
+			out.flush();
+
+			assertResponse(in, 1, Protocol.STATUS_ERROR, "unknown op 99");
+			assertResponse(in, 2, Protocol.STATUS_ERROR, "state is missing");
+			assertResponse(in, 3, Protocol.STATUS_OK, "sport");
+			assertEquals(2, this.server.getErrors());
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * a frame longer than the maximum closes the connection after the
+	 * responses of the frames sent before it
+	 */
+	public void testOversizedFrameCloses() throws IOException {
+		Socket socket = this.connect();
+		try {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			ByteArrayOutputStream frames = new ByteArrayOutputStream();
+			frame(frames, 1, Protocol.OP_PREDICT, predictPayload("ball goal"));
+			frame(frames, 2, Protocol.OP_PREDICT, predictPayload("vote law"));
+			new DataOutputStream(frames).writeInt(MAX_FRAME_BYTES + 1);
+			out.write(frames.toByteArray());
+			out.flush();
+
+			assertResponse(in, 1, Protocol.STATUS_OK, "sport");
+			assertResponse(in, 2, Protocol.STATUS_OK, "politics");
+			try {
+				in.readInt();
+				fail("the connection must be closed");
+			} catch (EOFException e) {
+				// closed by the server
+			}
+		} finally {
+			socket.close();
+		}
+		// other connections are served
+		assertEquals("sport", this.client.predict("ball goal", 0));
+	}
+
+	private Socket connect() throws IOException {
+		InetSocketAddress address = (InetSocketAddress) this.server.getAddress();
+		Socket socket = new Socket(address.getAddress(), address.getPort());
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	private static byte[] predictPayload(String document) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.write(document.getBytes(Charsets.UTF_8));
+		return bytes.toByteArray();
+	}
+
+	private static void frame(ByteArrayOutputStream frames, int id, byte op, byte[] payload)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(frames);
+		out.writeInt(Protocol.HEADER_BYTES + payload.length);
+		out.writeInt(id);
+		out.writeByte(op);
+		out.write(payload);
+	}
+
+	private static void assertResponse(DataInputStream in, int id, byte status, String text)
+			throws IOException {
+		int length = in.readInt();
+		assertEquals(id, in.readInt());
+		assertEquals(status, in.readByte());
+		byte[] payload = new byte[length - Protocol.HEADER_BYTES];
+		in.readFully(payload);
+		assertEquals(text, new String(payload, Charsets.UTF_8));
+	}
+}
@@ -0,0 +1,76 @@
+package no.jetpie.ml.nb;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import no.jetpie.ml.model.nb.ModelFile;
+import no.jetpie.ml.model.nb.MultinomialNB;
+import no.uib.cipr.matrix.Matrix;
+
+import com.google.common.io.Files;
+
+/**
+ * Binary model files written from a text model and read back
+ */
+public class ModelFileTest extends TestCase {
+
+	private static final String[] DOCUMENTS = { "ball goal", "vote law law", "goal vote",
+			"unknown words", "ball ball law" };
+
+	private File dir;
+	private MultinomialNB text;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.dir = Files.createTempDir();
+		TinyModel.write(this.dir, -1.0);
+		this.text = new MultinomialNB(new File(this.dir, "vocabulary.model").getPath(),
+				new File(this.dir, "log_proba").getPath(),
+				new File(this.dir, "boundary.json").getPath());
+		this.text.init();
+	}
+
+	@Override
+	protected void tearDown() {
+		TinyModel.delete(this.dir);
+	}
+
+	public void testRoundTrip() throws IOException {
+		String path = new File(this.dir, "model.nbj").getPath();
+		ModelFile.write(this.text, path);
+		MultinomialNB binary = new MultinomialNB(path);
+		binary.init();
+		assertSameModel(this.text, binary);
+	}
+
+	/**
+	 * rewriting the file a model is mapped from leaves that model intact
+	 */
+	public void testRewriteMappedModel() throws IOException {
+		String path = new File(this.dir, "model.nbj").getPath();
+		ModelFile.write(this.text, path);
+		MultinomialNB binary = new MultinomialNB(path);
+		binary.init();
+		ModelFile.write(binary, path);
+		assertSameModel(this.text, binary);
+
+		MultinomialNB reread = new MultinomialNB(path);
+		reread.init();
+		assertSameModel(this.text, reread);
+		// no temporary file is left
+		for (File f : this.dir.listFiles())
+			assertFalse(f.getName(), f.getName().endsWith(".tmp"));
+	}
+
+	private static void assertSameModel(MultinomialNB expected, MultinomialNB actual) {
+		for (String document : DOCUMENTS) {
+			assertEquals(document, expected.predict(document, 0), actual.predict(document, 0));
+			Matrix e = expected.predictLogProba(document);
+			Matrix a = actual.predictLogProba(document);
+			assertEquals(e.numColumns(), a.numColumns());
+			for (int j = 0; j < e.numColumns(); j++)
+				assertEquals(document, e.get(0, j), a.get(0, j), 0);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package no.jetpie.ml.nb;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import no.jetpie.ml.model.nb.MathMode;
+import no.jetpie.ml.model.nb.ModelManager;
+import no.jetpie.ml.model.nb.Precision;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class ModelManagerTest extends TestCase {
+
+	private File dir;
+	private ModelManager manager;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.dir = Files.createTempDir();
+		TinyModel.write(this.dir, -1.0);
+		this.manager = new ModelManager(new File(this.dir, "vocabulary.model").getPath(),
+				new File(this.dir, "log_proba").getPath(),
+				new File(this.dir, "boundary.json").getPath(), null, 50);
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		this.manager.close();
+		TinyModel.delete(this.dir);
+	}
+
+	public void testReloadKeepsMathMode() throws IOException {
+		this.manager.start();
+		this.manager.setMathMode(MathMode.FAST, null);
+		assertEquals(MathMode.FAST, this.manager.getModel().getMathMode());
+		assertEquals(0, this.manager.getLastReloadNanos());
+		assertTrue(this.manager.reload());
+		assertTrue(this.manager.getLastReloadNanos() > 0);
+		assertEquals(MathMode.FAST, this.manager.getModel().getMathMode());
+		assertEquals("sport", this.manager.predict("ball goal", 0));
+	}
+
+	public void testReloadKeepsPrecision() throws IOException {
+		this.manager.start();
+		assertEquals(Precision.DOUBLE, this.manager.getModel().getPrecision());
+		this.manager.setPrecision(Precision.INT8, null);
+		assertEquals(Precision.INT8, this.manager.getModel().getPrecision());
+		assertTrue(this.manager.reload());
+		assertEquals(Precision.INT8, this.manager.getModel().getPrecision());
+		assertEquals("politics", this.manager.predict("vote law", 0));
+	}
+
+	public void testReloadRejectsNaN() throws IOException {
+		this.manager.start();
+		Files.write("ball:NaN\ngoal:-5.0\nvote:-1.0\nlaw:-1.0\n",
+				new File(this.dir, "log_proba/politics.txt"), Charsets.UTF_8);
+		assertFalse(this.manager.reload());
+		Exception failure = this.manager.getLastFailure();
+		assertNotNull(failure);
+		assertTrue(failure.getMessage(), failure.getMessage().contains("not a number"));
+		assertEquals("sport", this.manager.predict("ball goal", 0));
+	}
+
+	/**
+	 * a category directory replaced by renames, then changed in place
+	 */
+	public void testWatchReplacedDirectory() throws Exception {
+		this.manager.start();
+		assertEquals("sport", this.manager.predict("ball goal", 0));
+
+		File logProba = new File(this.dir, "log_proba");
+		File next = new File(this.dir, "log_proba.tmp");
+		File old = new File(this.dir, "log_proba.old");
+		// sport terms now favour politics
+		TinyModel.writeCategories(next, -6.0);
+		Files.move(logProba, old);
+		Files.move(next, logProba);
+		TinyModel.delete(old);
+		assertTrue(this.awaitReloads(1));
+		assertEquals("politics", this.manager.predict("ball goal", 0));
+
+		// the new directory is watched too
+		TinyModel.writeCategories(logProba, -1.0);
+		assertTrue(this.awaitReloads(2));
+		assertEquals("sport", this.manager.predict("ball goal", 0));
+		assertNull(this.manager.getLastFailure());
+	}
+
+	private boolean awaitReloads(int reloads) throws InterruptedException {
+		for (int i = 0; i < 200 && this.manager.getReloads() < reloads; i++)
+			Thread.sleep(50);
+		return this.manager.getReloads() >= reloads;
+	}
+}
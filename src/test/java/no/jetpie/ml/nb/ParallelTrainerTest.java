@@ -0,0 +1,200 @@
+package no.jetpie.ml.nb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+import no.jetpie.ml.feature.HashingVectorizer;
+import no.jetpie.ml.model.nb.MultinomialNBTrainer;
+import no.jetpie.ml.model.nb.ParallelTrainer;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class ParallelTrainerTest extends TestCase {
+
+	private File corpus;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.corpus = File.createTempFile("nbj-corpus", ".tsv");
+	}
+
+	@Override
+	protected void tearDown() {
+		this.corpus.delete();
+	}
+
+	/**
+	 * a worker failing on a batch after the first must fail the training,
+	 * not leave the reader waiting on another worker
+	 */
+	public void testBadLabelInLaterShardFails() throws Exception {
+		BufferedWriter out = Files.newWriter(this.corpus, Charsets.UTF_8);
+		try {
+			// long documents, so the workers fall behind and the queue fills
+			StringBuilder document = new StringBuilder();
+			for (int j = 0; j < 200; j++)
+				document.append(" term").append(j);
+			for (int i = 0; i < 100000; i++) {
+				String label = i == 5000 ? "bad.label" : "cat" + (i % 7);
+				out.write(label + "\tword" + i + document + "\n");
+			}
+		} finally {
+			out.close();
+		}
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<MultinomialNBTrainer> result = executor.submit(
+					new Callable<MultinomialNBTrainer>() {
+						public MultinomialNBTrainer call() throws IOException {
+							return new ParallelTrainer(1.0, 4).fit(
+									ParallelTrainerTest.this.corpus.toPath());
+						}
+					});
+			try {
+				result.get(60, TimeUnit.SECONDS);
+				fail("a bad label must fail the training");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalArgumentException);
+			} catch (TimeoutException e) {
+				fail("training hangs after a worker failed");
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testFitMatchesSerialTrainer() throws IOException {
+		MultinomialNBTrainer serial = new MultinomialNBTrainer(1.0);
+		this.writeCorpus(serial);
+		MultinomialNBTrainer parallel = new ParallelTrainer(1.0, 4).fit(this.corpus.toPath());
+		assertSameModel(serial, parallel);
+	}
+
+	public void testFitHashedMatchesSerialTrainer() throws IOException {
+		MultinomialNBTrainer serial = new MultinomialNBTrainer(1.0, new HashingVectorizer(8));
+		this.writeCorpus(serial);
+		MultinomialNBTrainer parallel = new ParallelTrainer(1.0, new HashingVectorizer(8), 4)
+				.fit(this.corpus.toPath());
+		assertEquals(8, parallel.getBits());
+		assertSameModel(serial, parallel);
+	}
+
+	/**
+	 * write the corpus and feed it to a single trainer
+	 */
+	private void writeCorpus(MultinomialNBTrainer serial) throws IOException {
+		BufferedWriter out = Files.newWriter(this.corpus, Charsets.UTF_8);
+		Random random = new Random(7);
+		try {
+			for (int i = 0; i < 5000; i++) {
+				String label = "cat" + (i % 5);
+				StringBuilder document = new StringBuilder();
+				int length = 1 + random.nextInt(20);
+				for (int j = 0; j < length; j++) {
+					// skewed, so term frequencies and their norms vary
+					double u = random.nextDouble();
+					document.append(j == 0 ? "" : " ").append("term")
+							.append((int) (u * u * 300) + i % 5 * 20);
+				}
+				out.write(label + "\t" + document + "\n");
+				serial.partialFit(document.toString(), label);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * same counts, and the same model up to rounding whatever the order
+	 * of the columns
+	 */
+	private static void assertSameModel(MultinomialNBTrainer serial,
+			MultinomialNBTrainer parallel) throws IOException {
+		assertEquals(serial.getNumDocs(), parallel.getNumDocs());
+		assertEquals(serial.getNumTerms(), parallel.getNumTerms());
+		assertEquals(serial.getNumCats(), parallel.getNumCats());
+		for (int c = 0; c < 5; c++)
+			assertEquals(serial.getNumDocs("cat" + c), parallel.getNumDocs("cat" + c));
+
+		File dir = Files.createTempDir();
+		try {
+			File s = new File(dir, "serial");
+			File p = new File(dir, "parallel");
+			write(serial, s);
+			write(parallel, p);
+			assertClose(readVocabulary(s), readVocabulary(p));
+			for (int c = 0; c < 5; c++) {
+				String name = "log_proba/cat" + c + ".txt";
+				assertClose(readLogProba(new File(s, name)), readLogProba(new File(p, name)));
+			}
+		} finally {
+			TinyModel.delete(dir);
+		}
+	}
+
+	private static void write(MultinomialNBTrainer trainer, File dir) throws IOException {
+		dir.mkdirs();
+		trainer.write(new File(dir, "vocabulary.model").getPath(),
+				new File(dir, "log_proba").getPath(),
+				new File(dir, "boundary.json").getPath(), -3.0);
+	}
+
+	/**
+	 * @return idf by term of a "term,column,idf" vocabulary model
+	 */
+	private static Map<String, Double> readVocabulary(File dir) throws IOException {
+		Map<String, Double> idf = new HashMap<String, Double>();
+		for (String line : Files.readLines(new File(dir, "vocabulary.model"), Charsets.UTF_8)) {
+			String[] parts = line.split(",");
+			idf.put(parts[0], Double.parseDouble(parts[2]));
+		}
+		return idf;
+	}
+
+	/**
+	 * @return log probability by term of a "term:log probability" file
+	 */
+	private static Map<String, Double> readLogProba(File file) throws IOException {
+		Map<String, Double> logProba = new HashMap<String, Double>();
+		for (String line : Files.readLines(file, Charsets.UTF_8)) {
+			int colon = line.indexOf(':');
+			logProba.put(line.substring(0, colon), Double.parseDouble(line.substring(colon + 1)));
+		}
+		return logProba;
+	}
+
+	private static void assertClose(Map<String, Double> expected, Map<String, Double> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (Map.Entry<String, Double> e : expected.entrySet())
+			assertEquals(e.getKey(), e.getValue(), actual.get(e.getKey()),
+					1e-12 * Math.max(1, Math.abs(e.getValue())));
+	}
+
+	public void testMergeRejectsDifferentAlpha() {
+		MultinomialNBTrainer a = new MultinomialNBTrainer(1.0);
+		a.partialFit("term a", "cat0");
+		MultinomialNBTrainer b = new MultinomialNBTrainer(0.5);
+		b.partialFit("term b", "cat1");
+		try {
+			new ParallelTrainer(1.0, 2).merge(Arrays.asList(a, b));
+			fail("partials of different alpha must not merge");
+		} catch (IllegalArgumentException e) {
+			assertEquals(1, a.getNumDocs());
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package no.jetpie.ml.nb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import no.jetpie.ml.metrics.InferenceMetrics;
+import no.jetpie.ml.metrics.MetricsRegistry.Counter;
+import no.jetpie.ml.model.nb.MathMode;
+import no.jetpie.ml.model.nb.MultinomialNB;
+import no.jetpie.ml.model.nb.PredictionCache;
+import no.jetpie.ml.utils.Rule;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * PredictionCache in front of the predictions of a MultinomialNB
+ */
+public class PredictionCacheTest extends TestCase {
+
+	private File dir;
+	private MultinomialNB model;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.dir = Files.createTempDir();
+		TinyModel.write(this.dir, -1.0);
+		this.model = new MultinomialNB(new File(this.dir, "vocabulary.model").getPath(),
+				new File(this.dir, "log_proba").getPath(),
+				new File(this.dir, "boundary.json").getPath());
+		this.model.init();
+	}
+
+	@Override
+	protected void tearDown() {
+		TinyModel.delete(this.dir);
+	}
+
+	/**
+	 * the parallel batch goes through the cache and the metrics
+	 */
+	public void testExecutorBatchUsesCacheAndMetrics() {
+		PredictionCache cache = new PredictionCache(100);
+		InferenceMetrics metrics = new InferenceMetrics();
+		this.model.setCache(cache);
+		this.model.setMetrics(metrics);
+		List<String> documents = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++)
+			documents.add(i % 2 == 0 ? "ball goal" : "vote law");
+		int[] states = new int[documents.size()];
+
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			List<String> labels = this.model.predict(documents, states, pool);
+			List<String> forkJoin = this.model.predict(documents, states, ForkJoinPool.commonPool());
+			for (int i = 0; i < documents.size(); i++) {
+				assertEquals(i % 2 == 0 ? "sport" : "politics", labels.get(i));
+				assertEquals(labels.get(i), forkJoin.get(i));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		// two distinct documents, a few misses at most per racing chunk
+		assertEquals(2 * documents.size(), cache.getHits() + cache.getMisses());
+		assertTrue(cache.getHits() > documents.size());
+		assertEquals(cache.getMisses(), metrics.getCount(Counter.DOCUMENTS));
+	}
+
+	/**
+	 * a new snapshot never serves the labels cached on the previous one
+	 */
+	public void testNewSnapshotMisses() throws IOException {
+		PredictionCache cache = new PredictionCache(100);
+		this.model.setCache(cache);
+		assertEquals("sport", this.model.predict("ball goal", 0));
+		assertEquals("sport", this.model.predict("ball goal", 0));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		this.model.setMathMode(MathMode.FAST, null);
+		assertEquals("sport", this.model.predict("ball goal", 0));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		// a rule of state 1 only allows politics, which wins the tie
+		File rule = new File(this.dir, "politics.rule");
+		Files.write("politics\n", rule, Charsets.UTF_8);
+		this.model.setRule(1, new Rule(rule.getPath()));
+		assertEquals("sport", this.model.predict("ball goal", 0));
+		assertEquals("politics", this.model.predict("ball vote", 1));
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals("politics", this.model.predict("ball vote", 1));
+		assertEquals(2, cache.getHits());
+	}
+}
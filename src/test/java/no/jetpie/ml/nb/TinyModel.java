@@ -0,0 +1,63 @@
+package no.jetpie.ml.nb;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Text model of two categories over four terms for the tests: sport
+ * for "ball" and "goal", politics for "vote" and "law".
+ */
+final class TinyModel {
+
+	static final String[] TERMS = { "ball", "goal", "vote", "law" };
+
+	private TinyModel() {
+	}
+
+	/**
+	 * write vocabulary.model, log_proba/ and boundary.json into dir
+	 *
+	 * @param favoured
+	 * 		log probability a category gives its own terms
+	 */
+	static void write(File dir, double favoured) throws IOException {
+		StringBuilder vocab = new StringBuilder();
+		for (int i = 0; i < TERMS.length; i++)
+			vocab.append(TERMS[i]).append(',').append(i).append(",1.0\n");
+		Files.write(vocab, new File(dir, "vocabulary.model"), Charsets.UTF_8);
+		writeCategories(new File(dir, "log_proba"), favoured);
+		Files.write("{\"sport\": {\"threshold\": -3.0, \"used\": 1},"
+				+ " \"politics\": {\"threshold\": -3.0, \"used\": 1}}",
+				new File(dir, "boundary.json"), Charsets.UTF_8);
+	}
+
+	/**
+	 * write only the category files
+	 *
+	 * @param favoured
+	 * 		log probability a category gives its own terms
+	 */
+	static void writeCategories(File logProba, double favoured) throws IOException {
+		StringBuilder sport = new StringBuilder();
+		StringBuilder politics = new StringBuilder();
+		for (int i = 0; i < TERMS.length; i++) {
+			sport.append(TERMS[i]).append(':').append(i < 2 ? favoured : -5.0).append('\n');
+			politics.append(TERMS[i]).append(':').append(i < 2 ? -5.0 : favoured).append('\n');
+		}
+		logProba.mkdirs();
+		Files.write(sport, new File(logProba, "sport.txt"), Charsets.UTF_8);
+		Files.write(politics, new File(logProba, "politics.txt"), Charsets.UTF_8);
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}